@@ -0,0 +1,88 @@
+// Copyright 2011 The Whiley Project Developers
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package wybs.io;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks for scanning a typical source file using the standard lexer
+ * rules.
+ *
+ * @author David J. Pearce
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AbstractLexerBenchmark {
+	private static final AbstractLexer.Rule[] RULES = {
+			new AbstractLexer.WhitespaceRule(),
+			new AbstractLexer.LineCommentRule("//"),
+			new AbstractLexer.BlockCommentRule("/*", "*/"),
+			new AbstractLexer.KeywordRule(new String[] { "function", "return", "if", "else", "while", "int" }),
+			new AbstractLexer.IdentifierRule(),
+			new AbstractLexer.DecimalRule(),
+			new AbstractLexer.StringRule(),
+			new AbstractLexer.OperatorRule(new String[] { "==", "<=", ">=", "+", "-", "*", "/", "<", ">", "=", "(",
+					")", "{", "}", ",", ";", ":" }) };
+
+	@Param({ "100", "1000" })
+	private int lines;
+
+	private String text;
+
+	@Setup
+	public void setup() {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i != lines; ++i) {
+			switch (i % 4) {
+			case 0:
+				sb.append("// computes something interesting\n");
+				break;
+			case 1:
+				sb.append("function f" + i + "(int x, int y) -> (int r):\n");
+				break;
+			case 2:
+				sb.append("    if x <= y: return x + " + i + " * y\n");
+				break;
+			default:
+				sb.append("    else: return \"str" + i + "\" == y /* done */\n");
+			}
+		}
+		text = sb.toString();
+	}
+
+	@Benchmark
+	public List<Token> scan() throws IOException, AbstractLexer.Error {
+		return new AbstractLexer(RULES, new StringReader(text)).scan();
+	}
+}
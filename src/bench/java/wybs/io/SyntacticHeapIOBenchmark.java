@@ -0,0 +1,127 @@
+// Copyright 2011 The Whiley Project Developers
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package wybs.io;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import wybs.lang.SyntacticHeap;
+import wybs.lang.SyntacticItem;
+import wybs.util.AbstractCompilationUnit;
+import wybs.util.BenchmarkHeap;
+import wybs.util.CompactSyntacticHeap;
+import wycc.util.Pair;
+
+/**
+ * Benchmarks for writing and reading syntactic heaps in binary form. Heaps
+ * are read either as objects, or directly into a compact heap.
+ *
+ * @author David J. Pearce
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SyntacticHeapIOBenchmark {
+	private static final int MAGIC = 0xB0;
+
+	@Param({ "1000", "10000" })
+	private int size;
+
+	private BenchmarkHeap heap;
+
+	private byte[] bytes;
+
+	@Setup
+	public void setup() throws IOException {
+		heap = new BenchmarkHeap();
+		heap.setRootItem(BenchmarkHeap.generate(size));
+		bytes = write();
+	}
+
+	@Benchmark
+	public byte[] write() throws IOException {
+		ByteArrayOutputStream bout = new ByteArrayOutputStream();
+		new Writer(bout).write(heap);
+		return bout.toByteArray();
+	}
+
+	@Benchmark
+	public SyntacticHeap read() throws IOException {
+		return new Reader(new ByteArrayInputStream(bytes)).read();
+	}
+
+	@Benchmark
+	public SyntacticHeap readCompact() throws IOException {
+		return new Reader(new ByteArrayInputStream(bytes)).readCompact();
+	}
+
+	@Benchmark
+	public SyntacticHeap roundTrip() throws IOException {
+		return new Reader(new ByteArrayInputStream(write())).read();
+	}
+
+	private static class Writer extends SyntacticHeapWriter {
+		public Writer(OutputStream output) {
+			super(output, AbstractCompilationUnit.getSchema());
+		}
+
+		@Override
+		public void writeHeader() throws IOException {
+			out.write_u8(MAGIC);
+		}
+	}
+
+	private static class Reader extends SyntacticHeapReader {
+		public Reader(InputStream input) {
+			super(input, AbstractCompilationUnit.getSchema());
+		}
+
+		@Override
+		public SyntacticHeap read() throws IOException {
+			Pair<Integer, SyntacticItem[]> p = readItems();
+			return new BenchmarkHeap(p.first(), p.second());
+		}
+
+		public CompactSyntacticHeap readCompact() throws IOException {
+			return readCompactItems();
+		}
+
+		@Override
+		protected void checkHeader() throws IOException {
+			if (in.read_u8() != MAGIC) {
+				throw new IOException("invalid magic number");
+			}
+		}
+	}
+}
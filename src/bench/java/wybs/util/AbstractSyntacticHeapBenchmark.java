@@ -0,0 +1,98 @@
+// Copyright 2011 The Whiley Project Developers
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package wybs.util;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import wybs.lang.SyntacticItem;
+import wybs.util.AbstractCompilationUnit.Identifier;
+import wybs.util.AbstractCompilationUnit.Pair;
+import wybs.util.AbstractCompilationUnit.Tuple;
+import wybs.util.AbstractCompilationUnit.Value;
+
+/**
+ * Benchmarks for allocating, cloning and substituting syntactic items.
+ *
+ * @author David J. Pearce
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AbstractSyntacticHeapBenchmark {
+	@Param({ "1000", "10000" })
+	private int size;
+
+	/**
+	 * An unallocated tree.
+	 */
+	private Tuple<Pair<Identifier, Value>> tree;
+
+	/**
+	 * A heap containing a copy of the tree.
+	 */
+	private BenchmarkHeap heap;
+
+	/**
+	 * The root of the tree within the heap.
+	 */
+	private SyntacticItem root;
+
+	/**
+	 * The item to replace when substituting.
+	 */
+	private SyntacticItem from;
+
+	@Setup(Level.Iteration)
+	public void setup() {
+		tree = BenchmarkHeap.generate(size);
+		heap = new BenchmarkHeap();
+		root = heap.allocate(BenchmarkHeap.generate(size));
+		heap.setRootItem(root);
+		from = root.get(size / 2).get(1);
+	}
+
+	@Benchmark
+	public BenchmarkHeap allocate() {
+		BenchmarkHeap h = new BenchmarkHeap();
+		h.allocate(tree);
+		return h;
+	}
+
+	@Benchmark
+	public SyntacticItem clone() {
+		return AbstractSyntacticHeap.clone(root);
+	}
+
+	@Benchmark
+	public SyntacticItem substitute() {
+		return AbstractSyntacticHeap.substitute(root, from, new Value.Int(-1));
+	}
+}
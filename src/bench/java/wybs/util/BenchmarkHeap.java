@@ -0,0 +1,75 @@
+// Copyright 2011 The Whiley Project Developers
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package wybs.util;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+
+import wybs.lang.SyntacticItem;
+
+/**
+ * A minimal compilation unit used for benchmarking syntactic heaps. This also
+ * provides a generator for heaps of a given size which exhibit a reasonable
+ * degree of sharing.
+ *
+ * @author David J. Pearce
+ *
+ */
+public class BenchmarkHeap extends AbstractCompilationUnit<BenchmarkHeap> {
+
+	public BenchmarkHeap() {
+		super(null);
+	}
+
+	/**
+	 * Construct a heap from the items read by a heap reader.
+	 *
+	 * @param root
+	 * @param items
+	 */
+	public BenchmarkHeap(int root, SyntacticItem[] items) {
+		super(null);
+		for (int i = 0; i != items.length; ++i) {
+			syntacticItems.add(items[i]);
+			items[i].allocate(this, i);
+		}
+		this.root = root;
+	}
+
+	/**
+	 * Generate an unallocated tree of a given size. This consists of a tuple of
+	 * key-value pairs, where keys are drawn from a small set of (shared)
+	 * identifiers.
+	 *
+	 * @param size
+	 * @return
+	 */
+	public static Tuple<Pair<Identifier, Value>> generate(int size) {
+		Identifier[] keys = new Identifier[16];
+		for (int i = 0; i != keys.length; ++i) {
+			keys[i] = new Identifier("key" + i);
+		}
+		ArrayList<Pair<Identifier, Value>> pairs = new ArrayList<>();
+		for (int i = 0; i != size; ++i) {
+			Value v;
+			if (i % 3 == 0) {
+				v = new Value.UTF8(("value" + i).getBytes());
+			} else {
+				v = new Value.Int(BigInteger.valueOf(i));
+			}
+			pairs.add(new Pair<>(keys[i % keys.length], v));
+		}
+		return new Tuple<>(pairs);
+	}
+}
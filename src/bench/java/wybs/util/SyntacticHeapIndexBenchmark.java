@@ -0,0 +1,95 @@
+// Copyright 2011 The Whiley Project Developers
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package wybs.util;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import wybs.lang.SyntacticItem;
+
+/**
+ * Benchmarks for determining the index of an item within a syntactic heap. The
+ * <code>scan</code> benchmark measures a linear search of the heap for
+ * comparison.
+ *
+ * @author David J. Pearce
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SyntacticHeapIndexBenchmark {
+	/**
+	 * The (approximate) number of items in the heap.
+	 */
+	@Param({ "1000000" })
+	private int items;
+
+	private BenchmarkHeap heap;
+
+	/**
+	 * Items to lookup, chosen at random from the heap.
+	 */
+	private SyntacticItem[] samples;
+
+	private int next;
+
+	@Setup(Level.Trial)
+	public void setup() {
+		heap = new BenchmarkHeap();
+		heap.setRootItem(heap.allocate(BenchmarkHeap.generate(items / 2)));
+		Random random = new Random(0);
+		samples = new SyntacticItem[1024];
+		for (int i = 0; i != samples.length; ++i) {
+			samples[i] = heap.getSyntacticItem(random.nextInt(heap.size()));
+		}
+	}
+
+	@Benchmark
+	public int getIndexOf() {
+		return heap.getIndexOf(nextSample());
+	}
+
+	@Benchmark
+	public int scan() {
+		SyntacticItem item = nextSample();
+		for (int i = 0; i != heap.size(); ++i) {
+			if (heap.getSyntacticItem(i) == item) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private SyntacticItem nextSample() {
+		next = (next + 1) & (samples.length - 1);
+		return samples[next];
+	}
+}
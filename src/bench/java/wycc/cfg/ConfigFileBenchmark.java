@@ -0,0 +1,95 @@
+// Copyright 2011 The Whiley Project Developers
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package wycc.cfg;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import wybs.util.AbstractCompilationUnit.Value;
+import wyfs.lang.Path;
+import wyfs.util.DefaultContentRegistry;
+import wyfs.util.Trie;
+import wyfs.util.VirtualRoot;
+
+/**
+ * Benchmarks for looking up keys in a configuration file.
+ *
+ * @author David J. Pearce
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ConfigFileBenchmark {
+	@Param({ "10", "100" })
+	private int sections;
+
+	private Configuration configuration;
+
+	private Trie[] keys;
+
+	@Setup
+	public void setup() throws IOException {
+		StringBuilder sb = new StringBuilder();
+		keys = new Trie[sections * 10];
+		for (int i = 0; i != sections; ++i) {
+			sb.append("[section" + i + "]\n");
+			for (int j = 0; j != 10; ++j) {
+				sb.append("key" + j + " = \"value" + j + "\"\n");
+				keys[i * 10 + j] = Trie.fromString("section" + i + "/key" + j);
+			}
+		}
+		VirtualRoot.Entry<ConfigFile> entry = new VirtualRoot.Entry<>(Trie.fromString("wy"),
+				new DefaultContentRegistry());
+		entry.associate(ConfigFile.ContentType, null);
+		try (OutputStream out = entry.outputStream()) {
+			out.write(sb.toString().getBytes(StandardCharsets.UTF_8));
+		}
+		Configuration.Schema schema = Configuration
+				.fromArray(Configuration.UNBOUND_STRING(Trie.fromString("*/*"), "key", false));
+		configuration = entry.read().toConfiguration(schema);
+	}
+
+	@Benchmark
+	public void get(Blackhole bh) {
+		for (Path.ID key : keys) {
+			bh.consume(configuration.get(Value.UTF8.class, key));
+		}
+	}
+
+	@Benchmark
+	public void hasKey(Blackhole bh) {
+		for (Path.ID key : keys) {
+			bh.consume(configuration.hasKey(key));
+		}
+	}
+}
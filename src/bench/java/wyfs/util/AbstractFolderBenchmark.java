@@ -0,0 +1,114 @@
+// Copyright 2011 The Whiley Project Developers
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package wyfs.util;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import wyfs.lang.Content;
+import wyfs.lang.Path;
+
+/**
+ * Benchmarks for looking up and inserting entries in large folders.
+ *
+ * @author David J. Pearce
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AbstractFolderBenchmark {
+	@Param({ "100", "10000" })
+	private int size;
+
+	private Path.Entry<?>[] entries;
+	private Trie[] lookups;
+	private Folder folder;
+
+	@Setup
+	public void setup() throws IOException {
+		entries = new Path.Entry[size];
+		for (int i = 0; i != size; ++i) {
+			VirtualRoot.Entry<byte[]> e = new VirtualRoot.Entry<>(Trie.fromString("entry" + i), null);
+			e.associate(Content.BinaryFile, null);
+			entries[i] = e;
+		}
+		folder = new Folder(entries);
+		Random random = new Random(1);
+		lookups = new Trie[1000];
+		for (int i = 0; i != lookups.length; ++i) {
+			lookups[i] = Trie.fromString("entry" + random.nextInt(size));
+		}
+	}
+
+	@Benchmark
+	public void get(Blackhole bh) throws IOException {
+		for (Trie id : lookups) {
+			bh.consume(folder.get(id, Content.BinaryFile));
+		}
+	}
+
+	@Benchmark
+	public Folder insert() throws IOException {
+		Folder f = new Folder(new Path.Entry[0]);
+		for (Path.Entry<?> e : entries) {
+			f.insert(e);
+		}
+		return f;
+	}
+
+	/**
+	 * A folder whose initial contents are given upfront.
+	 */
+	private static class Folder extends AbstractFolder {
+		private final Path.Item[] initial;
+
+		public Folder(Path.Item[] initial) {
+			super(Trie.ROOT);
+			this.initial = initial;
+		}
+
+		@Override
+		public void insert(Path.Item item) throws IOException {
+			super.insert(item);
+		}
+
+		@Override
+		public <T> Path.Entry<T> create(Path.ID id, Content.Type<T> ct) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		protected Path.Item[] contents() {
+			return initial.clone();
+		}
+	}
+}
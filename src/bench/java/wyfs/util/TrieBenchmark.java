@@ -0,0 +1,95 @@
+// Copyright 2011 The Whiley Project Developers
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package wyfs.util;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Benchmarks for constructing, comparing and matching path identifiers.
+ *
+ * @author David J. Pearce
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TrieBenchmark {
+	@Param({ "1000" })
+	private int size;
+
+	private String[][] components;
+	private Trie[] ids;
+	private Trie[] filters;
+
+	@Setup
+	public void setup() {
+		components = new String[size][];
+		ids = new Trie[size];
+		for (int i = 0; i != size; ++i) {
+			components[i] = new String[] { "whiley", "lang", "module" + (i % 31), "file" + i };
+			ids[i] = Trie.fromString(String.join("/", components[i]));
+		}
+		filters = new Trie[] { Trie.fromString("whiley/**"), Trie.fromString("**/file1*"),
+				Trie.fromString("whiley/*/module7/*") };
+	}
+
+	@Benchmark
+	public void append(Blackhole bh) {
+		for (int i = 0; i != size; ++i) {
+			Trie id = Trie.ROOT;
+			for (String c : components[i]) {
+				id = id.append(c);
+			}
+			bh.consume(id);
+		}
+	}
+
+	@Benchmark
+	public int compareTo() {
+		int r = 0;
+		for (int i = 1; i < size; ++i) {
+			r += ids[i - 1].compareTo(ids[i]);
+		}
+		return r;
+	}
+
+	@Benchmark
+	public int match() {
+		int count = 0;
+		for (int i = 0; i != size; ++i) {
+			for (Trie filter : filters) {
+				if (filter.matches(ids[i])) {
+					count++;
+				}
+			}
+		}
+		return count;
+	}
+}
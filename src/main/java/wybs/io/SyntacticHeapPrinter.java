@@ -17,6 +17,7 @@ import java.io.PrintWriter;
 
 import wybs.lang.SyntacticHeap;
 import wybs.lang.SyntacticItem;
+import wybs.util.SyntacticItemVisitor;
 
 public class SyntacticHeapPrinter {
 	private final PrintWriter out;
@@ -33,7 +34,10 @@ public class SyntacticHeapPrinter {
 
 	public void print(SyntacticHeap heap) {
 		boolean[] reachable = new boolean[heap.size()];
-		search(heap.getRootItem().getIndex(),heap, reachable);
+		new SyntacticItemVisitor().setDefault(item -> {
+			reachable[item.getIndex()] = true;
+			return true;
+		}).visit(heap);
 		//
 		out.println("root=" + heap.getRootItem().getIndex());
 		for(int i=0;i!=heap.size();++i) {
@@ -70,16 +74,4 @@ public class SyntacticHeapPrinter {
 		}
 		out.flush();
 	}
-
-	private void search(int index, SyntacticHeap heap, boolean[] visited) {
-		visited[index] = true;
-		//
-		SyntacticItem item = heap.getSyntacticItem(index);
-		for (int j = 0; j != item.size(); ++j) {
-			int jth = item.get(j).getIndex();
-			if(!visited[jth]) {
-				search(jth, heap, visited);
-			}
-		}
-	}
 }
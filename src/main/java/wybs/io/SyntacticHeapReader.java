@@ -15,12 +15,16 @@ package wybs.io;
 
 import java.io.*;
 import java.math.BigInteger;
+import java.util.ArrayDeque;
 import java.util.Arrays;
 
 import wybs.lang.SyntacticHeap;
 import wybs.lang.SyntacticItem;
+import wybs.util.CompactSyntacticHeap;
 import wycc.util.Pair;
+import wycc.util.Trace;
 import wyfs.io.BinaryInputStream;
+import wyfs.lang.Path;
 
 /**
  * <p>
@@ -36,8 +40,28 @@ public abstract class SyntacticHeapReader {
 	protected final BinaryInputStream in;
 	protected final SyntacticItem.Schema[] schema;
 
+	/**
+	 * Trace event covering this reader, which records the number of bytes read.
+	 */
+	private final Trace.Event event;
+
 	public SyntacticHeapReader(InputStream output, SyntacticItem.Schema[] schema) {
-		this.in = new BinaryInputStream(output);
+		this(null, output, schema);
+	}
+
+	/**
+	 * Construct a reader for the contents of a given entry, such that the
+	 * trace event covering this reader identifies the entry being read.
+	 *
+	 * @param entry
+	 *            The entry being read, which may be <code>null</code> if
+	 *            unknown.
+	 * @param output
+	 * @param schema
+	 */
+	public SyntacticHeapReader(Path.Entry<?> entry, InputStream output, SyntacticItem.Schema[] schema) {
+		this.event = Trace.begin("heap", "read", entry == null ? null : entry.id());
+		this.in = new BinaryInputStream(event.wrap(output));
 		this.schema = schema;
 	}
 
@@ -68,7 +92,39 @@ public abstract class SyntacticHeapReader {
 			items[i] = readItem();
 		}
 		//
-		return new Pair<>(root, constructItems(items));
+		Pair<Integer, SyntacticItem[]> result = new Pair<>(root, constructItems(items));
+		event.end();
+		return result;
+	}
+
+	/**
+	 * Read all the items in this heap directly into a compact heap, without
+	 * constructing an object for each item. Typed items can subsequently be
+	 * constructed from the compact heap using the same schema.
+	 *
+	 * @return
+	 * @throws IOException
+	 */
+	protected CompactSyntacticHeap readCompactItems() throws IOException {
+		checkHeader();
+		// second, determine number of items
+		int size = in.read_uv();
+		// third, determine the root item
+		int root = in.read_uv();
+		//
+		CompactSyntacticHeap heap = new CompactSyntacticHeap(schema, size);
+		for (int i = 0; i != size; ++i) {
+			int opcode = in.read_u8();
+			int[] operands = readOperands(opcode);
+			byte[] data = readData(opcode);
+			in.pad_u8();
+			heap.append(opcode, operands, data);
+		}
+		if (size > 0) {
+			heap.setRootItem(heap.getSyntacticItem(root));
+		}
+		event.end();
+		return heap;
 	}
 
 	protected abstract void checkHeader() throws IOException;
@@ -145,24 +201,42 @@ public abstract class SyntacticHeapReader {
 	protected void constructItem(int index, Bytecode[] bytecodes, SyntacticItem[] items) {
 		// FIXME: this fails in the presence of truly recursive items.
 		if (items[index] == null) {
-			// This item not yet constructed, therefore construct it!
-			Bytecode bytecode = bytecodes[index];
-			// Destructure bytecode
-			int opcode = bytecode.opcode;
-			int[] operands = bytecode.operands;
-			byte[] data = bytecode.data;
-			// Construct empty item
-			SyntacticItem item = schema[bytecode.opcode].construct(opcode, new SyntacticItem[operands.length], data);
-			// Store item so can be accessed recursively
-			items[index] = item;
-			// Recursively construct operands
-			for (int i = 0; i != operands.length; ++i) {
-				constructItem(operands[i], bytecodes, items);
-				item.setOperand(i, items[operands[i]]);
+			// Items whose operands are still being constructed, along with the
+			// next operand for each. An explicit stack is used, rather than
+			// recursion, so that items of any depth can be constructed.
+			ArrayDeque<int[]> stack = new ArrayDeque<>();
+			items[index] = constructEmptyItem(bytecodes[index]);
+			stack.push(new int[] { index, 0 });
+			while (!stack.isEmpty()) {
+				int[] frame = stack.peek();
+				int[] operands = bytecodes[frame[0]].operands;
+				if (frame[1] == operands.length) {
+					stack.pop();
+				} else {
+					int operand = operands[frame[1]];
+					if (items[operand] == null) {
+						// This item not yet constructed, therefore construct it!
+						items[operand] = constructEmptyItem(bytecodes[operand]);
+						stack.push(new int[] { operand, 0 });
+					}
+					items[frame[0]].setOperand(frame[1]++, items[operand]);
+				}
 			}
 		}
 	}
 
+	/**
+	 * Construct an item from a given bytecode, without any operands. These are
+	 * assigned once the operands themselves are constructed.
+	 *
+	 * @param bytecode
+	 * @return
+	 */
+	private SyntacticItem constructEmptyItem(Bytecode bytecode) {
+		return schema[bytecode.opcode].construct(bytecode.opcode, new SyntacticItem[bytecode.operands.length],
+				bytecode.data);
+	}
+
 	private static class Bytecode {
 		public final int opcode;
 		public final int[] operands;
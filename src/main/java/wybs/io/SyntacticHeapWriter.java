@@ -19,6 +19,7 @@ import java.util.Arrays;
 
 import wybs.lang.SyntacticHeap;
 import wybs.lang.SyntacticItem;
+import wybs.util.AbstractSyntacticHeap;
 import wyfs.io.BinaryOutputStream;
 
 /**
@@ -35,16 +36,38 @@ public abstract class SyntacticHeapWriter {
 	protected final BinaryOutputStream out;
 	protected final SyntacticItem.Schema[] schema;
 
+	/**
+	 * Signals whether or not to remove unreachable items from a heap before it
+	 * is written.
+	 */
+	private boolean compacting;
+
 	public SyntacticHeapWriter(OutputStream output, SyntacticItem.Schema[] schema) {
 		this.out = new BinaryOutputStream(output);
 		this.schema = schema;
 	}
 
+	/**
+	 * Enable or disable compaction of heaps before they are written. When
+	 * enabled, unreachable items are removed from the heap being written (see
+	 * <code>AbstractSyntacticHeap.compact()</code>). This reduces both the size
+	 * of the written heap and the time taken to subsequently read it. Observe
+	 * that this modifies the heap being written.
+	 *
+	 * @param flag
+	 */
+	public void setCompacting(boolean flag) {
+		this.compacting = flag;
+	}
+
 	public void close() throws IOException {
 		out.close();
 	}
 
 	public void write(SyntacticHeap module) throws IOException {
+		if (compacting && module instanceof AbstractSyntacticHeap) {
+			((AbstractSyntacticHeap) module).compact();
+		}
 		// first, write magic number
 		writeHeader();
 		// second, write syntactic items
@@ -197,6 +197,12 @@ public interface Build {
 	 * given task is possible, though care must be taken.
 	 * </p>
 	 * <p>
+	 * <b>NOTE:</b> when building with more than one job, a task may be invoked
+	 * concurrently on disjoint groups of files (though never on two groups with
+	 * the same target root). Therefore, tasks must be thread-safe, including any
+	 * per-project caching they perform.
+	 * </p>
+	 * <p>
 	 * Every build task has a unique name which identifies the task. This allows the
 	 * task to be configured and/or to ensure required platform dependencies are
 	 * met.
@@ -239,8 +239,8 @@ public class SyntaxError extends RuntimeException {
 	}
 
 	private static EnclosingLine readEnclosingLine(Path.Entry<?> entry, Attribute.Span location) {
-		int spanStart = location.getStart().get().intValue();
-		int spanEnd = location.getEnd().get().intValue();
+		int spanStart = (int) location.getStart().getLong();
+		int spanEnd = (int) location.getEnd().getLong();
 		int line = 0;
 		int lineStart = 0;
 		int lineEnd = 0;
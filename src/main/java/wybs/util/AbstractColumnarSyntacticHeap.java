@@ -0,0 +1,583 @@
+// Copyright 2011 The Whiley Project Developers
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package wybs.util;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import wybs.lang.Attribute;
+import wybs.lang.SyntacticHeap;
+import wybs.lang.SyntacticItem;
+
+/**
+ * <p>
+ * A syntactic heap which stores its items in columns, rather than as
+ * individual objects. That is, the opcode, operands and data of each item are
+ * identified by its index, and stored in a form determined by the concrete
+ * heap (e.g. arrays or a byte buffer). This avoids any per-item object
+ * overhead.
+ * </p>
+ * <p>
+ * Items returned from this heap are lightweight <i>views</i>, which are created
+ * on demand and simply identify an index in the heap. Views are untyped, in
+ * the sense that they are not instances of the classes constructed by the
+ * schema (e.g. <code>Tuple</code>). Instead, typed items can be constructed
+ * from the heap when required, using the same schema as would be used to read
+ * the heap from disk (see <code>materialize()</code>).
+ * </p>
+ *
+ * @author David J. Pearce
+ *
+ */
+public abstract class AbstractColumnarSyntacticHeap implements SyntacticHeap {
+	/**
+	 * Used to construct typed items from this heap.
+	 */
+	protected final SyntacticItem.Schema[] schema;
+
+	/**
+	 * The index of the root item.
+	 */
+	protected int root;
+
+	/**
+	 * The class of item constructed by the schema for each opcode, which is
+	 * determined lazily.
+	 */
+	private final Class<?>[] kinds;
+
+	/**
+	 * Index of the parents of each item, which is constructed lazily. The
+	 * parents of item <code>i</code> are stored in ascending order in
+	 * <code>parents</code> between <code>parentOffsets[i]</code> (inclusive)
+	 * and <code>parentOffsets[i+1]</code> (exclusive). A parent which refers
+	 * to an item more than once is listed more than once.
+	 */
+	private int[] parentOffsets;
+	private int[] parents;
+
+	public AbstractColumnarSyntacticHeap(SyntacticItem.Schema[] schema) {
+		this.schema = schema;
+		this.kinds = new Class<?>[schema.length];
+	}
+
+	// ======================================================================
+	// Columns
+	// ======================================================================
+
+	/**
+	 * Get the opcode of the item at a given index.
+	 *
+	 * @param index
+	 * @return
+	 */
+	public abstract int getOpcode(int index);
+
+	/**
+	 * Get the number of operands of the item at a given index.
+	 *
+	 * @param index
+	 * @return
+	 */
+	public abstract int getOperandCount(int index);
+
+	/**
+	 * Get the index of the ith operand of the item at a given index.
+	 *
+	 * @param index
+	 * @param ith
+	 * @return The index of the operand, or <code>-1</code> if it is
+	 *         <code>null</code>.
+	 */
+	public abstract int getOperand(int index, int ith);
+
+	/**
+	 * Get the number of data bytes of the item at a given index.
+	 *
+	 * @param index
+	 * @return The number of bytes, or <code>-1</code> if the item has no data.
+	 */
+	public abstract int getDataLength(int index);
+
+	/**
+	 * Get a copy of the data of the item at a given index.
+	 *
+	 * @param index
+	 * @return
+	 */
+	public abstract byte[] getData(int index);
+
+	/**
+	 * Update the opcode of the item at a given index.
+	 *
+	 * @param index
+	 * @param opcode
+	 */
+	protected abstract void setOpcode(int index, int opcode);
+
+	/**
+	 * Update the ith operand of the item at a given index.
+	 *
+	 * @param index
+	 * @param ith
+	 * @param operand
+	 *            The index of the operand, or <code>-1</code> for
+	 *            <code>null</code>.
+	 */
+	protected abstract void setOperand(int index, int ith, int operand);
+
+	/**
+	 * Get the schema used to construct typed items from this heap.
+	 *
+	 * @return
+	 */
+	public SyntacticItem.Schema[] getSchema() {
+		return schema;
+	}
+
+	// ======================================================================
+	// Syntactic Heap
+	// ======================================================================
+
+	@Override
+	public SyntacticItem getRootItem() {
+		return getSyntacticItem(root);
+	}
+
+	@Override
+	public void setRootItem(SyntacticItem item) {
+		this.root = getIndexOf(allocate(item));
+	}
+
+	/**
+	 * Get a view of the item at a given index. Observe that a new view is
+	 * returned on every call.
+	 */
+	@Override
+	public SyntacticItem getSyntacticItem(int index) {
+		check(index);
+		return new Item(index);
+	}
+
+	@Override
+	public int getIndexOf(SyntacticItem item) {
+		if (item instanceof Item && item.getHeap() == this) {
+			return ((Item) item).index;
+		}
+		throw new IllegalArgumentException("invalid syntactic item");
+	}
+
+	/**
+	 * Get the first parent of a given item matching a given kind. Since views
+	 * are untyped, the kind of each item is determined by the schema and the
+	 * parent returned is constructed using <code>materialize()</code>.
+	 */
+	@Override
+	public <T extends SyntacticItem> T getParent(SyntacticItem child, Class<T> kind) {
+		int index = getIndexOf(child);
+		indexParents();
+		for (int i = parentOffsets[index]; i != parentOffsets[index + 1]; ++i) {
+			if (isInstance(kind, parents[i])) {
+				return kind.cast(materialize(parents[i]));
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Get the first ancestor of a given item matching a given kind. As for
+	 * <code>getParent()</code>, the ancestor returned is constructed using
+	 * <code>materialize()</code>.
+	 */
+	@Override
+	public <T extends SyntacticItem> T getAncestor(SyntacticItem child, Class<T> kind) {
+		int ancestor = getAncestor(getIndexOf(child), kind);
+		return ancestor < 0 ? null : kind.cast(materialize(ancestor));
+	}
+
+	@Override
+	public SyntacticHeap getParent() {
+		return null;
+	}
+
+	// ======================================================================
+	// Materialisation
+	// ======================================================================
+
+	/**
+	 * Construct a typed item from the item at a given index, along with all
+	 * items reachable from it. The constructed items are not allocated to any
+	 * heap.
+	 *
+	 * @param index
+	 * @return
+	 */
+	public SyntacticItem materialize(int index) {
+		check(index);
+		return materialize(index, new HashMap<>());
+	}
+
+	/**
+	 * Construct typed items from every item in this heap, such that the ith
+	 * item returned corresponds to the ith item of this heap. The constructed
+	 * items are not allocated to any heap.
+	 *
+	 * @return
+	 */
+	public SyntacticItem[] materialize() {
+		HashMap<Integer, SyntacticItem> constructed = new HashMap<>();
+		SyntacticItem[] items = new SyntacticItem[size()];
+		for (int i = 0; i != items.length; ++i) {
+			items[i] = materialize(i, constructed);
+		}
+		return items;
+	}
+
+	/**
+	 * Construct a typed item from the item at a given index, along with all
+	 * items reachable from it which have not already been constructed. Items
+	 * are constructed before their operands, to allow for cyclic structures.
+	 * An explicit stack is used, rather than recursion, so that items of any
+	 * depth can be constructed.
+	 *
+	 * @param index
+	 * @param items
+	 *            The items constructed so far, indexed by their index in this
+	 *            heap.
+	 * @return
+	 */
+	private SyntacticItem materialize(int index, Map<Integer, SyntacticItem> items) {
+		SyntacticItem item = items.get(index);
+		if (item != null) {
+			return item;
+		}
+		item = construct(index, items);
+		ArrayDeque<int[]> stack = new ArrayDeque<>();
+		stack.push(new int[] { index, 0 });
+		while (!stack.isEmpty()) {
+			int[] frame = stack.peek();
+			if (frame[1] == getOperandCount(frame[0])) {
+				stack.pop();
+				continue;
+			}
+			int ith = frame[1]++;
+			int operand = getOperand(frame[0], ith);
+			if (operand >= 0) {
+				SyntacticItem child = items.get(operand);
+				if (child == null) {
+					child = construct(operand, items);
+					stack.push(new int[] { operand, 0 });
+				}
+				items.get(frame[0]).setOperand(ith, child);
+			}
+		}
+		return item;
+	}
+
+	/**
+	 * Construct an empty typed item from the item at a given index.
+	 *
+	 * @param index
+	 * @param items
+	 * @return
+	 */
+	private SyntacticItem construct(int index, Map<Integer, SyntacticItem> items) {
+		int opcode = getOpcode(index);
+		SyntacticItem item = schema[opcode].construct(opcode, new SyntacticItem[getOperandCount(index)],
+				getData(index));
+		items.put(index, item);
+		return item;
+	}
+
+	// ======================================================================
+	// Helpers
+	// ======================================================================
+
+	protected void check(int index) {
+		if (index < 0 || index >= size()) {
+			throw new IndexOutOfBoundsException("invalid syntactic item (" + index + ")");
+		}
+	}
+
+	/**
+	 * Construct the index of parents, unless it is already up-to-date.
+	 */
+	private void indexParents() {
+		int n = size();
+		if (parentOffsets != null && parentOffsets.length == n + 1) {
+			return;
+		}
+		int[] offsets = new int[n + 1];
+		for (int i = 0; i != n; ++i) {
+			for (int j = 0; j != getOperandCount(i); ++j) {
+				int operand = getOperand(i, j);
+				if (operand >= 0) {
+					offsets[operand + 1]++;
+				}
+			}
+		}
+		for (int i = 0; i != n; ++i) {
+			offsets[i + 1] += offsets[i];
+		}
+		int[] next = Arrays.copyOf(offsets, n);
+		int[] ps = new int[offsets[n]];
+		for (int i = 0; i != n; ++i) {
+			for (int j = 0; j != getOperandCount(i); ++j) {
+				int operand = getOperand(i, j);
+				if (operand >= 0) {
+					ps[next[operand]++] = i;
+				}
+			}
+		}
+		this.parentOffsets = offsets;
+		this.parents = ps;
+	}
+
+	/**
+	 * Search for the first ancestor of a given item matching a given kind,
+	 * without following cross-references. Parents are searched depth-first
+	 * using an explicit stack, so that ancestors of any depth can be found.
+	 *
+	 * @param child
+	 * @param kind
+	 * @return The index of the ancestor, or <code>-1</code> if none exists.
+	 */
+	private int getAncestor(int child, Class<?> kind) {
+		if (isInstance(kind, child)) {
+			return child;
+		}
+		indexParents();
+		BitSet visited = new BitSet();
+		ArrayDeque<int[]> stack = new ArrayDeque<>();
+		stack.push(new int[] { child, parentOffsets[child] });
+		while (!stack.isEmpty()) {
+			int[] frame = stack.peek();
+			if (frame[1] == parentOffsets[frame[0] + 1]) {
+				stack.pop();
+				continue;
+			}
+			int parent = parents[frame[1]++];
+			if (!visited.get(parent) && !isInstance(AbstractCompilationUnit.Ref.class, parent)) {
+				visited.set(parent);
+				if (isInstance(kind, parent)) {
+					return parent;
+				}
+				stack.push(new int[] { parent, parentOffsets[parent] });
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Check whether the item at a given index would be an instance of a given
+	 * kind when constructed using the schema.
+	 *
+	 * @param kind
+	 * @param index
+	 * @return
+	 */
+	private boolean isInstance(Class<?> kind, int index) {
+		int opcode = getOpcode(index);
+		if (kinds[opcode] == null) {
+			SyntacticItem item = schema[opcode].construct(opcode, new SyntacticItem[getOperandCount(index)],
+					getData(index));
+			kinds[opcode] = item.getClass();
+		}
+		return kind.isAssignableFrom(kinds[opcode]);
+	}
+
+	/**
+	 * A lightweight view of an item in this heap, which simply records its
+	 * index.
+	 *
+	 * @author David J. Pearce
+	 *
+	 */
+	private final class Item implements SyntacticItem {
+		private final int index;
+
+		public Item(int index) {
+			this.index = index;
+		}
+
+		@Override
+		public List<Attribute> attributes() {
+			return Collections.emptyList();
+		}
+
+		@Override
+		public <T extends Attribute> T attribute(Class<T> c) {
+			return null;
+		}
+
+		@Override
+		public SyntacticHeap getHeap() {
+			return AbstractColumnarSyntacticHeap.this;
+		}
+
+		@Override
+		public void allocate(SyntacticHeap heap, int index) {
+			if (heap != AbstractColumnarSyntacticHeap.this || index != this.index) {
+				throw new IllegalArgumentException("item already allocated to different heap");
+			}
+		}
+
+		@Override
+		public int getOpcode() {
+			return AbstractColumnarSyntacticHeap.this.getOpcode(index);
+		}
+
+		@Override
+		public void setOpcode(int opcode) {
+			AbstractColumnarSyntacticHeap.this.setOpcode(index, opcode);
+		}
+
+		@Override
+		public int size() {
+			return getOperandCount(index);
+		}
+
+		@Override
+		public SyntacticItem get(int i) {
+			int operand = getOperand(index, i);
+			return operand < 0 ? null : new Item(operand);
+		}
+
+		@Override
+		public SyntacticItem[] getAll() {
+			SyntacticItem[] items = new SyntacticItem[size()];
+			for (int i = 0; i != items.length; ++i) {
+				items[i] = get(i);
+			}
+			return items;
+		}
+
+		@Override
+		public void setOperand(int ith, SyntacticItem child) {
+			if (ith < 0 || ith >= size()) {
+				throw new IndexOutOfBoundsException("invalid operand (" + ith + ")");
+			}
+			AbstractColumnarSyntacticHeap.this.setOperand(index, ith,
+					child == null ? -1 : getIndexOf(AbstractColumnarSyntacticHeap.this.allocate(child)));
+			// Rebuild the index of parents when next required
+			parentOffsets = null;
+		}
+
+		@Override
+		public int getIndex() {
+			return index;
+		}
+
+		@Override
+		public byte[] getData() {
+			return AbstractColumnarSyntacticHeap.this.getData(index);
+		}
+
+		@Override
+		public <T extends SyntacticItem> T getParent(Class<T> kind) {
+			return AbstractColumnarSyntacticHeap.this.getParent(this, kind);
+		}
+
+		@Override
+		public <T extends SyntacticItem> T getAncestor(Class<T> kind) {
+			return AbstractColumnarSyntacticHeap.this.getAncestor(this, kind);
+		}
+
+		/**
+		 * Construct a typed (and detached) item from this view using the schema.
+		 */
+		@Override
+		public SyntacticItem clone(SyntacticItem[] operands) {
+			int opcode = getOpcode();
+			return schema[opcode].construct(opcode, operands, getData());
+		}
+
+		@Override
+		public int compareTo(SyntacticItem other) {
+			int diff = getOpcode() - other.getOpcode();
+			if (diff != 0) {
+				return diff;
+			}
+			diff = size() - other.size();
+			if (diff != 0) {
+				return diff;
+			}
+			for (int i = 0; i != size(); ++i) {
+				SyntacticItem my_ith = get(i);
+				SyntacticItem other_ith = other.get(i);
+				if (my_ith == null || other_ith == null) {
+					if (my_ith != other_ith) {
+						return my_ith == null ? -1 : 1;
+					}
+				} else {
+					diff = my_ith.compareTo(other_ith);
+					if (diff != 0) {
+						return diff;
+					}
+				}
+			}
+			byte[] data = getData();
+			byte[] otherData = other.getData();
+			if (data == null || otherData == null) {
+				return data == otherData ? 0 : (data == null ? -1 : 1);
+			} else if (data.length != otherData.length) {
+				return data.length - otherData.length;
+			}
+			for (int i = 0; i != data.length; ++i) {
+				int c = Byte.compare(data[i], otherData[i]);
+				if (c != 0) {
+					return c;
+				}
+			}
+			return 0;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			return o instanceof Item && ((Item) o).getHeap() == getHeap() && ((Item) o).index == index;
+		}
+
+		@Override
+		public int hashCode() {
+			return index;
+		}
+
+		@Override
+		public String toString() {
+			String r = Integer.toString(getOpcode());
+			int n = size();
+			if (n > 0) {
+				r += "(";
+				for (int i = 0; i != n; ++i) {
+					if (i != 0) {
+						r += ", ";
+					}
+					int operand = getOperand(index, i);
+					r += operand < 0 ? "?" : Integer.toString(operand);
+				}
+				r += ")";
+			}
+			byte[] data = getData();
+			if (data != null) {
+				r += ":" + Arrays.toString(data);
+			}
+			return r;
+		}
+	}
+}
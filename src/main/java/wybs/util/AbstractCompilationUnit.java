@@ -18,6 +18,7 @@ import java.math.BigInteger;
 import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.function.Function;
@@ -53,6 +54,12 @@ public abstract class AbstractCompilationUnit<T extends CompilationUnit> extends
 
 	protected final Path.Entry<T> entry;
 
+	/**
+	 * Symbols interned in this heap, where each maps to itself. This is
+	 * constructed lazily, since items may be allocated during construction.
+	 */
+	private HashMap<Symbol, Symbol> symbols;
+
 	public AbstractCompilationUnit(Path.Entry<T> entry) {
 		this.entry = entry;
 	}
@@ -72,6 +79,33 @@ public abstract class AbstractCompilationUnit<T extends CompilationUnit> extends
 		return null;
 	}
 
+	@Override
+	protected SyntacticItem.Schema[] getItemSchema() {
+		return getSchema();
+	}
+
+	/**
+	 * Intern a given symbol in this heap, returning the unique symbol in this
+	 * heap with the same bytes.
+	 *
+	 * @param symbol
+	 * @return
+	 */
+	private Symbol intern(Symbol symbol) {
+		if (symbol.owner == this) {
+			return symbol;
+		} else if (symbols == null) {
+			symbols = new HashMap<>();
+		}
+		Symbol interned = symbols.get(symbol);
+		if (interned == null) {
+			interned = new Symbol(symbol.bytes, this);
+			interned.string = symbol.string;
+			symbols.put(interned, interned);
+		}
+		return interned;
+	}
+
 	/**
 	 * Represents a "backlink" or "crossref" in the tree. That is, a non-owning
 	 * reference which refers to another item. Copying a reference will not copy the
@@ -101,10 +135,10 @@ public abstract class AbstractCompilationUnit<T extends CompilationUnit> extends
 		}
 
 		@Override
-		public int hashCode() {
+		protected SyntacticItem[] getDigestOperands() {
 			// NOTE: whilst this is far from ideal it is necessary to break potential cycles
 			// in the object graph.
-			return 0;
+			return null;
 		}
 
 		@Override
@@ -253,6 +287,12 @@ public abstract class AbstractCompilationUnit<T extends CompilationUnit> extends
 	 *
 	 */
 	public static class Identifier extends AbstractSyntacticItem implements CompilationUnit.Identifier {
+		/**
+		 * The interned symbol for this identifier, which caches its decoded
+		 * string and hash. This is determined lazily for unallocated identifiers.
+		 */
+		private Symbol symbol;
+
 		public Identifier(String name) {
 			super(ITEM_ident, name.getBytes(StandardCharsets.UTF_8), new SyntacticItem[0]);
 		}
@@ -261,21 +301,116 @@ public abstract class AbstractCompilationUnit<T extends CompilationUnit> extends
 			super(ITEM_ident, bytes, new SyntacticItem[0]);
 		}
 
+		private Identifier(Symbol symbol) {
+			super(ITEM_ident, symbol.bytes, new SyntacticItem[0]);
+			this.symbol = symbol;
+		}
+
 		@Override
 		public String get() {
-			// FIXME: could cache this
-			return new String(data,StandardCharsets.UTF_8);
+			return symbol().toString();
+		}
+
+		@Override
+		public void allocate(SyntacticHeap heap, int index) {
+			super.allocate(heap, index);
+			if (heap instanceof AbstractCompilationUnit) {
+				// Share symbols with all identifiers in the heap
+				symbol = ((AbstractCompilationUnit<?>) heap).intern(symbol());
+				data = symbol.bytes;
+			}
 		}
 
 		@Override
 		public Identifier clone(SyntacticItem[] operands) {
-			return new Identifier(get());
+			return new Identifier(symbol());
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (o instanceof Identifier) {
+				Identifier i = (Identifier) o;
+				return getOpcode() == i.getOpcode() && symbol().equals(i.symbol());
+			} else {
+				return super.equals(o);
+			}
 		}
 
 		@Override
 		public String toString() {
 			return get();
 		}
+
+		private Symbol symbol() {
+			if (symbol == null || symbol.bytes != data) {
+				symbol = new Symbol(data, null);
+			}
+			return symbol;
+		}
+	}
+
+	/**
+	 * <p>
+	 * Represents a sequence of bytes shared by one or more identifiers or
+	 * strings, along with its decoded string and hash code. Symbols are interned
+	 * on a per-heap basis, such that all identifiers in a given heap with the
+	 * same bytes share the same symbol.
+	 * </p>
+	 * <p>
+	 * Two symbols from the same heap are equal only if they are the same
+	 * symbol. Thus, comparing identifiers within a heap requires only a
+	 * reference comparison.
+	 * </p>
+	 *
+	 * @author David J. Pearce
+	 *
+	 */
+	private static final class Symbol {
+		private final byte[] bytes;
+		private final int hash;
+		/**
+		 * The heap in which this symbol was interned (if any).
+		 */
+		private final SyntacticHeap owner;
+		/**
+		 * The decoded string, which is determined lazily.
+		 */
+		private String string;
+
+		public Symbol(byte[] bytes, SyntacticHeap owner) {
+			this.bytes = bytes;
+			this.hash = Arrays.hashCode(bytes);
+			this.owner = owner;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (o == this) {
+				return true;
+			} else if (o instanceof Symbol) {
+				Symbol s = (Symbol) o;
+				if (owner != null && owner == s.owner) {
+					// Symbols in the same heap are unique
+					return false;
+				}
+				return hash == s.hash && Arrays.equals(bytes, s.bytes);
+			}
+			return false;
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public String toString() {
+			String str = string;
+			if (str == null) {
+				string = str = new String(bytes, StandardCharsets.UTF_8);
+			}
+			return str;
+		}
 	}
 
 	/**
@@ -323,11 +458,11 @@ public abstract class AbstractCompilationUnit<T extends CompilationUnit> extends
 
 		@Override
 		public String toString() {
-			String r = get(0).get();
+			StringBuilder r = new StringBuilder(get(0).get());
 			for (int i = 1; i != size(); ++i) {
-				r += "::" + get(i).get();
+				r.append("::").append(get(i).get());
 			}
-			return r;
+			return r.toString();
 		}
 
 		private static Identifier[] path2ids(Path.ID id) {
@@ -434,21 +569,74 @@ public abstract class AbstractCompilationUnit<T extends CompilationUnit> extends
 
 
 		public static class Int extends Value {
+			/**
+			 * The value of this integer, when it fits in a <code>long</code>. This
+			 * avoids constructing a <code>BigInteger</code> for common cases,
+			 * such as offsets into source files.
+			 */
+			private final long value;
+
+			/**
+			 * Indicates whether or not this integer fits in a <code>long</code>.
+			 */
+			private final boolean small;
 
 			public Int(long value) {
-				this(BigInteger.valueOf(value));
+				super(ITEM_int, toByteArray(value));
+				this.value = value;
+				this.small = true;
 			}
 
 			public Int(BigInteger value) {
-				super(ITEM_int, value.toByteArray());
+				this(value.toByteArray());
 			}
 
 			public Int(byte[] bytes) {
 				super(ITEM_int, bytes);
+				if (bytes.length > 0 && bytes.length <= 8) {
+					this.small = true;
+					this.value = toLong(bytes);
+				} else if (bytes.length > 8 && new BigInteger(bytes).bitLength() < 64) {
+					// Non-minimal encoding of a small value
+					this.small = true;
+					this.value = new BigInteger(bytes).longValue();
+				} else {
+					this.small = false;
+					this.value = 0;
+				}
 			}
 
 			public BigInteger get() {
-				return new BigInteger(data);
+				if (small) {
+					return BigInteger.valueOf(value);
+				} else {
+					return new BigInteger(data);
+				}
+			}
+
+			/**
+			 * Check whether this integer fits in a <code>long</code>, in which case
+			 * <code>getLong()</code> can be used.
+			 *
+			 * @return
+			 */
+			public boolean isLong() {
+				return small;
+			}
+
+			/**
+			 * Get the value of this integer as a <code>long</code>, without
+			 * constructing a <code>BigInteger</code>.
+			 *
+			 * @return
+			 * @throws ArithmeticException
+			 *             if this integer does not fit in a <code>long</code>.
+			 */
+			public long getLong() {
+				if (!small) {
+					throw new ArithmeticException("integer out of long range");
+				}
+				return value;
 			}
 
 			@Override
@@ -458,28 +646,82 @@ public abstract class AbstractCompilationUnit<T extends CompilationUnit> extends
 
 			@Override
 			public Int clone(SyntacticItem[] operands) {
-				return new Int(get());
+				return small ? new Int(value) : new Int(get());
 			}
 
 			@Override
 			public String toString() {
-				return get().toString();
+				return small ? Long.toString(value) : get().toString();
+			}
+
+			/**
+			 * Encode a given value using the minimal two's-complement
+			 * representation, as for <code>BigInteger.toByteArray()</code>.
+			 *
+			 * @param value
+			 * @return
+			 */
+			private static byte[] toByteArray(long value) {
+				int bits = 64 - Long.numberOfLeadingZeros(value < 0 ? ~value : value);
+				byte[] bytes = new byte[bits / 8 + 1];
+				for (int i = bytes.length - 1; i >= 0; --i) {
+					bytes[i] = (byte) value;
+					value >>= 8;
+				}
+				return bytes;
+			}
+
+			/**
+			 * Decode a (big-endian) two's-complement representation of at most
+			 * eight bytes.
+			 *
+			 * @param bytes
+			 * @return
+			 */
+			private static long toLong(byte[] bytes) {
+				// Sign extend from the first byte
+				long value = bytes[0];
+				for (int i = 1; i < bytes.length; ++i) {
+					value = (value << 8) | (bytes[i] & 0xFF);
+				}
+				return value;
 			}
 		}
 
 		public static class UTF8 extends Value {
+			/**
+			 * The interned symbol for this string, which caches its decoded
+			 * string and hash. This is determined lazily for unallocated strings.
+			 */
+			private Symbol symbol;
+
 			public UTF8(String str) {
-				super(ITEM_utf8, str.getBytes());
+				super(ITEM_utf8, str.getBytes(StandardCharsets.UTF_8));
 			}
 
 			public UTF8(byte[] bytes) {
 				super(ITEM_utf8, bytes);
 			}
 
+			private UTF8(Symbol symbol) {
+				super(ITEM_utf8, symbol.bytes);
+				this.symbol = symbol;
+			}
+
 			public byte[] get() {
 				return data;
 			}
 
+			@Override
+			public void allocate(SyntacticHeap heap, int index) {
+				super.allocate(heap, index);
+				if (heap instanceof AbstractCompilationUnit) {
+					// Share symbols with all strings in the heap
+					symbol = ((AbstractCompilationUnit<?>) heap).intern(symbol());
+					data = symbol.bytes;
+				}
+			}
+
 			@Override
 			public String unwrap() {
 				return toString();
@@ -487,15 +729,31 @@ public abstract class AbstractCompilationUnit<T extends CompilationUnit> extends
 
 			@Override
 			public UTF8 clone(SyntacticItem[] operands) {
-				return new UTF8(get());
+				return new UTF8(symbol());
+			}
+
+			@Override
+			public boolean equals(Object o) {
+				if (o instanceof UTF8) {
+					UTF8 u = (UTF8) o;
+					return getOpcode() == u.getOpcode() && symbol().equals(u.symbol());
+				} else {
+					return super.equals(o);
+				}
 			}
 
 			@Override
 			public String toString() {
-				return new String(get());
+				return symbol().toString();
 			}
-		}
 
+			private Symbol symbol() {
+				if (symbol == null || symbol.bytes != data) {
+					symbol = new Symbol(data, null);
+				}
+				return symbol;
+			}
+		}
 
 		public static class Array extends Value {
 
@@ -14,12 +14,15 @@
 package wybs.util;
 
 import java.io.PrintWriter;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.HashMap;
 import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.function.Consumer;
 
 import wybs.lang.Attribute;
 import wybs.lang.SyntacticHeap;
@@ -36,6 +39,92 @@ public abstract class AbstractSyntacticHeap implements SyntacticHeap {
 	 */
 	protected int root;
 
+	/**
+	 * Maps items to their indices in this heap. This is only used as a fallback
+	 * for items whose recorded index does not identify them in this heap, and is
+	 * constructed lazily. Only the first <code>indexed</code> items are
+	 * included.
+	 */
+	private IdentityHashMap<SyntacticItem, Integer> indices;
+
+	/**
+	 * The number of items included in the index map.
+	 */
+	private int indexed;
+
+	/**
+	 * Maps the index of each item to the indices of those items which refer to
+	 * it (i.e. its parents). Only the first <code>parentCounts[i]</code>
+	 * elements of <code>parents[i]</code> are used, and these are kept in
+	 * ascending order without duplicates. This is constructed lazily, and only
+	 * the operands of the first <code>parented</code> items are included.
+	 */
+	private int[][] parents;
+
+	/**
+	 * The number of parents recorded for each item.
+	 */
+	private int[] parentCounts;
+
+	/**
+	 * The number of items whose operands are included in the parent index.
+	 */
+	private int parented;
+
+	/**
+	 * Maps each opcode to the indices of all items with that opcode, in
+	 * ascending order. Only the first <code>opcodeCounts[i]</code> elements of
+	 * <code>opcodeItems[i]</code> are used. This is constructed lazily, and only
+	 * the first <code>opcoded</code> items are included.
+	 */
+	private int[][] opcodeItems;
+
+	/**
+	 * The number of items recorded for each opcode.
+	 */
+	private int[] opcodeCounts;
+
+	/**
+	 * The number of items included in the opcode index.
+	 */
+	private int opcoded;
+
+	/**
+	 * The classes of item observed for each opcode, along with the class
+	 * constructed by the schema (if known).
+	 */
+	private final HashMap<Integer, List<Class<?>>> opcodeKinds = new HashMap<>();
+
+	/**
+	 * Caches the opcodes which can correspond to a given kind of item. This is
+	 * cleared whenever a new class of item is observed.
+	 */
+	private final HashMap<Class<?>, int[]> kindOpcodes = new HashMap<>();
+
+	/**
+	 * Items which must be retained by <code>compact()</code>, even if they are
+	 * not reachable from the root.
+	 */
+	private final Map<SyntacticItem, SyntacticItem> pinned = new IdentityHashMap<>();
+
+	/**
+	 * Determines whether or not structurally equal items are shared when
+	 * allocated into this heap (i.e. hash-consing).
+	 */
+	private boolean hashConsing;
+
+	/**
+	 * Maps the structure of each internable item in this heap to the index of
+	 * that item. This is constructed lazily when hash-consing, and only the
+	 * first <code>interned</code> items are included.
+	 */
+	private HashMap<Key, Integer> internTable;
+
+	/**
+	 * The number of items included in the intern table.
+	 */
+	private int interned;
+
 	public AbstractSyntacticHeap() {
 
 	}
@@ -44,13 +133,14 @@ public abstract class AbstractSyntacticHeap implements SyntacticHeap {
 		// Copy over the root
 		this.root = heap.getRootItem().getIndex();
 		// Now, clone items from heap in here
-		Allocator allocator = new Allocator(this);
+		Session session = openSession(heap.size());
 		//
 		for (int i = 0; i != heap.size(); ++i) {
 			SyntacticItem oitem = heap.getSyntacticItem(i);
-			SyntacticItem item = clone(oitem, allocator.map);
-			allocator.allocate(item);
+			SyntacticItem item = clone(oitem, session.map);
+			session.allocate(item);
 		}
+		session.commit();
 	}
 
 	@Override
@@ -68,6 +158,129 @@ public abstract class AbstractSyntacticHeap implements SyntacticHeap {
 		this.root = allocate(item).getIndex();
 	}
 
+	/**
+	 * Check whether structurally equal items are shared when allocated into
+	 * this heap.
+	 *
+	 * @return
+	 */
+	public boolean isHashConsing() {
+		return hashConsing;
+	}
+
+	/**
+	 * Enable or disable hash-consing for this heap. When enabled, an item
+	 * allocated into this heap is shared with any existing item of the same
+	 * kind with the same opcode, operands and data, rather than being copied.
+	 * This does not affect items already in the heap, though they will be
+	 * shared with items subsequently allocated.
+	 *
+	 * @param flag
+	 */
+	public void setHashConsing(boolean flag) {
+		this.hashConsing = flag;
+	}
+
+	/**
+	 * Ensure a given item (and everything reachable from it) is retained when
+	 * this heap is compacted, even if it is not reachable from the root.
+	 *
+	 * @param item
+	 */
+	public void pin(SyntacticItem item) {
+		pinned.put(item, item);
+	}
+
+	/**
+	 * Allow a previously pinned item to be removed when this heap is compacted
+	 * (assuming it is not reachable from the root).
+	 *
+	 * @param item
+	 */
+	public void unpin(SyntacticItem item) {
+		pinned.remove(item);
+	}
+
+	/**
+	 * <p>
+	 * Remove all items from this heap which are not reachable from the root,
+	 * or from any pinned item. Such garbage typically arises from rewriting
+	 * items (e.g. via <code>substitute()</code>). The remaining items are
+	 * renumbered densely, whilst preserving their relative order, such that
+	 * operands continue to refer to the same items.
+	 * </p>
+	 * <p>
+	 * <b>NOTE:</b> the index of any item may change as a result of compaction.
+	 * Therefore, indices obtained beforehand should not be used afterwards.
+	 * </p>
+	 *
+	 * @return The number of items removed.
+	 */
+	public int compact() {
+		int size = syntacticItems.size();
+		BitSet reachable = new BitSet(size);
+		ArrayList<Integer> worklist = new ArrayList<>();
+		if (size > 0) {
+			worklist.add(root);
+		}
+		for (SyntacticItem item : pinned.keySet()) {
+			int index = getOwnIndex(item);
+			if (index >= 0) {
+				worklist.add(index);
+			}
+		}
+		// Mark all reachable items
+		while (!worklist.isEmpty()) {
+			int index = worklist.remove(worklist.size() - 1);
+			if (!reachable.get(index)) {
+				reachable.set(index);
+				SyntacticItem item = syntacticItems.get(index);
+				for (int i = 0; i != item.size(); ++i) {
+					int operand = getOwnIndex(item.get(i));
+					if (operand >= 0 && !reachable.get(operand)) {
+						worklist.add(operand);
+					}
+				}
+			}
+		}
+		int count = reachable.cardinality();
+		if (count == size) {
+			// Nothing to remove
+			return 0;
+		}
+		// Renumber reachable items
+		SyntacticItem rootItem = size > 0 ? syntacticItems.get(root) : null;
+		ArrayList<SyntacticItem> items = new ArrayList<>(count);
+		for (int i = reachable.nextSetBit(0); i >= 0; i = reachable.nextSetBit(i + 1)) {
+			SyntacticItem item = syntacticItems.get(i);
+			item.allocate(this, items.size());
+			items.add(item);
+		}
+		syntacticItems.clear();
+		syntacticItems.addAll(items);
+		syntacticItems.trimToSize();
+		if (rootItem != null) {
+			root = rootItem.getIndex();
+		}
+		// Reset all indices, since these are now stale
+		indices = null;
+		parents = null;
+		parentCounts = null;
+		internTable = null;
+		opcodeItems = null;
+		return size - count;
+	}
+
+	/**
+	 * Get statistics about the items in this heap, such as the number of items
+	 * of each kind, their estimated memory usage and how many are garbage.
+	 *
+	 * @return
+	 */
+	public SyntacticHeapStatistics getStatistics() {
+		return new SyntacticHeapStatistics(this, getItemSchema());
+	}
+
 	@Override
 	public SyntacticItem getSyntacticItem(int index) {
 		return syntacticItems.get(index);
@@ -75,23 +288,98 @@ public abstract class AbstractSyntacticHeap implements SyntacticHeap {
 
 	@Override
 	public int getIndexOf(SyntacticItem item) {
-		for (int i = 0; i != syntacticItems.size(); ++i) {
-			if (syntacticItems.get(i) == item) {
-				return i;
-			}
+		// Items allocated to this heap record their own index, so check this
+		// first.
+		int own = getOwnIndex(item);
+		if (own >= 0) {
+			return own;
 		}
-		throw new IllegalArgumentException("invalid syntactic item");
+		// Item is foreign, or its recorded index is stale. Therefore, fall back
+		// to looking it up.
+		Integer index = lookupIndexOf(item);
+		if (index == null) {
+			throw new IllegalArgumentException("invalid syntactic item");
+		}
+		return index;
 	}
 
+	/**
+	 * Get all items in this heap of a given kind, in the order they occur in
+	 * the heap. Only those opcodes which can correspond to the given kind are
+	 * considered and, hence, this takes time proportional to the number of
+	 * matching items.
+	 *
+	 * @param kind
+	 * @return
+	 */
 	public <T extends SyntacticItem> List<T> getSyntacticItems(Class<T> kind) {
 		ArrayList<T> matches = new ArrayList<>();
-		for (int i = 0; i != syntacticItems.size(); ++i) {
-			SyntacticItem item = syntacticItems.get(i);
-			if (kind.isInstance(item)) {
-				matches.add((T) item);
+		forEachSyntacticItem(kind, matches::add);
+		return matches;
+	}
+
+	/**
+	 * Apply a given action to every item in this heap of a given kind, in the
+	 * order they occur in the heap. This avoids constructing a list of matching
+	 * items. The heap should not be modified by the action.
+	 *
+	 * @param kind
+	 * @param action
+	 */
+	public <T extends SyntacticItem> void forEachSyntacticItem(Class<T> kind, Consumer<? super T> action) {
+		updateOpcodeIndex();
+		int[] opcodes = getOpcodes(kind);
+		if (opcodes.length == 1) {
+			int opcode = opcodes[0];
+			int[] items = opcodeItems[opcode];
+			for (int i = 0; i != opcodeCounts[opcode]; ++i) {
+				apply(syntacticItems.get(items[i]), kind, action);
+			}
+		} else if (opcodes.length > 1) {
+			// Merge the (sorted) items of each opcode to preserve heap order
+			int[] cursors = new int[opcodes.length];
+			while (true) {
+				int next = -1;
+				for (int i = 0; i != opcodes.length; ++i) {
+					int opcode = opcodes[i];
+					if (cursors[i] < opcodeCounts[opcode]
+							&& (next < 0 || opcodeItems[opcode][cursors[i]] < opcodeItems[opcodes[next]][cursors[next]])) {
+						next = i;
+					}
+				}
+				if (next < 0) {
+					break;
+				}
+				apply(syntacticItems.get(opcodeItems[opcodes[next]][cursors[next]++]), kind, action);
 			}
 		}
-		return matches;
+	}
+
+	/**
+	 * Get the opcodes of all items in this heap which may be instances of a
+	 * given kind. This is determined from the schema (if known) and the classes
+	 * of items actually allocated in this heap.
+	 *
+	 * @param kind
+	 * @return
+	 */
+	public int[] getOpcodes(Class<?> kind) {
+		updateOpcodeIndex();
+		int[] opcodes = kindOpcodes.get(kind);
+		if (opcodes == null) {
+			opcodes = new int[0];
+			for (Map.Entry<Integer, List<Class<?>>> e : opcodeKinds.entrySet()) {
+				for (Class<?> c : e.getValue()) {
+					if (kind.isAssignableFrom(c)) {
+						opcodes = Arrays.copyOf(opcodes, opcodes.length + 1);
+						opcodes[opcodes.length - 1] = e.getKey();
+						break;
+					}
+				}
+			}
+			kindOpcodes.put(kind, opcodes);
+		}
+		return opcodes;
 	}
 
 	/**
@@ -104,14 +392,19 @@ public abstract class AbstractSyntacticHeap implements SyntacticHeap {
 	 */
 	@Override
 	public <T extends SyntacticItem> T getParent(SyntacticItem child, Class<T> kind) {
-		// FIXME: this could be optimised a *lot*
-		for (int i = 0; i != syntacticItems.size(); ++i) {
-			SyntacticItem parent = syntacticItems.get(i);
-			if(kind.isInstance(parent)) {
-				for(int j=0;j!=parent.size();++j) {
-					if(parent.get(j) == child) {
-						return (T) parent;
-					}
+		int index = getOwnIndex(child);
+		if (index >= 0) {
+			for (int i = 0, n = getParentCount(index); i != n; ++i) {
+				SyntacticItem item = syntacticItems.get(parents[index][i]);
+				if (kind.isInstance(item)) {
+					return kind.cast(item);
+				}
+			}
+		} else {
+			// Not allocated to this heap, so search every item
+			for (SyntacticItem item : syntacticItems) {
+				if (kind.isInstance(item) && refersTo(item, child)) {
+					return kind.cast(item);
 				}
 			}
 		}
@@ -119,10 +412,12 @@ public abstract class AbstractSyntacticHeap implements SyntacticHeap {
 		return null;
 	}
 
-
 	/**
 	 * Get first ancestor of a syntactic item matching the given kind. If no item
-	 * was found, then null is returned.
+	 * was found, then null is returned. Ancestors are searched depth-first
+	 * using an explicit worklist, rather than recursion, so that ancestors of
+	 * any depth can be found. Items whose ancestors have already been searched
+	 * are not searched again.
 	 *
 	 * @param child
 	 * @param kind
@@ -130,27 +425,49 @@ public abstract class AbstractSyntacticHeap implements SyntacticHeap {
 	 */
 	@Override
 	public <T extends SyntacticItem> T getAncestor(SyntacticItem child, Class<T> kind) {
-		// FIXME: this could be optimised a *lot*
 		if (kind.isInstance(child)) {
-			return (T) child;
+			return kind.cast(child);
+		}
+		ArrayList<Integer> worklist = new ArrayList<>();
+		int index = getOwnIndex(child);
+		if (index >= 0) {
+			addParents(index, worklist);
 		} else {
-			for (int i = 0; i != syntacticItems.size(); ++i) {
-				SyntacticItem parent = syntacticItems.get(i);
-				for (int j = 0; j != parent.size(); ++j) {
-					// Don't follow cross-references
-					if (parent.get(j) == child && !(parent instanceof AbstractCompilationUnit.Ref)) {
-						// FIXME: this is not specifically efficient. It would
-						// be helpful if SyntacticItems actually contained
-						// references to their parent items.
-						T tmp = getAncestor(parent, kind);
-						if (tmp != null) {
-							return tmp;
-						}
-					}
+			// Not allocated to this heap, so search every item
+			for (int i = syntacticItems.size() - 1; i >= 0; --i) {
+				if (refersTo(syntacticItems.get(i), child)) {
+					worklist.add(i);
 				}
 			}
-			// no match
-			return null;
+		}
+		BitSet visited = new BitSet();
+		while (!worklist.isEmpty()) {
+			int parent = worklist.remove(worklist.size() - 1);
+			SyntacticItem item = syntacticItems.get(parent);
+			// Don't follow cross-references
+			if (!(item instanceof AbstractCompilationUnit.Ref) && !visited.get(parent)) {
+				visited.set(parent);
+				if (kind.isInstance(item)) {
+					return kind.cast(item);
+				}
+				addParents(parent, worklist);
+			}
+		}
+		// no match
+		return null;
+	}
+
+	/**
+	 * Helper for the above, which adds the parents of a given item onto the
+	 * worklist in descending order, such that they are searched in ascending
+	 * order.
+	 *
+	 * @param child
+	 * @param worklist
+	 */
+	private void addParents(int child, ArrayList<Integer> worklist) {
+		for (int i = getParentCount(child) - 1; i >= 0; --i) {
+			worklist.add(parents[child][i]);
 		}
 	}
 
@@ -159,6 +476,38 @@ public abstract class AbstractSyntacticHeap implements SyntacticHeap {
 		return (T) new Allocator(this).allocate(item);
 	}
 
+	/**
+	 * Begin a session for allocating many items into this heap. Unlike
+	 * <code>allocate()</code>, a session remembers every item it has allocated
+	 * and, hence, substructure shared between items allocated separately is
+	 * allocated only once. The heap must not be modified by other means whilst
+	 * the session is open.
+	 *
+	 * @param capacity
+	 *            The expected number of items to be allocated, which is used to
+	 *            pre-size this heap.
+	 * @return
+	 */
+	public Session openSession(int capacity) {
+		return new Session(this, capacity);
+	}
+
+	/**
+	 * Discard all items from a given index onwards. This is only safe when no
+	 * retained item refers to a discarded item.
+	 *
+	 * @param size
+	 */
+	private void truncate(int size) {
+		syntacticItems.subList(size, syntacticItems.size()).clear();
+		// Reset all indices, since these may refer to discarded items
+		indices = null;
+		parents = null;
+		parentCounts = null;
+		internTable = null;
+		opcodeItems = null;
+	}
+
 	public void print(PrintWriter out) {
 		String lenStr = Integer.toString(syntacticItems.size());
 		for (int i = 0; i != syntacticItems.size(); ++i) {
@@ -212,6 +561,354 @@ public abstract class AbstractSyntacticHeap implements SyntacticHeap {
 	// HELPERS
 	// ========================================================================
 
+	/**
+	 * Get the schema describing the items of this heap, if known. This is used
+	 * to determine which opcodes correspond to which kinds of item.
+	 *
+	 * @return The schema, or <code>null</code> if not known.
+	 */
+	protected SyntacticItem.Schema[] getItemSchema() {
+		return null;
+	}
+
+	/**
+	 * Extend the opcode index to include any items allocated since it was last
+	 * used.
+	 */
+	private void updateOpcodeIndex() {
+		if (opcodeItems == null || opcoded > syntacticItems.size()) {
+			opcodeItems = new int[0][];
+			opcodeCounts = new int[0];
+			opcoded = 0;
+		}
+		for (; opcoded < syntacticItems.size(); ++opcoded) {
+			SyntacticItem item = syntacticItems.get(opcoded);
+			int opcode = item.getOpcode();
+			if (opcode >= opcodeCounts.length) {
+				int length = Math.max(opcode + 1, Math.max(16, opcodeCounts.length * 2));
+				opcodeItems = Arrays.copyOf(opcodeItems, length);
+				opcodeCounts = Arrays.copyOf(opcodeCounts, length);
+			}
+			int[] items = opcodeItems[opcode];
+			int count = opcodeCounts[opcode];
+			if (items == null) {
+				items = opcodeItems[opcode] = new int[4];
+				addKind(opcode, getSchemaKind(opcode));
+			} else if (count == items.length) {
+				items = opcodeItems[opcode] = Arrays.copyOf(items, count * 2);
+			}
+			items[count] = opcoded;
+			opcodeCounts[opcode] = count + 1;
+			addKind(opcode, item.getClass());
+		}
+	}
+
+	/**
+	 * Update the opcode index to reflect that the opcode of a given item has
+	 * changed. This is called by an item allocated to this heap whenever its
+	 * opcode is updated.
+	 *
+	 * @param item
+	 */
+	void updateOpcode(SyntacticItem item) {
+		if (opcodeItems != null && getOwnIndex(item) >= 0) {
+			// Rebuild the index when next required
+			opcodeItems = null;
+		}
+	}
+
+	/**
+	 * Record that a given class of item has been observed for a given opcode.
+	 *
+	 * @param opcode
+	 * @param kind
+	 */
+	private void addKind(int opcode, Class<?> kind) {
+		if (kind != null) {
+			List<Class<?>> kinds = opcodeKinds.computeIfAbsent(opcode, k -> new ArrayList<>(1));
+			if (!kinds.contains(kind)) {
+				kinds.add(kind);
+				kindOpcodes.clear();
+			}
+		}
+	}
+
+	/**
+	 * Determine the class of item constructed by the schema for a given opcode.
+	 * This is done by constructing a "probe" item with empty operands and data.
+	 *
+	 * @param opcode
+	 * @return The class of item, or <code>null</code> if it cannot be
+	 *         determined.
+	 */
+	private Class<?> getSchemaKind(int opcode) {
+		SyntacticItem.Schema[] schema = getItemSchema();
+		if (schema == null || opcode >= schema.length || schema[opcode] == null) {
+			return null;
+		}
+		SyntacticItem.Schema s = schema[opcode];
+		int operands = s.getOperandLayout() == SyntacticItem.Operands.MANY ? 0 : s.getOperandLayout().ordinal();
+		int data = s.getDataLayout() == SyntacticItem.Data.MANY ? 0 : s.getDataLayout().ordinal();
+		try {
+			return s.construct(opcode, new SyntacticItem[operands], new byte[data]).getClass();
+		} catch (RuntimeException e) {
+			return null;
+		}
+	}
+
+	private static <T extends SyntacticItem> void apply(SyntacticItem item, Class<T> kind,
+			Consumer<? super T> action) {
+		if (kind.isInstance(item)) {
+			action.accept(kind.cast(item));
+		}
+	}
+
+	/**
+	 * Determine whether a given item can be shared with any other structurally
+	 * equal item. Items whose identity matters (e.g. references) cannot be
+	 * shared, and neither can items with attributes since these would otherwise
+	 * be lost.
+	 *
+	 * @param item
+	 * @return
+	 */
+	protected boolean isInternable(SyntacticItem item) {
+		return item instanceof AbstractSyntacticItem && !(item instanceof AbstractCompilationUnit.Ref)
+				&& item.attributes().isEmpty();
+	}
+
+	/**
+	 * Find an item in this heap which is structurally equal to a given item,
+	 * whose operands are already allocated to this heap. If no such item exists,
+	 * the given item is recorded (assuming it is subsequently allocated to this
+	 * heap).
+	 *
+	 * @param item
+	 * @return
+	 */
+	private SyntacticItem intern(SyntacticItem item) {
+		if (internTable == null || interned > syntacticItems.size()) {
+			internTable = new HashMap<>();
+			interned = 0;
+		}
+		// Extend table to cover any newly allocated items
+		for (; interned < syntacticItems.size(); ++interned) {
+			SyntacticItem existing = syntacticItems.get(interned);
+			Key key = getKey(existing);
+			if (key != null && isInternable(existing)) {
+				internTable.putIfAbsent(key, interned);
+			}
+		}
+		Key key = getKey(item);
+		Integer index = internTable.get(key);
+		if (index != null) {
+			SyntacticItem existing = syntacticItems.get(index);
+			// Sanity check existing item has not been modified since
+			if (key.equals(getKey(existing))) {
+				return existing;
+			}
+		}
+		internTable.put(key, syntacticItems.size());
+		return null;
+	}
+
+	/**
+	 * Construct the key describing the structure of a given item, or
+	 * <code>null</code> if one of its operands is not allocated to this heap.
+	 *
+	 * @param item
+	 * @return
+	 */
+	private Key getKey(SyntacticItem item) {
+		int[] operands = new int[item.size()];
+		for (int i = 0; i != operands.length; ++i) {
+			SyntacticItem operand = item.get(i);
+			if (operand == null) {
+				operands[i] = -1;
+			} else if ((operands[i] = getOwnIndex(operand)) < 0) {
+				return null;
+			}
+		}
+		return new Key(item.getClass(), item.getOpcode(), operands, item.getData());
+	}
+
+	/**
+	 * Get the number of items which refer to the item at a given index. The
+	 * indices of these items are the first that many elements of
+	 * <code>parents[child]</code>, in ascending order. The parent index is
+	 * extended as necessary to include any items allocated since it was last
+	 * used.
+	 *
+	 * @param child
+	 * @return
+	 */
+	private int getParentCount(int child) {
+		if (parents == null || parented > syntacticItems.size()) {
+			parents = new int[syntacticItems.size()][];
+			parentCounts = new int[syntacticItems.size()];
+			parented = 0;
+		}
+		for (; parented < syntacticItems.size(); ++parented) {
+			SyntacticItem item = syntacticItems.get(parented);
+			for (int i = 0; i != item.size(); ++i) {
+				addParent(item.get(i), parented);
+			}
+		}
+		return child < parentCounts.length ? parentCounts[child] : 0;
+	}
+
+	/**
+	 * Update the parent index to reflect that an operand of a given item has
+	 * changed. This is called by an item allocated to this heap whenever one of
+	 * its operands is updated.
+	 *
+	 * @param item
+	 * @param before
+	 *            The previous operand (which may be <code>null</code>).
+	 * @param after
+	 *            The new operand (which may be <code>null</code>).
+	 */
+	void updateParents(SyntacticItem item, SyntacticItem before, SyntacticItem after) {
+		int index = getOwnIndex(item);
+		// Items not yet included will be indexed when next required
+		if (parents != null && index >= 0 && index < parented && before != after) {
+			if (!refersTo(item, before)) {
+				removeParent(before, index);
+			}
+			addParent(after, index);
+		}
+	}
+
+	/**
+	 * Clear the cached digests of all items which refer (directly or
+	 * indirectly) to a given item, since these depend upon its digest. This is
+	 * called by an item allocated to this heap whenever its digest is
+	 * invalidated. Since the digests of items referring to an item whose digest
+	 * is unknown are also unknown, the search stops at any such item.
+	 *
+	 * @param item
+	 */
+	void invalidateDigests(SyntacticItem item) {
+		int index = getOwnIndex(item);
+		if (index < 0) {
+			return;
+		}
+		ArrayList<Integer> worklist = new ArrayList<>();
+		worklist.add(index);
+		while (!worklist.isEmpty()) {
+			int child = worklist.remove(worklist.size() - 1);
+			for (int i = 0, n = getParentCount(child); i != n; ++i) {
+				int parent = parents[child][i];
+				SyntacticItem p = syntacticItems.get(parent);
+				if (p instanceof AbstractSyntacticItem && ((AbstractSyntacticItem) p).clearDigest()) {
+					worklist.add(parent);
+				}
+			}
+		}
+	}
+
+	private void addParent(SyntacticItem child, int parent) {
+		int index = getOwnIndex(child);
+		if (index < 0) {
+			return;
+		} else if (index >= parentCounts.length) {
+			int length = Math.max(index + 1, parentCounts.length * 2);
+			parents = Arrays.copyOf(parents, length);
+			parentCounts = Arrays.copyOf(parentCounts, length);
+		}
+		int[] ps = parents[index];
+		int count = parentCounts[index];
+		// Parents are kept sorted, and are almost always added in ascending
+		// order
+		int i = ps == null ? -1 : Arrays.binarySearch(ps, 0, count, parent);
+		if (i >= 0) {
+			return;
+		} else if (ps == null) {
+			ps = parents[index] = new int[1];
+		} else if (count == ps.length) {
+			ps = parents[index] = Arrays.copyOf(ps, count * 2);
+		}
+		i = -(i + 1);
+		System.arraycopy(ps, i, ps, i + 1, count - i);
+		ps[i] = parent;
+		parentCounts[index] = count + 1;
+	}
+
+	private void removeParent(SyntacticItem child, int parent) {
+		int index = getOwnIndex(child);
+		if (index >= 0 && index < parentCounts.length) {
+			int[] ps = parents[index];
+			int count = parentCounts[index];
+			int i = ps == null ? -1 : Arrays.binarySearch(ps, 0, count, parent);
+			if (i >= 0) {
+				System.arraycopy(ps, i + 1, ps, i, count - i - 1);
+				parentCounts[index] = count - 1;
+			}
+		}
+	}
+
+	private static boolean refersTo(SyntacticItem parent, SyntacticItem child) {
+		for (int i = 0; i != parent.size(); ++i) {
+			if (parent.get(i) == child) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Get the index of an item allocated to this heap, as recorded in the item
+	 * itself.
+	 *
+	 * @param item
+	 * @return The index of the item, or <code>-1</code> if it is not allocated
+	 *         to this heap.
+	 */
+	private int getOwnIndex(SyntacticItem item) {
+		if (item != null && item.getHeap() == this) {
+			int index = item.getIndex();
+			if (index >= 0 && index < syntacticItems.size() && syntacticItems.get(index) == item) {
+				return index;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Lookup the index of a given item using the index map, extending it to
+	 * cover any items allocated since it was last used. Since subclasses may
+	 * update the list of items directly, the map is rebuilt from scratch if it
+	 * is found to be stale.
+	 *
+	 * @param item
+	 * @return The index of the item, or <code>null</code> if it is not in this
+	 *         heap.
+	 */
+	private Integer lookupIndexOf(SyntacticItem item) {
+		boolean rebuilt = false;
+		if (indices == null || indexed > syntacticItems.size()) {
+			indices = new IdentityHashMap<>();
+			indexed = 0;
+			rebuilt = true;
+		}
+		while (true) {
+			// Extend map to cover any newly allocated items
+			for (; indexed < syntacticItems.size(); ++indexed) {
+				indices.putIfAbsent(syntacticItems.get(indexed), indexed);
+			}
+			Integer index = indices.get(item);
+			if (index != null && syntacticItems.get(index) == item) {
+				return index;
+			} else if (rebuilt) {
+				return null;
+			}
+			// Map may be stale, so rebuild it
+			indices = new IdentityHashMap<>();
+			indexed = 0;
+			rebuilt = true;
+		}
+	}
+
 	/**
 	 * Recursively copy this syntactic item. Observe the resulting cloned
 	 * syntactic item is *not* allocated to any heap, and this must be done
@@ -224,50 +921,18 @@ public abstract class AbstractSyntacticHeap implements SyntacticHeap {
 	 * @return
 	 */
 	private static <T extends SyntacticItem> T clone(T item, Map<SyntacticItem, SyntacticItem> mapping) {
-		SyntacticItem clonedItem = mapping.get(item);
-		if (clonedItem == null) {
-			// Item not previously cloned. Therefore, first create new item
-			SyntacticItem[] operands = new SyntacticItem[item.size()];
-			for (int i = 0; i != operands.length; ++i) {
-				SyntacticItem operand = item.get(i);
-				if (operand != null) {
-					operands[i] = clone(operand, mapping);
-				}
-			}
-			// Now, create new item and store that for later.
-			clonedItem = item.clone(operands);
-			mapping.put(item, clonedItem);
-		}
-		return (T) clonedItem;
+		return new SyntacticItemRewriter().setDefault((i, operands) -> i.clone(operands.clone())).apply(item,
+				mapping);
 	}
 
 	public static <T extends SyntacticItem> T cloneOnly(T item, Map<SyntacticItem, SyntacticItem> mapping, Class<?> clazz) {
-		SyntacticItem clonedItem = mapping.get(item);
-		if (clonedItem == null) {
-			// Item not previously cloned. Therefore, first create new item
-			SyntacticItem[] operands = item.getAll();
-			SyntacticItem[] nOperands = operands;
-			if (operands != null) {
-				for (int i = 0; i != operands.length; ++i) {
-					SyntacticItem operand = operands[i];
-					if (operand != null) {
-						SyntacticItem nOperand = cloneOnly(operand, mapping,clazz);
-						if(nOperand != operand && operands == nOperands) {
-							nOperands = Arrays.copyOf(operands, operands.length);
-						}
-						nOperands[i] = nOperand;
-					}
-				}
-			}
-			// Now, create new item and store that for later.
-			if(nOperands != operands || clazz.isInstance(item)) {
-				clonedItem = item.clone(nOperands);
-				mapping.put(item, clonedItem);
+		return new SyntacticItemRewriter().setDefault((i, operands) -> {
+			if (clazz.isInstance(i)) {
+				return i.clone(operands.clone());
 			} else {
-				clonedItem = item;
+				return SyntacticItemRewriter.REBUILD.rewrite(i, operands);
 			}
-		}
-		return (T) clonedItem;
+		}).apply(item, mapping);
 	}
 
 	/**
@@ -300,97 +965,137 @@ public abstract class AbstractSyntacticHeap implements SyntacticHeap {
 	 * @return
 	 */
 	public static SyntacticItem substitute(SyntacticItem item, SyntacticItem from, SyntacticItem to) {
-		SyntacticItem nItem = substitute(item, from, to, new IdentityHashMap<>());
-		if(nItem != item) {
-			item.getHeap().allocate(nItem);
-		}
-		return nItem;
+		IdentityHashMap<SyntacticItem, SyntacticItem> substitutions = new IdentityHashMap<>();
+		substitutions.put(from, to);
+		return substitute(item, substitutions);
 	}
 
 	/**
-	 * Helper method for above.
+	 * Create a new syntactic item by applying several substitutions at once.
+	 * Every occurrence of an item which is a key in the given map (as
+	 * determined by reference, not structural, equality) is replaced by the
+	 * corresponding value. This is equivalent to, but more efficient than,
+	 * applying each substitution in turn (assuming no replacement contains the
+	 * item replaced by another). As for <code>substitute(item,from,to)</code>,
+	 * the original item is returned untouched if nothing is changed, and any
+	 * new items are allocated into the heap of the original item.
 	 *
-	 * @param mapping
-	 *            A mapping from the original syntactic items to the cloned
-	 *            syntactic items. This is necessary to preserve the aliasing
-	 *            structure in the resulting cloned item.
+	 * @param item
+	 *            The syntactic item we are currently substituting into
+	 * @param substitutions
+	 *            Maps each item to be replaced to its replacement.
+	 * @return
 	 */
-	private static SyntacticItem substitute(SyntacticItem item, SyntacticItem from, SyntacticItem to,
-			Map<SyntacticItem, SyntacticItem> mapping) {
-		SyntacticItem sItem = mapping.get(item);
-		if (sItem != null) {
-			// We've previously substituted this item already to produce a
-			// potentially updated item. Therefore, simply return that item to
-			// ensure the original aliasing structure of the ancestor(s) is
-			// properly preserved.
-			return sItem;
-		} else if (item == from) {
-			// We've matched the item being replaced, therefore return the item
-			// to which it is being replaced.
-			return to;
-		} else {
-			SyntacticItem nItem = item;
-			// We need to recursively descend into children of this item looking
-			// for the item to replace. The challenge here is that we need to
-			// ensure the original item is preserved as is if there is no
-			// change.
-			SyntacticItem[] children = item.getAll();
-			// Initially, this will alias children. In the event of a child
-			// which is actually updated, then this will refer to a new array.
-			// That will be the signal that we need to create a new item to
-			// return.
-			SyntacticItem[] nChildren = children;
-			if (children != null) {
-				for (int i = 0; i != children.length; ++i) {
-					SyntacticItem child = children[i];
-					// Check for null, since we don't want to try and substitute
-					// into null.
-					if (child != null) {
-						// Perform the substitution in the given child
-						SyntacticItem nChild = substitute(child, from, to, mapping);
-						// Check whether anything was actually changed by the
-						// substitution.
-						if (nChild != child && children == nChildren) {
-							// Yes, the child changed and we haven't already
-							// cloned the children array. Hence, we'd better
-							// clone it now to make sure that the original item
-							// is preserved.
-							nChildren = Arrays.copyOf(children, children.length);
-						}
-						nChildren[i] = nChild;
-					}
-				}
-				// Now, clone the original item if necessary. This is only
-				// necessary if the children array as been updated in some way.
-				if (children != nChildren) {
-					// Create the new item which, at this point, will be
-					// detached.
-					nItem = item.clone(nChildren);
-				}
-			}
-			mapping.put(item, nItem);
-			return nItem;
+	public static SyntacticItem substitute(SyntacticItem item,
+			Map<? extends SyntacticItem, ? extends SyntacticItem> substitutions) {
+		// Items being replaced are mapped to their replacements, and hence are
+		// neither rewritten nor descended into. Other items are only rebuilt if
+		// one or more children were changed.
+		IdentityHashMap<SyntacticItem, SyntacticItem> mapping = new IdentityHashMap<>(substitutions);
+		SyntacticItem nItem = new SyntacticItemRewriter().apply(item, mapping);
+		if(nItem != item) {
+			item.getHeap().allocate(nItem);
 		}
+		return nItem;
 	}
 
 	public static class Allocator implements SyntacticHeap.Allocator<AbstractSyntacticHeap> {
 		protected final AbstractSyntacticHeap heap;
 		protected final Map<SyntacticItem, SyntacticItem> map;
 
+		/**
+		 * Items whose children are currently being allocated when hash-consing.
+		 */
+		private final Map<SyntacticItem, SyntacticItem> active = new IdentityHashMap<>();
+
 		public Allocator(AbstractSyntacticHeap heap) {
 			this.heap = heap;
 			this.map = new IdentityHashMap<>();
 		}
 
+		protected Allocator(AbstractSyntacticHeap heap, int capacity) {
+			this.heap = heap;
+			this.map = new IdentityHashMap<>(capacity);
+		}
+
+		/**
+		 * Allocate an item into the heap, along with all children not already
+		 * allocated. Items are normally allocated before their children, though
+		 * when hash-consing internable items are allocated after their children.
+		 * An explicit stack is used, rather than recursion, so that items of any
+		 * depth can be allocated.
+		 */
 		@Override
 		public SyntacticItem allocate(SyntacticItem item) {
-			SyntacticHeap parent = item.getHeap();
+			SyntacticItem allocated = lookup(item);
+			if (allocated != null) {
+				return allocated;
+			}
+			ArrayDeque<Allocation> stack = new ArrayDeque<>();
+			Allocation root = start(item);
+			stack.push(root);
+			while (!stack.isEmpty()) {
+				Allocation frame = stack.peek();
+				if (frame.next < frame.item.size()) {
+					SyntacticItem child = frame.item.get(frame.next);
+					SyntacticItem nChild = child == null ? null : lookup(child);
+					if (child == null || nChild != null) {
+						assign(frame, nChild);
+					} else {
+						Allocation f = start(child);
+						if (f.nItem != null) {
+							// Child already allocated, so can assign immediately
+							assign(frame, f.nItem);
+						}
+						stack.push(f);
+					}
+				} else {
+					stack.pop();
+					if (frame.nItem == null) {
+						SyntacticItem nItem = finish(frame);
+						if (!stack.isEmpty()) {
+							assign(stack.peek(), nItem);
+						}
+					}
+				}
+			}
+			return map.get(item);
+		}
+
+		/**
+		 * Determine whether a given item is already allocated to the heap.
+		 *
+		 * @param item
+		 * @return The allocated item, or <code>null</code> if it has not been
+		 *         allocated.
+		 */
+		private SyntacticItem lookup(SyntacticItem item) {
 			SyntacticItem allocated = map.get(item);
 			if (allocated != null) {
 				return allocated;
-			} else if (parent == heap) {
+			} else if (item.getHeap() == heap) {
 				// Item already allocated to this heap, hence nothing to do.
 				return item;
+			} else {
+				return null;
+			}
+		}
+
+		/**
+		 * Begin allocating a given item. Unless hash-consing, the item is
+		 * allocated immediately (though its operands are not yet assigned).
+		 * Otherwise, allocation is deferred until its children are allocated.
+		 * Should a child (indirectly) refer back to an item being hash-consed,
+		 * then that occurrence is allocated without sharing in order to break
+		 * the cycle.
+		 *
+		 * @param item
+		 * @return
+		 */
+		private Allocation start(SyntacticItem item) {
+			if (heap.isHashConsing() && heap.isInternable(item) && !active.containsKey(item)) {
+				active.put(item, item);
+				return new Allocation(item, null);
 			} else {
 				// Determine index for allocation
 				int index = heap.size();
@@ -401,17 +1106,205 @@ public abstract class AbstractSyntacticHeap implements SyntacticHeap {
 				// ... and allocate item itself
 				nItem.allocate(heap, index);
 				map.put(item, nItem);
-				// Item not allocated to this heap. Therefore, recursively allocate
-				// all children.
-				for (int i = 0; i != nItem.size(); ++i) {
-					SyntacticItem child = item.get(i);
-					if (child != null) {
-						child = allocate(child);
-					}
-					nItem.setOperand(i, child);
+				return new Allocation(item, nItem);
+			}
+		}
+
+		private void assign(Allocation frame, SyntacticItem child) {
+			if (frame.nItem != null) {
+				frame.nItem.setOperand(frame.next, child);
+			} else {
+				frame.operands[frame.next] = child;
+			}
+			frame.next = frame.next + 1;
+		}
+
+		/**
+		 * Complete the allocation of an item being hash-consed, by sharing it with
+		 * any structurally equal item already in the heap.
+		 *
+		 * @param frame
+		 * @return
+		 */
+		private SyntacticItem finish(Allocation frame) {
+			SyntacticItem item = frame.item;
+			active.remove(item);
+			// Check whether item was allocated via a cycle
+			SyntacticItem nItem = map.get(item);
+			if (nItem == null) {
+				nItem = item.clone(frame.operands);
+				SyntacticItem existing = heap.intern(nItem);
+				if (existing != null) {
+					nItem = existing;
+				} else {
+					int index = heap.size();
+					heap.syntacticItems.add(nItem);
+					nItem.allocate(heap, index);
 				}
-				return nItem;
+				map.put(item, nItem);
+			}
+			return nItem;
+		}
+
+		/**
+		 * Records the progress made allocating a given item.
+		 */
+		private static final class Allocation {
+			private final SyntacticItem item;
+			/**
+			 * The allocated item, or <code>null</code> if allocation is deferred
+			 * until its children are allocated (i.e. when hash-consing).
+			 */
+			private final SyntacticItem nItem;
+			/**
+			 * The allocated operands, when allocation is deferred.
+			 */
+			private final SyntacticItem[] operands;
+			/**
+			 * The next operand to be allocated.
+			 */
+			private int next;
+
+			public Allocation(SyntacticItem item, SyntacticItem nItem) {
+				this.item = item;
+				this.nItem = nItem;
+				this.operands = nItem == null ? new SyntacticItem[item.size()] : null;
 			}
 		}
 	};
+
+	/**
+	 * <p>
+	 * An allocator which is used for many allocations, such as when generating
+	 * a large amount of code. Items allocated through a session are added to
+	 * the heap immediately, but only become permanent once the session is
+	 * committed. If the session is instead rolled back (or closed without being
+	 * committed) then every item it allocated is discarded, leaving the heap as
+	 * it was when the session was opened. For example:
+	 * </p>
+	 *
+	 * <pre>
+	 * try (AbstractSyntacticHeap.Session session = heap.openSession(n)) {
+	 * 	for (SyntacticItem item : items) {
+	 * 		session.allocate(item);
+	 * 	}
+	 * 	session.commit();
+	 * }
+	 * </pre>
+	 *
+	 * @author David J. Pearce
+	 *
+	 */
+	public static class Session extends Allocator implements AutoCloseable {
+		/**
+		 * The size of the heap when this session was opened.
+		 */
+		private final int mark;
+		/**
+		 * The expected size of the heap, used to detect allocations made
+		 * outside this session.
+		 */
+		private int end;
+		private boolean closed;
+
+		public Session(AbstractSyntacticHeap heap, int capacity) {
+			super(heap, capacity);
+			if (capacity < 0) {
+				throw new IllegalArgumentException("invalid capacity (" + capacity + ")");
+			}
+			this.mark = heap.size();
+			this.end = mark;
+			heap.syntacticItems.ensureCapacity(mark + capacity);
+		}
+
+		@Override
+		public SyntacticItem allocate(SyntacticItem item) {
+			check();
+			SyntacticItem nItem = super.allocate(item);
+			end = heap.size();
+			return nItem;
+		}
+
+		/**
+		 * Get the number of items added to the heap by this session.
+		 *
+		 * @return
+		 */
+		public int size() {
+			return end - mark;
+		}
+
+		/**
+		 * Retain all items allocated by this session, after which it cannot be
+		 * used further.
+		 */
+		public void commit() {
+			check();
+			closed = true;
+		}
+
+		/**
+		 * Discard all items allocated by this session, after which it cannot be
+		 * used further. Items previously returned by this session must not be
+		 * used afterwards.
+		 */
+		public void rollback() {
+			check();
+			heap.truncate(mark);
+			closed = true;
+		}
+
+		@Override
+		public void close() {
+			if (!closed) {
+				rollback();
+			}
+		}
+
+		private void check() {
+			if (closed) {
+				throw new IllegalStateException("allocation session closed");
+			} else if (heap.size() != end) {
+				throw new IllegalStateException("heap modified during allocation session");
+			}
+		}
+	}
+
+	/**
+	 * Describes the structure of an item for the purposes of hash-consing. Since
+	 * operands are always allocated first, they can be compared by index.
+	 *
+	 * @author David J. Pearce
+	 *
+	 */
+	private static final class Key {
+		private final Class<?> kind;
+		private final int opcode;
+		private final int[] operands;
+		private final byte[] data;
+		private final int hash;
+
+		public Key(Class<?> kind, int opcode, int[] operands, byte[] data) {
+			this.kind = kind;
+			this.opcode = opcode;
+			this.operands = operands;
+			this.data = data;
+			this.hash = opcode ^ Arrays.hashCode(operands) ^ Arrays.hashCode(data);
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (o instanceof Key) {
+				Key k = (Key) o;
+				return hash == k.hash && opcode == k.opcode && kind == k.kind && Arrays.equals(operands, k.operands)
+						&& Arrays.equals(data, k.data);
+			}
+			return false;
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+	}
 }
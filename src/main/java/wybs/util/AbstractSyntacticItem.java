@@ -14,14 +14,18 @@
 package wybs.util;
 
 import java.math.BigInteger;
+import java.util.ArrayDeque;
 import java.util.Arrays;
 import java.util.BitSet;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
 
 import wybs.lang.SyntacticElement;
 import wybs.lang.SyntacticHeap;
 import wybs.lang.SyntacticItem;
 import wycc.util.ArrayUtils;
+import wycc.util.Digest;
 
 public abstract class AbstractSyntacticItem extends SyntacticElement.Impl
 		implements Comparable<SyntacticItem>, SyntacticItem, Cloneable {
@@ -31,6 +35,14 @@ public abstract class AbstractSyntacticItem extends SyntacticElement.Impl
 	protected int opcode;
 	protected SyntacticItem[] operands;
 	protected byte[] data;
+	/**
+	 * The structural digest of this item, or <code>Digest.UNKNOWN</code> if
+	 * this has not yet been determined. Digests are only cached for items
+	 * allocated to an <code>AbstractSyntacticHeap</code>, since only then are
+	 * they invalidated when a descendant changes. If the digest of an item is
+	 * known, then so are the digests of all items it refers to.
+	 */
+	private volatile long digest = Digest.UNKNOWN;
 
 	public AbstractSyntacticItem(int opcode) {
 		super();
@@ -99,6 +111,11 @@ public abstract class AbstractSyntacticItem extends SyntacticElement.Impl
 	@Override
 	public void setOpcode(int opcode) {
 		this.opcode = opcode;
+		invalidateDigest();
+		if (parent instanceof AbstractSyntacticHeap) {
+			// Keep the heap's opcode index up-to-date
+			((AbstractSyntacticHeap) parent).updateOpcode(this);
+		}
 	}
 
 
@@ -118,7 +135,15 @@ public abstract class AbstractSyntacticItem extends SyntacticElement.Impl
 
 	@Override
 	public void setOperand(int ith, SyntacticItem child) {
+		SyntacticItem before = operands[ith];
 		operands[ith] = child;
+		if (before != child) {
+			invalidateDigest();
+		}
+		if (parent instanceof AbstractSyntacticHeap) {
+			// Keep the heap's parent index up-to-date
+			((AbstractSyntacticHeap) parent).updateParents(this, before, child);
+		}
 	}
 
 	public <T> T[] toArray(Class<T> elementKind) {
@@ -154,19 +179,182 @@ public abstract class AbstractSyntacticItem extends SyntacticElement.Impl
 		return null;
 	}
 
+	/**
+	 * <p>
+	 * Get the structural digest of this item. This is a 64bit (Merkle-style)
+	 * hash of its opcode, its data and the digests of its operands. Thus, items
+	 * which are structurally equal have the same digest. The digest is computed
+	 * bottom-up when required. Since operands are shared, every item reachable
+	 * from this item is digested at most once per computation.
+	 * </p>
+	 * <p>
+	 * For items allocated to an <code>AbstractSyntacticHeap</code> (whose
+	 * operands are likewise allocated) the digest is cached. This is
+	 * invalidated when the opcode or an operand of the item changes, as are the
+	 * digests of all items which refer to it. The digests of other items are
+	 * never cached, since their parents are not known. The data of an item must
+	 * not be modified in place once its digest has been determined.
+	 * </p>
+	 *
+	 * @return
+	 */
+	public long getDigest() {
+		long d = digest;
+		if (d == Digest.UNKNOWN) {
+			d = computeDigests(this);
+		}
+		return d;
+	}
+
+	/**
+	 * Get the operands which contribute to the digest of this item. By default,
+	 * this is all operands. However, items whose equality does not depend upon
+	 * the structure of their operands (e.g. because they may be cyclic) should
+	 * exclude them.
+	 *
+	 * @return
+	 */
+	protected SyntacticItem[] getDigestOperands() {
+		return operands;
+	}
+
+	/**
+	 * Clear the cached digest of this item.
+	 *
+	 * @return <code>true</code> if the digest was previously known.
+	 */
+	boolean clearDigest() {
+		if (digest == Digest.UNKNOWN) {
+			return false;
+		} else {
+			digest = Digest.UNKNOWN;
+			return true;
+		}
+	}
+
+	private void invalidateDigest() {
+		// If this digest is unknown, then so are those of all items referring to it
+		if (clearDigest() && parent instanceof AbstractSyntacticHeap) {
+			((AbstractSyntacticHeap) parent).invalidateDigests(this);
+		}
+	}
+
+	/**
+	 * Compute the digests of all items reachable from a given item whose
+	 * digests are not yet known. An explicit stack is used so that items of any
+	 * depth can be digested. Digests which cannot be cached are recorded only
+	 * for the duration of this computation.
+	 *
+	 * @param item
+	 * @return
+	 */
+	private static long computeDigests(AbstractSyntacticItem item) {
+		ArrayDeque<AbstractSyntacticItem> stack = new ArrayDeque<>();
+		IdentityHashMap<AbstractSyntacticItem, AbstractSyntacticItem> active = new IdentityHashMap<>();
+		IdentityHashMap<AbstractSyntacticItem, Long> uncached = new IdentityHashMap<>();
+		stack.push(item);
+		while (!stack.isEmpty()) {
+			AbstractSyntacticItem next = stack.peek();
+			if (next.digest != Digest.UNKNOWN || uncached.containsKey(next)) {
+				stack.pop();
+				continue;
+			}
+			active.put(next, next);
+			boolean ready = true;
+			SyntacticItem[] children = next.getDigestOperands();
+			for (int i = 0; children != null && i != children.length; ++i) {
+				if (children[i] instanceof AbstractSyntacticItem) {
+					AbstractSyntacticItem child = (AbstractSyntacticItem) children[i];
+					if (child.digest == Digest.UNKNOWN && !uncached.containsKey(child)) {
+						if (active.containsKey(child)) {
+							throw new IllegalArgumentException("cyclic syntactic item encountered");
+						}
+						stack.push(child);
+						ready = false;
+					}
+				}
+			}
+			if (ready) {
+				stack.pop();
+				active.remove(next);
+				long d = next.digest(children, uncached);
+				if (next.isCacheable(children)) {
+					next.digest = d;
+				} else {
+					uncached.put(next, d);
+				}
+			}
+		}
+		return item.digest != Digest.UNKNOWN ? item.digest : uncached.get(item);
+	}
+
+	/**
+	 * Determine whether the digest of this item can be cached. This requires
+	 * that it is allocated to a heap which will invalidate it, and that the
+	 * digests of its operands are themselves cached.
+	 *
+	 * @param children
+	 * @return
+	 */
+	private boolean isCacheable(SyntacticItem[] children) {
+		if (!(parent instanceof AbstractSyntacticHeap)) {
+			return false;
+		}
+		for (int i = 0; children != null && i != children.length; ++i) {
+			SyntacticItem child = children[i];
+			if (child != null && (!(child instanceof AbstractSyntacticItem)
+					|| ((AbstractSyntacticItem) child).digest == Digest.UNKNOWN)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private long digest(SyntacticItem[] children, Map<AbstractSyntacticItem, Long> uncached) {
+		Digest d = new Digest();
+		d.update(opcode);
+		if (children == null) {
+			d.update(-1);
+		} else {
+			d.update(children.length);
+			for (SyntacticItem child : children) {
+				if (child == null) {
+					d.update(Digest.UNKNOWN);
+				} else if (child instanceof AbstractSyntacticItem) {
+					long cd = ((AbstractSyntacticItem) child).digest;
+					d.update(cd != Digest.UNKNOWN ? cd : uncached.get(child));
+				} else {
+					d.update(child.hashCode());
+				}
+			}
+		}
+		if (data == null) {
+			d.update(-1);
+		} else {
+			d.update(data.length);
+			d.update(data);
+		}
+		return d.get();
+	}
+
 	@Override
 	public int hashCode() {
-		int hash = getOpcode() ^ Arrays.hashCode(operands);
-		if (data != null) {
-			hash ^= Arrays.hashCode(data);
-		}
-		return hash;
+		long d = getDigest();
+		return (int) (d ^ (d >>> 32));
 	}
 
 	@Override
 	public boolean equals(Object o) {
-		if (o instanceof AbstractSyntacticItem) {
+		if (o == this) {
+			return true;
+		} else if (o instanceof AbstractSyntacticItem) {
 			AbstractSyntacticItem bo = (AbstractSyntacticItem) o;
+			long d1 = digest;
+			long d2 = bo.digest;
+			if (d1 != Digest.UNKNOWN && d2 != Digest.UNKNOWN && d1 != d2) {
+				// Cached digests differ, hence items cannot be equal
+				return false;
+			}
 			return getOpcode() == bo.getOpcode() && Arrays.equals(operands, bo.operands)
 					&& Arrays.equals(data, bo.data);
 		}
@@ -199,6 +387,9 @@ public abstract class AbstractSyntacticItem extends SyntacticElement.Impl
 
 	@Override
 	public int compareTo(SyntacticItem other) {
+		if (other == this) {
+			return 0;
+		}
 		int diff = opcode - other.getOpcode();
 		if (diff != 0) {
 			return diff;
@@ -0,0 +1,450 @@
+// Copyright 2011 The Whiley Project Developers
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package wybs.util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+import wyfs.io.BinaryInputStream;
+import wyfs.io.BinaryOutputStream;
+import wyfs.lang.Content;
+import wyfs.lang.Path;
+import wyfs.util.Trie;
+
+/**
+ * <p>
+ * A local, content-addressed cache of the outputs produced by build actions.
+ * Each action is identified by a key, which is a SHA-256 digest of everything
+ * that could affect its outputs (e.g. the build task, its configuration and
+ * the contents of its inputs). A cryptographic digest is used since the cache
+ * may be shared across checkouts and builds, such that a collision would
+ * silently restore the wrong outputs. The outputs of an action are stored as raw bytes,
+ * along with their identifiers and content types, so that they can be restored
+ * without rerunning the action.
+ * </p>
+ * <p>
+ * The cache is stored in a directory with one file per action. The total size
+ * of the cache is bounded, with the least recently used actions being evicted
+ * first. For this purpose, the modification time of a cache file is updated
+ * whenever it is used. The total size is determined once and then tracked as
+ * actions are stored, such that the cache directory is only listed again when
+ * the limit is exceeded. At that point, actions are evicted until the cache
+ * is well within the limit, so that eviction happens infrequently.
+ * </p>
+ *
+ * @author David J. Pearce
+ *
+ */
+public class ActionCache {
+	/**
+	 * Magic number identifying a cached action.
+	 */
+	private static final byte[] MAGIC = { 'W', 'Y', 'A', 'C' };
+
+	/**
+	 * Suffix used for all cache files.
+	 */
+	private static final String SUFFIX = ".action";
+
+	/**
+	 * The directory in which cached actions are stored.
+	 */
+	private final File dir;
+
+	/**
+	 * The maximum number of bytes permitted in the cache.
+	 */
+	private final long limit;
+
+	/**
+	 * The content types which outputs may have. These are used to decode the
+	 * suffix recorded for each output.
+	 */
+	private final List<Content.Type<?>> contentTypes;
+
+	/**
+	 * The total number of bytes stored in this cache, or <code>-1</code> if
+	 * this has not yet been determined. This does not account for other
+	 * processes sharing the cache.
+	 */
+	private long total = -1;
+
+	public ActionCache(File dir, long limit, List<Content.Type<?>> contentTypes) {
+		this.dir = dir;
+		this.limit = limit;
+		this.contentTypes = contentTypes;
+	}
+
+	/**
+	 * Get the directory containing this cache.
+	 *
+	 * @return
+	 */
+	public File location() {
+		return dir;
+	}
+
+	/**
+	 * Get the maximum number of bytes permitted in this cache.
+	 *
+	 * @return
+	 */
+	public long getLimit() {
+		return limit;
+	}
+
+	/**
+	 * Get the number of actions currently stored in this cache.
+	 *
+	 * @return
+	 */
+	public int size() {
+		return list().length;
+	}
+
+	/**
+	 * Get the total number of bytes currently stored in this cache.
+	 *
+	 * @return
+	 */
+	public long bytes() {
+		long total = 0;
+		for (File f : list()) {
+			total += f.length();
+		}
+		return total;
+	}
+
+	/**
+	 * Lookup the outputs of a given action. If the action is found, then it is
+	 * marked as most recently used.
+	 *
+	 * @param key
+	 *            Digest identifying the action.
+	 * @return The outputs of the action, or <code>null</code> if it is not
+	 *         cached (or one of its outputs has an unknown content type).
+	 * @throws IOException
+	 */
+	public List<Output> get(Key key) throws IOException {
+		File file = getFile(key);
+		if (!file.exists()) {
+			return null;
+		}
+		List<Output> outputs;
+		try (FileInputStream fin = new FileInputStream(file)) {
+			outputs = read(new BinaryInputStream(fin));
+		} catch (IOException e) {
+			// Corrupt cache entry, so discard it
+			file.delete();
+			return null;
+		}
+		file.setLastModified(System.currentTimeMillis());
+		return outputs;
+	}
+
+	/**
+	 * Store the outputs of a given action in this cache, evicting least recently
+	 * used actions as necessary to remain within the size limit.
+	 *
+	 * @param key
+	 *            Digest identifying the action.
+	 * @param outputs
+	 *            The outputs produced by the action.
+	 * @throws IOException
+	 *             If the action could not be stored.
+	 */
+	public void put(Key key, List<Output> outputs) throws IOException {
+		dir.mkdirs();
+		File file = getFile(key);
+		// Write into temporary file first so that readers never see a partially
+		// written action.
+		File tmp = File.createTempFile(key.toString().substring(0, 16), ".tmp", dir);
+		try (FileOutputStream fout = new FileOutputStream(tmp)) {
+			BinaryOutputStream bout = new BinaryOutputStream(fout);
+			write(bout, outputs);
+			bout.flush();
+		}
+		synchronized (this) {
+			long before = file.length();
+			long length = tmp.length();
+			if (!tmp.renameTo(file)) {
+				tmp.delete();
+				if (!file.exists()) {
+					throw new IOException("unable to store action in " + file);
+				}
+				// Otherwise, the same action was stored concurrently
+			} else if (total >= 0) {
+				total += length - before;
+			}
+			if (total < 0) {
+				total = bytes();
+			}
+			if (total > limit) {
+				prune(limit - limit / 4);
+			}
+		}
+	}
+
+	/**
+	 * Evict least recently used actions until the cache is within a given
+	 * number of bytes.
+	 *
+	 * @param limit
+	 * @return The number of actions evicted.
+	 */
+	public synchronized int prune(long limit) {
+		File[] files = list();
+		Arrays.sort(files, Comparator.comparingLong(File::lastModified));
+		long total = 0;
+		for (File f : files) {
+			total += f.length();
+		}
+		int count = 0;
+		for (int i = 0; i < files.length && total > limit; ++i) {
+			long length = files[i].length();
+			if (files[i].delete()) {
+				total -= length;
+				count = count + 1;
+			}
+		}
+		this.total = total;
+		return count;
+	}
+
+	// ======================================================================
+	// Helpers
+	// ======================================================================
+
+	private File getFile(Key key) {
+		return new File(dir, key + SUFFIX);
+	}
+
+	private File[] list() {
+		File[] files = dir.listFiles((d, name) -> name.endsWith(SUFFIX));
+		return files == null ? new File[0] : files;
+	}
+
+	private static void write(BinaryOutputStream out, List<Output> outputs) throws IOException {
+		for (int i = 0; i != MAGIC.length; ++i) {
+			out.write_u8(MAGIC[i]);
+		}
+		out.write_uv(outputs.size());
+		for (Output o : outputs) {
+			writeBytes(out, o.id.toString().getBytes(StandardCharsets.UTF_8));
+			writeBytes(out, o.type.getSuffix().getBytes(StandardCharsets.UTF_8));
+			out.write_uv(o.parents.size());
+			for (Path.ID parent : o.parents) {
+				writeBytes(out, parent.toString().getBytes(StandardCharsets.UTF_8));
+			}
+			writeBytes(out, o.bytes);
+		}
+	}
+
+	private List<Output> read(BinaryInputStream in) throws IOException {
+		for (int i = 0; i != MAGIC.length; ++i) {
+			if (in.read_u8() != MAGIC[i]) {
+				throw new IOException("invalid magic number");
+			}
+		}
+		int n = in.read_uv();
+		ArrayList<Output> outputs = new ArrayList<>();
+		for (int i = 0; i != n; ++i) {
+			Path.ID id = readID(in);
+			String suffix = new String(readBytes(in), StandardCharsets.UTF_8);
+			int m = in.read_uv();
+			ArrayList<Path.ID> parents = new ArrayList<>();
+			for (int j = 0; j != m; ++j) {
+				parents.add(readID(in));
+			}
+			Content.Type<?> type = getContentType(suffix);
+			if (type == null) {
+				throw new IOException("unknown content type \"" + suffix + "\"");
+			}
+			outputs.add(new Output(id, type, parents, readBytes(in)));
+		}
+		return outputs;
+	}
+
+	private Content.Type<?> getContentType(String suffix) {
+		for (Content.Type<?> type : contentTypes) {
+			if (type.getSuffix().equals(suffix)) {
+				return type;
+			}
+		}
+		return null;
+	}
+
+	private static Path.ID readID(BinaryInputStream in) throws IOException {
+		return Trie.fromString(new String(readBytes(in), StandardCharsets.UTF_8));
+	}
+
+	private static void writeBytes(BinaryOutputStream out, byte[] bytes) throws IOException {
+		out.write_uv(bytes.length);
+		out.write(bytes);
+	}
+
+	private static byte[] readBytes(BinaryInputStream in) throws IOException {
+		byte[] bytes = new byte[in.read_uv()];
+		for (int i = 0; i != bytes.length; ++i) {
+			bytes[i] = (byte) in.read_u8();
+		}
+		return bytes;
+	}
+
+	/**
+	 * Computes the key identifying an action, which is a SHA-256 digest of
+	 * everything given to it. Variable length values (e.g. strings) are
+	 * prefixed with their length, such that different sequences of values
+	 * cannot produce the same input to the digest. The exception is an input
+	 * stream, whose length is not known in advance. Hence, a stream should only
+	 * be given on its own (e.g. to digest the contents of a file), with the
+	 * resulting digest then given to other keys.
+	 *
+	 * @author David J. Pearce
+	 *
+	 */
+	public static final class Key {
+		private final MessageDigest digest;
+		private byte[] value;
+
+		public Key() {
+			try {
+				this.digest = MessageDigest.getInstance("SHA-256");
+			} catch (NoSuchAlgorithmException e) {
+				// Every Java platform is required to support SHA-256
+				throw new IllegalStateException(e);
+			}
+		}
+
+		public Key update(byte[] bytes) {
+			update(bytes.length);
+			digest.update(bytes);
+			return this;
+		}
+
+		public Key update(long value) {
+			for (int i = 56; i >= 0; i -= 8) {
+				digest.update((byte) (value >> i));
+			}
+			return this;
+		}
+
+		public Key update(String str) {
+			return update(str.getBytes(StandardCharsets.UTF_8));
+		}
+
+		/**
+		 * Include all remaining bytes of a given input stream. The stream is
+		 * not closed. Unlike other values, this is not prefixed with its
+		 * length and, hence, should be the only value given to this key.
+		 *
+		 * @param input
+		 * @return
+		 * @throws IOException
+		 */
+		public Key update(InputStream input) throws IOException {
+			byte[] buffer = new byte[8192];
+			int n;
+			while ((n = input.read(buffer, 0, buffer.length)) != -1) {
+				digest.update(buffer, 0, n);
+			}
+			return this;
+		}
+
+		/**
+		 * Get the digest of everything given so far, after which nothing
+		 * further can be given.
+		 *
+		 * @return
+		 */
+		public byte[] get() {
+			if (value == null) {
+				value = digest.digest();
+			}
+			return value;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			return o instanceof Key && Arrays.equals(get(), ((Key) o).get());
+		}
+
+		@Override
+		public int hashCode() {
+			return Arrays.hashCode(get());
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder sb = new StringBuilder();
+			for (byte b : get()) {
+				sb.append(String.format("%02x", b & 0xFF));
+			}
+			return sb.toString();
+		}
+	}
+
+	/**
+	 * A single output produced by a cached action. This records the
+	 * identifiers of the inputs it was derived from, so that the build graph can
+	 * be reconstructed when it is restored.
+	 *
+	 * @author David J. Pearce
+	 *
+	 */
+	public static final class Output {
+		private final Path.ID id;
+		private final Content.Type<?> type;
+		private final List<Path.ID> parents;
+		private final byte[] bytes;
+
+		public Output(Path.ID id, Content.Type<?> type, List<Path.ID> parents, byte[] bytes) {
+			this.id = id;
+			this.type = type;
+			this.parents = parents;
+			this.bytes = bytes;
+		}
+
+		public Path.ID getId() {
+			return id;
+		}
+
+		public Content.Type<?> getContentType() {
+			return type;
+		}
+
+		/**
+		 * Get the identifiers of the inputs from which this output was derived.
+		 *
+		 * @return
+		 */
+		public List<Path.ID> getParents() {
+			return parents;
+		}
+
+		public byte[] getBytes() {
+			return bytes;
+		}
+	}
+}
@@ -0,0 +1,639 @@
+// Copyright 2011 The Whiley Project Developers
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package wybs.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import wybs.lang.Build;
+import wycc.util.Digest;
+import wycc.util.Pair;
+import wyfs.io.BinaryInputStream;
+import wyfs.io.BinaryOutputStream;
+import wyfs.lang.Content;
+import wyfs.lang.Path;
+import wyfs.util.Trie;
+
+/**
+ * <p>
+ * A compact binary representation of a build graph which can be stored between
+ * invocations of the build system. This avoids the need to completely refresh
+ * the build graph from scratch on every build. Entries are recorded in terms of
+ * a (labelled) root, their identifier and the suffix of their content type,
+ * along with their modification time and a digest of their contents at the
+ * point the file was written. A digest of the configuration used for each
+ * root may also be recorded, such that changes in configuration can be
+ * detected.
+ * </p>
+ * <p>
+ * Since path entries are specific to a given root, a build graph file cannot
+ * be converted back into a build graph without the corresponding set of
+ * roots. Roots are matched by label, and any entries which are no longer
+ * present in their root are dropped (along with their edges).
+ * </p>
+ *
+ * @author David J. Pearce
+ *
+ */
+public class BuildGraphFile {
+	/**
+	 * Magic number identifying a build graph file.
+	 */
+	private static final byte[] MAGIC = { 'W', 'Y', 'B', 'G' };
+
+	/**
+	 * Version of the binary format. This must be incremented whenever the format
+	 * changes, as files with a different version are simply ignored.
+	 */
+	private static final int VERSION = 2;
+
+	public static final Content.Type<BuildGraphFile> ContentType = new Content.Type<BuildGraphFile>() {
+
+		@Override
+		public String getSuffix() {
+			return "graph";
+		}
+
+		@Override
+		public BuildGraphFile read(Path.Entry<BuildGraphFile> e, InputStream input) throws IOException {
+			try {
+				return BuildGraphFile.read(new BinaryInputStream(input));
+			} finally {
+				input.close();
+			}
+		}
+
+		@Override
+		public void write(OutputStream output, BuildGraphFile bgf) throws IOException {
+			BinaryOutputStream bout = new BinaryOutputStream(output);
+			bgf.write(bout);
+			bout.close();
+		}
+
+		@Override
+		public String toString() {
+			return "Content-Type: graph";
+		}
+	};
+
+	/**
+	 * The labels of the roots referred to by nodes in this file.
+	 */
+	private final List<String> roots;
+
+	/**
+	 * The configuration digests recorded for roots in this file.
+	 */
+	private final HashMap<String, Long> configurations;
+
+	/**
+	 * The nodes (i.e. entries) in this file.
+	 */
+	private final ArrayList<Node> nodes;
+
+	/**
+	 * Index of nodes by root, identifier and content type. This is constructed
+	 * lazily.
+	 */
+	private HashMap<String, Node> index;
+
+	/**
+	 * The edges in this file, where each edge is stored as a (parent,child) pair
+	 * of node indices.
+	 */
+	private final ArrayList<int[]> edges;
+
+	/**
+	 * Index of the children of each node. This is constructed lazily.
+	 */
+	private IdentityHashMap<Node, List<Node>> derivations;
+
+	/**
+	 * Construct an empty build graph file over a given set of labelled roots.
+	 *
+	 * @param roots
+	 */
+	public BuildGraphFile(List<String> roots) {
+		this.roots = new ArrayList<>(roots);
+		this.configurations = new HashMap<>();
+		this.nodes = new ArrayList<>();
+		this.edges = new ArrayList<>();
+	}
+
+	/**
+	 * Get the labels of the roots used in this file.
+	 *
+	 * @return
+	 */
+	public List<String> getRoots() {
+		return roots;
+	}
+
+	/**
+	 * Get the number of nodes recorded in this file.
+	 *
+	 * @return
+	 */
+	public int size() {
+		return nodes.size();
+	}
+
+	/**
+	 * Add a given node to this file, returning its index.
+	 *
+	 * @param root
+	 *            The index of the root containing this node
+	 * @param id
+	 *            The identifier of this node within its root
+	 * @param suffix
+	 *            The suffix of the content type for this node.
+	 * @param timestamp
+	 *            The last modified time of this node.
+	 * @param digest
+	 *            The digest of this node's contents (or
+	 *            <code>Digest.UNKNOWN</code>).
+	 * @return
+	 */
+	public int add(int root, Path.ID id, String suffix, long timestamp, long digest) {
+		if (root < 0 || root >= roots.size()) {
+			throw new IllegalArgumentException("invalid root index (" + root + ")");
+		}
+		nodes.add(new Node(roots.get(root), id, suffix, timestamp, digest));
+		index = null;
+		derivations = null;
+		return nodes.size() - 1;
+	}
+
+	/**
+	 * Add an edge between two nodes in this file.
+	 *
+	 * @param parent
+	 * @param child
+	 */
+	public void connect(int parent, int child) {
+		edges.add(new int[] { parent, child });
+		derivations = null;
+	}
+
+	/**
+	 * Record the digest of the configuration used for a given root.
+	 *
+	 * @param root
+	 *            The label of the root in question.
+	 * @param digest
+	 */
+	public void setConfiguration(String root, long digest) {
+		configurations.put(root, digest);
+	}
+
+	/**
+	 * Get the digest of the configuration recorded for a given root, or
+	 * <code>Digest.UNKNOWN</code> if none was recorded.
+	 *
+	 * @param root
+	 *            The label of the root in question.
+	 * @return
+	 */
+	public long getConfiguration(String root) {
+		Long digest = configurations.get(root);
+		return digest == null ? Digest.UNKNOWN : digest;
+	}
+
+	/**
+	 * Get all recorded nodes in a given root with a given content type.
+	 *
+	 * @param root
+	 *            The label of the root in question.
+	 * @param suffix
+	 *            The suffix of the content type in question.
+	 * @return
+	 */
+	public List<Node> getNodes(String root, String suffix) {
+		ArrayList<Node> matches = new ArrayList<>();
+		for (int i = 0; i != nodes.size(); ++i) {
+			Node n = nodes.get(i);
+			if (n.root.equals(root) && n.suffix.equals(suffix)) {
+				matches.add(n);
+			}
+		}
+		return matches;
+	}
+
+	/**
+	 * Get the recorded node for a given entry, or <code>null</code> if no such
+	 * node was recorded.
+	 *
+	 * @param root
+	 *            The label of the root containing the entry.
+	 * @param id
+	 *            The identifier of the entry within its root.
+	 * @param suffix
+	 *            The suffix of the entry's content type.
+	 * @return
+	 */
+	public Node getNode(String root, Path.ID id, String suffix) {
+		if (index == null) {
+			index = new HashMap<>();
+			for (int i = 0; i != nodes.size(); ++i) {
+				Node n = nodes.get(i);
+				index.put(key(n.root, n.id, n.suffix), n);
+			}
+		}
+		return index.get(key(root, id, suffix));
+	}
+
+	/**
+	 * Get the recorded nodes derived from a given node.
+	 *
+	 * @param node
+	 * @return
+	 */
+	public List<Node> getChildren(Node node) {
+		if (derivations == null) {
+			derivations = new IdentityHashMap<>();
+			for (int i = 0; i != edges.size(); ++i) {
+				int[] edge = edges.get(i);
+				derivations.computeIfAbsent(nodes.get(edge[0]), n -> new ArrayList<>()).add(nodes.get(edge[1]));
+			}
+		}
+		List<Node> children = derivations.get(node);
+		return children == null ? Collections.emptyList() : children;
+	}
+
+	/**
+	 * Determine whether a given source entry, along with the entries currently
+	 * derived from it, are unchanged since this file was recorded. That is, the
+	 * source and every child were recorded (the latter as children of the
+	 * source), all still exist and their contents are unchanged. The recorded
+	 * modification time is used as a cheap first check before comparing
+	 * digests. Thus, a source whose generated files were deleted (e.g. by
+	 * cleaning) or modified is not unchanged.
+	 *
+	 * @param root
+	 *            The label of the root containing the source.
+	 * @param source
+	 * @param children
+	 * @return
+	 * @throws IOException
+	 */
+	public boolean isUnchanged(String root, Path.Entry<?> source, List<? extends Path.Entry<?>> children)
+			throws IOException {
+		Node node = getNode(root, source.id(), source.contentType().getSuffix());
+		if (node == null || !isUnchanged(node, source)) {
+			return false;
+		}
+		List<Node> recorded = getChildren(node);
+		for (Path.Entry<?> child : children) {
+			Node n = find(recorded, child);
+			if (n == null || !isUnchanged(n, child)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Construct a build graph file from a given build graph. Every entry in the
+	 * graph is recorded, along with any additional entries given (which may not
+	 * participate in any edges). Entries which are not contained in any of the
+	 * given roots are not recorded.
+	 *
+	 * @param graph
+	 *            The build graph to be recorded.
+	 * @param extras
+	 *            Additional entries to record (e.g. source files which did not
+	 *            generate anything).
+	 * @param roots
+	 *            The labelled roots from which entries are drawn.
+	 * @param previous
+	 *            The previously recorded file (which may be null). Digests are
+	 *            reused from this for any entry whose modification time is
+	 *            unchanged, rather than being recomputed.
+	 * @return
+	 * @throws IOException
+	 */
+	public static BuildGraphFile fromGraph(Build.Graph graph, Collection<? extends Path.Entry<?>> extras,
+			List<Pair<String, Path.Root>> roots, BuildGraphFile previous) throws IOException {
+		ArrayList<String> labels = new ArrayList<>();
+		for (Pair<String, Path.Root> r : roots) {
+			labels.add(r.first());
+		}
+		BuildGraphFile bgf = new BuildGraphFile(labels);
+		IdentityHashMap<Path.Entry<?>, Integer> indices = new IdentityHashMap<>();
+		for (Path.Entry<?> e : graph.getEntries()) {
+			bgf.register(e, roots, previous, indices);
+		}
+		for (Path.Entry<?> e : extras) {
+			bgf.register(e, roots, previous, indices);
+		}
+		for (Path.Entry<?> parent : graph.getEntries()) {
+			Integer p = indices.get(parent);
+			for (Path.Entry<?> child : graph.getChildren(parent)) {
+				Integer c = indices.get(child);
+				if (p != null && c != null) {
+					bgf.connect(p, c);
+				}
+			}
+		}
+		return bgf;
+	}
+
+	/**
+	 * Reconstruct a build graph from this file, using a given set of labelled
+	 * roots and known content types. Any nodes which cannot be resolved (e.g.
+	 * because the underlying file no longer exists) are dropped, along with any
+	 * edges involving them.
+	 *
+	 * @param roots
+	 *            The labelled roots from which entries are drawn.
+	 * @param types
+	 *            The set of known content types.
+	 * @return
+	 * @throws IOException
+	 */
+	public StdBuildGraph toGraph(List<Pair<String, Path.Root>> roots, List<Content.Type<?>> types)
+			throws IOException {
+		Path.Entry<?>[] entries = new Path.Entry<?>[nodes.size()];
+		for (int i = 0; i != entries.length; ++i) {
+			entries[i] = resolve(nodes.get(i), roots, types);
+		}
+		StdBuildGraph graph = new StdBuildGraph();
+		for (int i = 0; i != edges.size(); ++i) {
+			int[] edge = edges.get(i);
+			Path.Entry<?> parent = entries[edge[0]];
+			Path.Entry<?> child = entries[edge[1]];
+			if (parent != null && child != null) {
+				graph.connect(parent, child);
+			}
+		}
+		return graph;
+	}
+
+	// ======================================================================
+	// Reading / Writing
+	// ======================================================================
+
+	private void write(BinaryOutputStream out) throws IOException {
+		for (int i = 0; i != MAGIC.length; ++i) {
+			out.write_u8(MAGIC[i]);
+		}
+		out.write_uv(VERSION);
+		// Write root labels
+		out.write_uv(roots.size());
+		for (String root : roots) {
+			writeString(out, root);
+		}
+		// Write configuration digests
+		out.write_uv(configurations.size());
+		for (Map.Entry<String, Long> e : configurations.entrySet()) {
+			writeString(out, e.getKey());
+			out.pad_u8();
+			out.write_u64(e.getValue());
+		}
+		// Write nodes
+		out.write_uv(nodes.size());
+		for (int i = 0; i != nodes.size(); ++i) {
+			Node n = nodes.get(i);
+			out.write_uv(roots.indexOf(n.root));
+			writeString(out, n.id.toString());
+			writeString(out, n.suffix);
+			out.pad_u8();
+			out.write_u64(n.timestamp);
+			out.write_u64(n.digest);
+		}
+		// Write edges
+		out.write_uv(edges.size());
+		for (int i = 0; i != edges.size(); ++i) {
+			int[] edge = edges.get(i);
+			out.write_uv(edge[0]);
+			out.write_uv(edge[1]);
+		}
+		out.flush();
+	}
+
+	private static BuildGraphFile read(BinaryInputStream in) throws IOException {
+		for (int i = 0; i != MAGIC.length; ++i) {
+			if (in.read_u8() != MAGIC[i]) {
+				throw new IOException("invalid magic number");
+			}
+		}
+		int version = in.read_uv();
+		if (version != VERSION) {
+			throw new IOException("unsupported build graph version (" + version + ")");
+		}
+		// Read root labels
+		int nroots = in.read_uv();
+		ArrayList<String> roots = new ArrayList<>();
+		for (int i = 0; i != nroots; ++i) {
+			roots.add(readString(in));
+		}
+		BuildGraphFile bgf = new BuildGraphFile(roots);
+		// Read configuration digests
+		int nconfigs = in.read_uv();
+		for (int i = 0; i != nconfigs; ++i) {
+			String root = readString(in);
+			in.pad_u8();
+			bgf.setConfiguration(root, in.read_u64());
+		}
+		// Read nodes
+		int nnodes = in.read_uv();
+		for (int i = 0; i != nnodes; ++i) {
+			int root = in.read_uv();
+			Path.ID id = Trie.fromString(readString(in));
+			String suffix = readString(in);
+			in.pad_u8();
+			long timestamp = in.read_u64();
+			long digest = in.read_u64();
+			bgf.add(root, id, suffix, timestamp, digest);
+		}
+		// Read edges
+		int nedges = in.read_uv();
+		for (int i = 0; i != nedges; ++i) {
+			int parent = in.read_uv();
+			int child = in.read_uv();
+			if (parent >= nnodes || child >= nnodes) {
+				throw new IOException("invalid edge in build graph file");
+			}
+			bgf.connect(parent, child);
+		}
+		return bgf;
+	}
+
+	private static void writeString(BinaryOutputStream out, String str) throws IOException {
+		byte[] bytes = str.getBytes(StandardCharsets.UTF_8);
+		out.write_uv(bytes.length);
+		for (int i = 0; i != bytes.length; ++i) {
+			out.write_u8(bytes[i]);
+		}
+	}
+
+	private static String readString(BinaryInputStream in) throws IOException {
+		byte[] bytes = new byte[in.read_uv()];
+		for (int i = 0; i != bytes.length; ++i) {
+			bytes[i] = (byte) in.read_u8();
+		}
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	// ======================================================================
+	// Helpers
+	// ======================================================================
+
+	private void register(Path.Entry<?> entry, List<Pair<String, Path.Root>> roots, BuildGraphFile previous,
+			IdentityHashMap<Path.Entry<?>, Integer> indices) throws IOException {
+		if (!indices.containsKey(entry)) {
+			for (int i = 0; i != roots.size(); ++i) {
+				if (roots.get(i).second().contains(entry)) {
+					String suffix = entry.contentType().getSuffix();
+					long timestamp = entry.lastModified();
+					long digest = digest(entry, roots.get(i).first(), previous);
+					indices.put(entry, add(i, entry.id(), suffix, timestamp, digest));
+					return;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Determine the digest for a given entry. This is reused from the previous
+	 * file when the entry's modification time is unchanged. Entries whose
+	 * contents have not yet been flushed have an unknown digest.
+	 *
+	 * @param entry
+	 * @param root
+	 * @param previous
+	 * @return
+	 * @throws IOException
+	 */
+	private static long digest(Path.Entry<?> entry, String root, BuildGraphFile previous) throws IOException {
+		if (entry.isModified()) {
+			return Digest.UNKNOWN;
+		} else if (previous != null) {
+			Node node = previous.getNode(root, entry.id(), entry.contentType().getSuffix());
+			if (node != null && node.timestamp == entry.lastModified() && node.digest != Digest.UNKNOWN) {
+				return node.digest;
+			}
+		}
+		return Digest.of(entry);
+	}
+
+	private static boolean isUnchanged(Node node, Path.Entry<?> entry) throws IOException {
+		long timestamp = entry.lastModified();
+		if (timestamp == 0 || node.digest == Digest.UNKNOWN) {
+			// Entry no longer exists, or nothing known about its contents
+			return false;
+		} else {
+			return node.timestamp == timestamp || node.digest == Digest.of(entry);
+		}
+	}
+
+	private static Node find(List<Node> nodes, Path.Entry<?> entry) {
+		String suffix = entry.contentType().getSuffix();
+		for (int i = 0; i != nodes.size(); ++i) {
+			Node n = nodes.get(i);
+			if (n.id.equals(entry.id()) && n.suffix.equals(suffix)) {
+				return n;
+			}
+		}
+		return null;
+	}
+
+	private static String key(String root, Path.ID id, String suffix) {
+		return root + ":" + id + "." + suffix;
+	}
+
+	private Path.Entry<?> resolve(Node node, List<Pair<String, Path.Root>> roots, List<Content.Type<?>> types)
+			throws IOException {
+		String label = node.root;
+		for (int i = 0; i != roots.size(); ++i) {
+			Pair<String, Path.Root> r = roots.get(i);
+			if (r.first().equals(label)) {
+				for (int j = 0; j != types.size(); ++j) {
+					Content.Type<?> ct = types.get(j);
+					if (ct.getSuffix().equals(node.suffix)) {
+						return r.second().get(node.id, ct);
+					}
+				}
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * A recorded entry in a build graph file.
+	 *
+	 * @author David J. Pearce
+	 *
+	 */
+	public static final class Node {
+		private final String root;
+		private final Path.ID id;
+		private final String suffix;
+		private final long timestamp;
+		private final long digest;
+
+		public Node(String root, Path.ID id, String suffix, long timestamp, long digest) {
+			this.root = root;
+			this.id = id;
+			this.suffix = suffix;
+			this.timestamp = timestamp;
+			this.digest = digest;
+		}
+
+		/**
+		 * Get the label of the root containing this node.
+		 *
+		 * @return
+		 */
+		public String getRoot() {
+			return root;
+		}
+
+		public Path.ID getId() {
+			return id;
+		}
+
+		public String getSuffix() {
+			return suffix;
+		}
+
+		/**
+		 * Get the recorded modification time for this node.
+		 *
+		 * @return
+		 */
+		public long getTimestamp() {
+			return timestamp;
+		}
+
+		/**
+		 * Get the recorded digest of this node's contents. This may be
+		 * <code>Digest.UNKNOWN</code>.
+		 *
+		 * @return
+		 */
+		public long getDigest() {
+			return digest;
+		}
+	}
+}
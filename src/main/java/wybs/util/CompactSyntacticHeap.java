@@ -0,0 +1,352 @@
+// Copyright 2011 The Whiley Project Developers
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package wybs.util;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import wybs.lang.SyntacticHeap;
+import wybs.lang.SyntacticItem;
+
+/**
+ * <p>
+ * A syntactic heap which stores its items in columns, rather than as
+ * individual objects. Specifically, the opcode of each item is stored in an
+ * <code>int[]</code>, the operands of all items are packed into a single
+ * <code>int[]</code> of item indices (with a separate array of offsets), and
+ * the data of all items is packed into a single <code>byte[]</code> arena.
+ * This is considerably more compact than <code>AbstractSyntacticHeap</code>
+ * for large heaps, since there is no per-item object overhead. As for any
+ * columnar heap, items returned from this heap are lightweight views.
+ * </p>
+ *
+ * @author David J. Pearce
+ *
+ */
+public class CompactSyntacticHeap extends AbstractColumnarSyntacticHeap {
+	/**
+	 * The number of items in this heap.
+	 */
+	private int size;
+
+	/**
+	 * The opcode of each item.
+	 */
+	private int[] opcodes;
+
+	/**
+	 * The operands of item <code>i</code> are stored in <code>operands</code>
+	 * between <code>operandOffsets[i]</code> (inclusive) and
+	 * <code>operandOffsets[i+1]</code> (exclusive).
+	 */
+	private int[] operandOffsets;
+
+	/**
+	 * The packed operands of all items, where <code>-1</code> indicates a
+	 * <code>null</code> operand.
+	 */
+	private int[] operands;
+
+	/**
+	 * The data of item <code>i</code> is stored in <code>arena</code> between
+	 * <code>dataOffsets[i]</code> (inclusive) and <code>dataOffsets[i+1]</code>
+	 * (exclusive).
+	 */
+	private int[] dataOffsets;
+
+	/**
+	 * The packed data of all items.
+	 */
+	private byte[] arena;
+
+	/**
+	 * Identifies those items which have <code>null</code> data (as opposed to
+	 * an empty array).
+	 */
+	private final BitSet nodata = new BitSet();
+
+	public CompactSyntacticHeap(SyntacticItem.Schema[] schema) {
+		this(schema, 16);
+	}
+
+	public CompactSyntacticHeap(SyntacticItem.Schema[] schema, int capacity) {
+		super(schema);
+		capacity = Math.max(capacity, 1);
+		this.opcodes = new int[capacity];
+		this.operandOffsets = new int[capacity + 1];
+		this.operands = new int[capacity];
+		this.dataOffsets = new int[capacity + 1];
+		this.arena = new byte[capacity];
+	}
+
+	/**
+	 * Construct a compact copy of a given heap. The items in the copy have the
+	 * same indices as in the original.
+	 *
+	 * @param heap
+	 * @param schema
+	 * @return
+	 */
+	public static CompactSyntacticHeap of(SyntacticHeap heap, SyntacticItem.Schema[] schema) {
+		CompactSyntacticHeap compact = new CompactSyntacticHeap(schema, heap.size());
+		for (int i = 0; i != heap.size(); ++i) {
+			SyntacticItem item = heap.getSyntacticItem(i);
+			int[] operands = new int[item.size()];
+			for (int j = 0; j != operands.length; ++j) {
+				SyntacticItem operand = item.get(j);
+				operands[j] = operand == null ? -1 : heap.getIndexOf(operand);
+			}
+			compact.append(item.getOpcode(), operands, item.getData());
+		}
+		if (heap.size() > 0) {
+			compact.setRootItem(compact.getSyntacticItem(heap.getRootItem().getIndex()));
+		}
+		return compact;
+	}
+
+	// ======================================================================
+	// Columns
+	// ======================================================================
+
+	/**
+	 * Append a new item onto the end of this heap. The operands are given as
+	 * indices of items in this heap, which need not have been appended yet.
+	 *
+	 * @param opcode
+	 * @param operands
+	 *            Indices of operands, where <code>-1</code> represents
+	 *            <code>null</code>.
+	 * @param data
+	 *            The data of the item, which may be <code>null</code>.
+	 * @return The index of the new item.
+	 */
+	public int append(int opcode, int[] operands, byte[] data) {
+		int index = size;
+		if (index == opcodes.length) {
+			int capacity = Math.max(8, opcodes.length * 2);
+			opcodes = Arrays.copyOf(opcodes, capacity);
+			operandOffsets = Arrays.copyOf(operandOffsets, capacity + 1);
+			dataOffsets = Arrays.copyOf(dataOffsets, capacity + 1);
+		}
+		opcodes[index] = opcode;
+		// Append operands
+		int start = operandOffsets[index];
+		this.operands = ensureCapacity(this.operands, start + operands.length);
+		System.arraycopy(operands, 0, this.operands, start, operands.length);
+		operandOffsets[index + 1] = start + operands.length;
+		// Append data
+		start = dataOffsets[index];
+		if (data == null) {
+			nodata.set(index);
+			dataOffsets[index + 1] = start;
+		} else {
+			arena = ensureCapacity(arena, start + data.length);
+			System.arraycopy(data, 0, arena, start, data.length);
+			dataOffsets[index + 1] = start + data.length;
+		}
+		size = size + 1;
+		return index;
+	}
+
+	@Override
+	public int getOpcode(int index) {
+		check(index);
+		return opcodes[index];
+	}
+
+	@Override
+	public int getOperandCount(int index) {
+		check(index);
+		return operandOffsets[index + 1] - operandOffsets[index];
+	}
+
+	@Override
+	public int getOperand(int index, int ith) {
+		if (ith < 0 || ith >= getOperandCount(index)) {
+			throw new IndexOutOfBoundsException("invalid operand (" + ith + ")");
+		}
+		return operands[operandOffsets[index] + ith];
+	}
+
+	@Override
+	public int getDataLength(int index) {
+		check(index);
+		return nodata.get(index) ? -1 : dataOffsets[index + 1] - dataOffsets[index];
+	}
+
+	@Override
+	public byte[] getData(int index) {
+		check(index);
+		if (nodata.get(index)) {
+			return null;
+		} else {
+			return Arrays.copyOfRange(arena, dataOffsets[index], dataOffsets[index + 1]);
+		}
+	}
+
+	/**
+	 * Get the number of bytes used by the columns of this heap. This is useful
+	 * for estimating the memory used by this heap.
+	 *
+	 * @return
+	 */
+	public long bytes() {
+		return 4L * (opcodes.length + operandOffsets.length + operands.length + dataOffsets.length) + arena.length;
+	}
+
+	/**
+	 * Release any unused capacity in the columns of this heap.
+	 */
+	public void trimToSize() {
+		opcodes = Arrays.copyOf(opcodes, size);
+		operandOffsets = Arrays.copyOf(operandOffsets, size + 1);
+		dataOffsets = Arrays.copyOf(dataOffsets, size + 1);
+		operands = Arrays.copyOf(operands, operandOffsets[size]);
+		arena = Arrays.copyOf(arena, dataOffsets[size]);
+	}
+
+	// ======================================================================
+	// Syntactic Heap
+	// ======================================================================
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Allocate a given item into this heap. Since items in this heap are
+	 * represented as views, the item returned is a view of the allocated item.
+	 * Thus, it will not be an instance of the same class as the given item.
+	 */
+	@Override
+	public <T extends SyntacticItem> T allocate(T item) {
+		@SuppressWarnings("unchecked")
+		T view = (T) getSyntacticItem(allocate(item, new IdentityHashMap<>()));
+		return view;
+	}
+
+	// ======================================================================
+	// Helpers
+	// ======================================================================
+
+	@Override
+	protected void setOpcode(int index, int opcode) {
+		opcodes[index] = opcode;
+	}
+
+	@Override
+	protected void setOperand(int index, int ith, int operand) {
+		operands[operandOffsets[index] + ith] = operand;
+	}
+
+	private static int[] ensureCapacity(int[] array, int capacity) {
+		return capacity <= array.length ? array : Arrays.copyOf(array, Math.max(capacity, array.length * 2));
+	}
+
+	private static byte[] ensureCapacity(byte[] array, int capacity) {
+		return capacity <= array.length ? array : Arrays.copyOf(array, Math.max(capacity, array.length * 2));
+	}
+
+	/**
+	 * Allocate an item into this heap, along with all of its children. Items
+	 * are appended before their children to allow for cyclic structures. An
+	 * explicit stack is used, rather than recursion, so that items of any depth
+	 * can be allocated.
+	 *
+	 * @param item
+	 * @param map
+	 *            Maps items already allocated to their indices.
+	 * @return The index of the allocated item.
+	 */
+	private int allocate(SyntacticItem item, Map<SyntacticItem, Integer> map) {
+		int index = lookup(item, map);
+		if (index >= 0) {
+			return index;
+		}
+		ArrayDeque<Allocation> stack = new ArrayDeque<>();
+		stack.push(start(item, map));
+		while (!stack.isEmpty()) {
+			Allocation frame = stack.peek();
+			if (frame.next < frame.item.size()) {
+				SyntacticItem child = frame.item.get(frame.next);
+				if (child != null) {
+					int c = lookup(child, map);
+					if (c < 0) {
+						Allocation f = start(child, map);
+						c = f.index;
+						stack.push(f);
+					}
+					operands[operandOffsets[frame.index] + frame.next] = c;
+				}
+				frame.next = frame.next + 1;
+			} else {
+				stack.pop();
+			}
+		}
+		return map.get(item);
+	}
+
+	/**
+	 * Determine the index of an item already allocated to this heap.
+	 *
+	 * @param item
+	 * @param map
+	 * @return The index, or <code>-1</code> if the item has not been
+	 *         allocated.
+	 */
+	private int lookup(SyntacticItem item, Map<SyntacticItem, Integer> map) {
+		if (item.getHeap() == this) {
+			// Item already allocated to this heap, hence nothing to do.
+			return getIndexOf(item);
+		}
+		Integer index = map.get(item);
+		return index == null ? -1 : index;
+	}
+
+	/**
+	 * Append a given item (though not its operands) onto this heap.
+	 *
+	 * @param item
+	 * @param map
+	 * @return
+	 */
+	private Allocation start(SyntacticItem item, Map<SyntacticItem, Integer> map) {
+		int[] operands = new int[item.size()];
+		Arrays.fill(operands, -1);
+		int index = append(item.getOpcode(), operands, item.getData());
+		map.put(item, index);
+		return new Allocation(item, index);
+	}
+
+	/**
+	 * Records the progress made allocating a given item.
+	 */
+	private static final class Allocation {
+		private final SyntacticItem item;
+		private final int index;
+		/**
+		 * The next operand to be allocated.
+		 */
+		private int next;
+
+		public Allocation(SyntacticItem item, int index) {
+			this.item = item;
+			this.index = index;
+		}
+	}
+}
@@ -0,0 +1,110 @@
+// Copyright 2011 The Whiley Project Developers
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package wybs.util;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import wybs.lang.Build;
+import wycc.util.Digest;
+import wyfs.lang.Path;
+
+/**
+ * <p>
+ * Implements "early cutoff" for a build. When an entry is regenerated with
+ * exactly the same contents as it had before, there is no need to rebuild
+ * those entries derived from it. This is determined by comparing the digest of
+ * the regenerated contents (held in memory) against that of the contents
+ * currently stored (which have not yet been flushed).
+ * </p>
+ * <p>
+ * An entry is only cut off when every entry derived from it in the build graph
+ * already exists. Otherwise, it is still passed on so that the missing entries
+ * are generated.
+ * </p>
+ *
+ * @author David J. Pearce
+ *
+ */
+public class EarlyCutoff {
+	/**
+	 * Counts the number of derived entries which did not need rebuilding.
+	 */
+	private final AtomicInteger avoided = new AtomicInteger();
+
+	/**
+	 * Determine which of a given set of generated entries have actually changed,
+	 * and hence must be passed on to the next round of the build.
+	 *
+	 * @param generated
+	 *            --- the set of generated entries. This will not be modified by
+	 *            this method.
+	 * @param graph
+	 *            --- the build graph being constructed.
+	 * @return
+	 * @throws IOException
+	 */
+	public Set<Path.Entry<?>> apply(Collection<? extends Path.Entry<?>> generated, Build.Graph graph)
+			throws IOException {
+		HashSet<Path.Entry<?>> changed = new HashSet<>();
+		for (Path.Entry<?> entry : generated) {
+			List<Path.Entry<?>> children = graph.getChildren(entry);
+			if (children.isEmpty() || !exists(children) || !isUnchanged(entry)) {
+				changed.add(entry);
+			} else {
+				avoided.addAndGet(children.size());
+			}
+		}
+		return changed;
+	}
+
+	/**
+	 * Get the number of derived entries which were not rebuilt because the
+	 * entries they derive from were unchanged.
+	 *
+	 * @return
+	 */
+	public int getAvoided() {
+		return avoided.get();
+	}
+
+	private static boolean exists(List<Path.Entry<?>> entries) {
+		for (Path.Entry<?> e : entries) {
+			if (e.lastModified() == 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Check whether the contents of a regenerated entry match those currently
+	 * stored for it.
+	 *
+	 * @param entry
+	 * @return
+	 * @throws IOException
+	 */
+	private static <T> boolean isUnchanged(Path.Entry<T> entry) throws IOException {
+		long before = Digest.of(entry);
+		if (before == Digest.UNKNOWN || !entry.isModified()) {
+			return false;
+		}
+		return Digest.of(StdBuildRule.getBytes(entry)) == before;
+	}
+}
@@ -0,0 +1,141 @@
+// Copyright 2011 The Whiley Project Developers
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package wybs.util;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import wybs.lang.Build;
+import wyfs.lang.Path;
+
+/**
+ * <p>
+ * Determines the minimal set of entries which must be rebuilt after a given set
+ * of entries has changed. Every entry derived (directly or indirectly) from a
+ * changed entry is <i>dirty</i>, and these are found by following the edges of
+ * the build graph from parents to children. The dirty set is then ordered
+ * topologically, such that every entry comes after all of the dirty entries it
+ * is derived from.
+ * </p>
+ * <p>
+ * Entries are ordered in <i>layers</i>, where no entry in a given layer derives
+ * from another entry in the same layer. Thus, entries within a layer can be
+ * built together. Should the graph contain a cycle, then the entries involved
+ * are placed together in a final layer.
+ * </p>
+ *
+ * @author David J. Pearce
+ *
+ */
+public class InvalidationEngine {
+	/**
+	 * The build graph being used to determine dependencies.
+	 */
+	private final Build.Graph graph;
+
+	public InvalidationEngine(Build.Graph graph) {
+		this.graph = graph;
+	}
+
+	/**
+	 * Determine the set of all entries which are dirty as a result of a given
+	 * set of entries having changed. This includes the changed entries
+	 * themselves.
+	 *
+	 * @param changed
+	 * @return
+	 */
+	public Set<Path.Entry<?>> getDirtySet(Collection<? extends Path.Entry<?>> changed) {
+		LinkedHashSet<Path.Entry<?>> dirty = new LinkedHashSet<>();
+		ArrayList<Path.Entry<?>> worklist = new ArrayList<>(changed);
+		while (!worklist.isEmpty()) {
+			Path.Entry<?> entry = worklist.remove(worklist.size() - 1);
+			if (dirty.add(entry)) {
+				worklist.addAll(graph.getChildren(entry));
+			}
+		}
+		return dirty;
+	}
+
+	/**
+	 * Determine the dirty set resulting from a given set of changed entries,
+	 * ordered into layers such that every entry follows those it is derived
+	 * from.
+	 *
+	 * @param changed
+	 * @return
+	 */
+	public List<List<Path.Entry<?>>> invalidate(Collection<? extends Path.Entry<?>> changed) {
+		return sort(getDirtySet(changed));
+	}
+
+	/**
+	 * Topologically sort a given set of entries into layers, considering only
+	 * those edges between entries in the set.
+	 *
+	 * @param entries
+	 * @return
+	 */
+	public List<List<Path.Entry<?>>> sort(Set<Path.Entry<?>> entries) {
+		// Count the number of parents each entry has within the set
+		HashMap<Path.Entry<?>, Integer> indegree = new HashMap<>();
+		ArrayList<Path.Entry<?>> layer = new ArrayList<>();
+		for (Path.Entry<?> entry : entries) {
+			int count = 0;
+			for (Path.Entry<?> parent : graph.getParents(entry)) {
+				if (parent != entry && entries.contains(parent)) {
+					count = count + 1;
+				}
+			}
+			indegree.put(entry, count);
+			if (count == 0) {
+				layer.add(entry);
+			}
+		}
+		// Peel off one layer at a time
+		ArrayList<List<Path.Entry<?>>> layers = new ArrayList<>();
+		while (!layer.isEmpty()) {
+			layers.add(layer);
+			ArrayList<Path.Entry<?>> next = new ArrayList<>();
+			for (Path.Entry<?> entry : layer) {
+				indegree.remove(entry);
+				for (Path.Entry<?> child : graph.getChildren(entry)) {
+					Integer count = indegree.get(child);
+					if (child != entry && count != null) {
+						indegree.put(child, count - 1);
+						if (count == 1) {
+							next.add(child);
+						}
+					}
+				}
+			}
+			layer = next;
+		}
+		// Anything left must be involved in a cycle
+		if (!indegree.isEmpty()) {
+			ArrayList<Path.Entry<?>> remainder = new ArrayList<>();
+			for (Path.Entry<?> entry : entries) {
+				if (indegree.containsKey(entry)) {
+					remainder.add(entry);
+				}
+			}
+			layers.add(remainder);
+		}
+		return layers;
+	}
+}
@@ -0,0 +1,351 @@
+// Copyright 2011 The Whiley Project Developers
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package wybs.util;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import wybs.lang.SyntacticHeap;
+import wybs.lang.SyntacticItem;
+
+/**
+ * <p>
+ * A read-only syntactic heap whose columns are stored in a
+ * <code>ByteBuffer</code>, which is typically a memory-mapped file. Items are
+ * accessed through lightweight views which read directly from the buffer.
+ * Thus, the items of the heap are not held on the Java heap, and opening a
+ * heap takes constant time regardless of its size (since only the header is
+ * read). This is intended for very large heaps which are inspected or analysed
+ * rather than modified.
+ * </p>
+ * <p>
+ * The buffer has the following layout, where all integers are 32bit big
+ * endian:
+ * </p>
+ *
+ * <pre>
+ * +--------+------+------+----------+-----------+
+ * | "WYHM" | size | root | operands | arena     |  header
+ * +--------+------+------+----------+-----------+
+ * | opcodes        (size bytes, padded to 4)    |
+ * | operandOffsets (size+1 integers)            |
+ * | operands       (integers, -1 for null)      |
+ * | dataOffsets    (size+1 integers)            |
+ * | nodata         (size bits, in bytes)        |
+ * | arena          (bytes)                      |
+ * +---------------------------------------------+
+ * </pre>
+ *
+ * <p>
+ * Since buffers are indexed using integers, a heap is limited to 2GB.
+ * </p>
+ *
+ * @author David J. Pearce
+ *
+ */
+public class MappedSyntacticHeap extends AbstractColumnarSyntacticHeap {
+	/**
+	 * Magic number identifying a mapped heap.
+	 */
+	private static final byte[] MAGIC = { 'W', 'Y', 'H', 'M' };
+
+	/**
+	 * The size of the header (in bytes).
+	 */
+	private static final int HEADER = 20;
+
+	private final ByteBuffer buffer;
+	private final int size;
+	private final int opcodesOffset;
+	private final int operandOffsetsOffset;
+	private final int operandsOffset;
+	private final int dataOffsetsOffset;
+	private final int nodataOffset;
+	private final int arenaOffset;
+
+	/**
+	 * Construct a heap from a given buffer, which is not copied.
+	 *
+	 * @param buffer
+	 * @param schema
+	 * @throws IOException
+	 *             If the buffer does not contain a valid heap.
+	 */
+	public MappedSyntacticHeap(ByteBuffer buffer, SyntacticItem.Schema[] schema) throws IOException {
+		super(schema);
+		this.buffer = buffer;
+		if (buffer.limit() < HEADER) {
+			throw new IOException("invalid syntactic heap");
+		}
+		for (int i = 0; i != MAGIC.length; ++i) {
+			if (buffer.get(i) != MAGIC[i]) {
+				throw new IOException("invalid magic number");
+			}
+		}
+		this.size = buffer.getInt(4);
+		this.root = buffer.getInt(8);
+		int operands = buffer.getInt(12);
+		int arena = buffer.getInt(16);
+		if (size < 0 || operands < 0 || arena < 0 || (size > 0 && (root < 0 || root >= size))) {
+			throw new IOException("invalid syntactic heap");
+		}
+		// Determine the end of the arena without overflowing
+		if (length(size, operands, arena) > buffer.limit()) {
+			throw new IOException("invalid syntactic heap");
+		}
+		this.opcodesOffset = HEADER;
+		this.operandOffsetsOffset = (int) align(opcodesOffset + size);
+		this.operandsOffset = operandOffsetsOffset + 4 * (size + 1);
+		this.dataOffsetsOffset = operandsOffset + 4 * operands;
+		this.nodataOffset = dataOffsetsOffset + 4 * (size + 1);
+		this.arenaOffset = nodataOffset + (size + 7) / 8;
+	}
+
+	/**
+	 * Open a heap stored in a given file by mapping it into memory.
+	 *
+	 * @param file
+	 * @param schema
+	 * @return
+	 * @throws IOException
+	 */
+	public static MappedSyntacticHeap open(File file, SyntacticItem.Schema[] schema) throws IOException {
+		try (RandomAccessFile raf = new RandomAccessFile(file, "r"); FileChannel channel = raf.getChannel()) {
+			// NOTE: the mapping remains valid after the channel is closed
+			return new MappedSyntacticHeap(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()), schema);
+		}
+	}
+
+	/**
+	 * Write a given heap to a given file, such that it can subsequently be
+	 * opened as a mapped heap.
+	 *
+	 * @param heap
+	 * @param file
+	 * @throws IOException
+	 */
+	public static void write(SyntacticHeap heap, File file) throws IOException {
+		try (FileOutputStream fout = new FileOutputStream(file)) {
+			write(heap, fout);
+		}
+	}
+
+	/**
+	 * Write a given heap to a given output stream, such that it can
+	 * subsequently be opened as a mapped heap. The stream is not closed.
+	 *
+	 * @param heap
+	 * @param output
+	 * @throws IOException
+	 * @throws IllegalArgumentException
+	 *             If the heap is too large to be mapped (i.e. exceeds 2GB).
+	 */
+	public static void write(SyntacticHeap heap, OutputStream output) throws IOException {
+		int size = heap.size();
+		long operands = 0;
+		long arena = 0;
+		for (int i = 0; i != size; ++i) {
+			SyntacticItem item = heap.getSyntacticItem(i);
+			if (item.getOpcode() < 0 || item.getOpcode() > 255) {
+				throw new IllegalArgumentException("invalid opcode (" + item.getOpcode() + ")");
+			}
+			byte[] data = item.getData();
+			operands += item.size();
+			arena += data == null ? 0 : data.length;
+		}
+		// Buffers are indexed using integers
+		long length = length(size, operands, arena);
+		if (length > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("heap too large to map (" + length + " bytes)");
+		}
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(output));
+		out.write(MAGIC);
+		out.writeInt(size);
+		out.writeInt(size == 0 ? 0 : heap.getRootItem().getIndex());
+		out.writeInt((int) operands);
+		out.writeInt((int) arena);
+		// Opcodes
+		for (int i = 0; i != size; ++i) {
+			out.writeByte(heap.getSyntacticItem(i).getOpcode());
+		}
+		for (int i = HEADER + size; i != align(HEADER + size); ++i) {
+			out.writeByte(0);
+		}
+		// Operands
+		int offset = 0;
+		out.writeInt(offset);
+		for (int i = 0; i != size; ++i) {
+			offset += heap.getSyntacticItem(i).size();
+			out.writeInt(offset);
+		}
+		for (int i = 0; i != size; ++i) {
+			SyntacticItem item = heap.getSyntacticItem(i);
+			for (int j = 0; j != item.size(); ++j) {
+				SyntacticItem operand = item.get(j);
+				out.writeInt(operand == null ? -1 : heap.getIndexOf(operand));
+			}
+		}
+		// Data
+		offset = 0;
+		out.writeInt(offset);
+		byte[] nodata = new byte[(size + 7) / 8];
+		for (int i = 0; i != size; ++i) {
+			byte[] data = heap.getSyntacticItem(i).getData();
+			if (data == null) {
+				nodata[i >> 3] |= 1 << (i & 7);
+			} else {
+				offset += data.length;
+			}
+			out.writeInt(offset);
+		}
+		out.write(nodata);
+		for (int i = 0; i != size; ++i) {
+			byte[] data = heap.getSyntacticItem(i).getData();
+			if (data != null) {
+				out.write(data);
+			}
+		}
+		out.flush();
+	}
+
+	// ======================================================================
+	// Columns
+	// ======================================================================
+
+	@Override
+	public int getOpcode(int index) {
+		check(index);
+		return buffer.get(opcodesOffset + index) & 0xFF;
+	}
+
+	@Override
+	public int getOperandCount(int index) {
+		check(index);
+		int offset = operandOffsetsOffset + 4 * index;
+		return buffer.getInt(offset + 4) - buffer.getInt(offset);
+	}
+
+	@Override
+	public int getOperand(int index, int ith) {
+		if (ith < 0 || ith >= getOperandCount(index)) {
+			throw new IndexOutOfBoundsException("invalid operand (" + ith + ")");
+		}
+		int start = buffer.getInt(operandOffsetsOffset + 4 * index);
+		return buffer.getInt(operandsOffset + 4 * (start + ith));
+	}
+
+	@Override
+	public int getDataLength(int index) {
+		check(index);
+		if (isNoData(index)) {
+			return -1;
+		} else {
+			int offset = dataOffsetsOffset + 4 * index;
+			return buffer.getInt(offset + 4) - buffer.getInt(offset);
+		}
+	}
+
+	@Override
+	public byte[] getData(int index) {
+		int length = getDataLength(index);
+		if (length < 0) {
+			return null;
+		}
+		byte[] data = new byte[length];
+		int start = arenaOffset + buffer.getInt(dataOffsetsOffset + 4 * index);
+		for (int i = 0; i != length; ++i) {
+			data[i] = buffer.get(start + i);
+		}
+		return data;
+	}
+
+	/**
+	 * Get the data of the item at a given index without copying it. The buffer
+	 * returned is a read-only view of this heap's buffer.
+	 *
+	 * @param index
+	 * @return The data, or <code>null</code> if the item has no data.
+	 */
+	public ByteBuffer getDataBuffer(int index) {
+		int length = getDataLength(index);
+		if (length < 0) {
+			return null;
+		}
+		int start = arenaOffset + buffer.getInt(dataOffsetsOffset + 4 * index);
+		ByteBuffer data = buffer.asReadOnlyBuffer();
+		data.position(start);
+		data.limit(start + length);
+		return data.slice();
+	}
+
+	@Override
+	protected void setOpcode(int index, int opcode) {
+		throw new UnsupportedOperationException("syntactic heap is read-only");
+	}
+
+	@Override
+	protected void setOperand(int index, int ith, int operand) {
+		throw new UnsupportedOperationException("syntactic heap is read-only");
+	}
+
+	// ======================================================================
+	// Syntactic Heap
+	// ======================================================================
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	@Override
+	public <T extends SyntacticItem> T allocate(T item) {
+		if (item.getHeap() == this) {
+			return item;
+		}
+		throw new UnsupportedOperationException("syntactic heap is read-only");
+	}
+
+	// ======================================================================
+	// Helpers
+	// ======================================================================
+
+	private boolean isNoData(int index) {
+		return (buffer.get(nodataOffset + (index >> 3)) & (1 << (index & 7))) != 0;
+	}
+
+	/**
+	 * Determine the length (in bytes) of a heap with a given number of items,
+	 * operands and bytes of data, without overflowing.
+	 *
+	 * @param size
+	 * @param operands
+	 * @param arena
+	 * @return
+	 */
+	private static long length(int size, long operands, long arena) {
+		return align(HEADER + (long) size) + 4L * (size + 1) + 4L * operands + 4L * (size + 1) + (size + 7L) / 8
+				+ arena;
+	}
+
+	private static long align(long offset) {
+		return (offset + 3) & ~3L;
+	}
+}
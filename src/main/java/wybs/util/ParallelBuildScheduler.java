@@ -0,0 +1,411 @@
+// Copyright 2011 The Whiley Project Developers
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package wybs.util;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import wybs.lang.Build;
+import wycc.util.Trace;
+import wyfs.lang.Path;
+
+/**
+ * <p>
+ * Schedules the build rules of a project across a fixed pool of worker
+ * threads. The build graph is used to determine which entries are ready to be
+ * built. Specifically, an entry is ready when none of its ancestors in the
+ * graph are still waiting to be built, or are currently being built. This is
+ * tracked by counting the unfinished parents of each entry which may yet be
+ * built, such that the counts are decreased as entries finish. Ready entries
+ * are split into groups which are then built independently. As each group
+ * completes, the entries it generated are scheduled in turn (unless they were
+ * regenerated unchanged, as determined by <code>EarlyCutoff</code>).
+ * </p>
+ * <p>
+ * <b>NOTE:</b> build rules (and the tasks they invoke) may be applied
+ * concurrently to disjoint groups of entries and, hence, must be thread-safe.
+ * Likewise, the build graph and roots may be accessed concurrently and must be
+ * thread-safe.
+ * </p>
+ *
+ * @author David J. Pearce
+ *
+ */
+public class ParallelBuildScheduler {
+	/**
+	 * The rules to be applied for each group of entries.
+	 */
+	private final List<Build.Rule> rules;
+
+	/**
+	 * The number of worker threads to use.
+	 */
+	private final int jobs;
+
+	/**
+	 * Determines which generated entries need to be built further.
+	 */
+	private final EarlyCutoff cutoff;
+
+	public ParallelBuildScheduler(List<Build.Rule> rules, int jobs) {
+		this(rules, jobs, new EarlyCutoff());
+	}
+
+	public ParallelBuildScheduler(List<Build.Rule> rules, int jobs, EarlyCutoff cutoff) {
+		if (jobs <= 0) {
+			throw new IllegalArgumentException("invalid number of jobs (" + jobs + ")");
+		}
+		this.rules = rules;
+		this.jobs = jobs;
+		this.cutoff = cutoff;
+	}
+
+	/**
+	 * Build a given set of source entries, including all files which depend upon
+	 * them.
+	 *
+	 * @param sources
+	 *            --- a collection of source file entries. This will not be modified
+	 *            by this method.
+	 * @param graph
+	 *            --- the (thread-safe) build graph being constructed.
+	 * @throws Exception
+	 */
+	public void build(Collection<? extends Path.Entry<?>> sources, Build.Graph graph) throws Exception {
+		ExecutorService executor = Executors.newFixedThreadPool(jobs);
+		try {
+			build(sources, graph, new ExecutorCompletionService<>(executor));
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	private void build(Collection<? extends Path.Entry<?>> sources, Build.Graph graph,
+			CompletionService<Group> service) throws Exception {
+		// Entries which have yet to be scheduled
+		HashSet<Path.Entry<?>> waiting = new HashSet<>(sources);
+		// Entries which are currently being built
+		HashSet<Path.Entry<?>> running = new HashSet<>();
+		// Unfinished entries which may yet be built, along with the number of
+		// their parents which are unfinished.
+		HashMap<Path.Entry<?>, Integer> pending = new HashMap<>();
+		// Entries which are waiting, but have no unfinished parents
+		ArrayList<Path.Entry<?>> ready = new ArrayList<>();
+		add(waiting, pending, graph);
+		for (Path.Entry<?> entry : waiting) {
+			if (pending.get(entry) == 0) {
+				ready.add(entry);
+			}
+		}
+		// Number of groups submitted but not yet completed
+		int inflight = 0;
+		//
+		while (!waiting.isEmpty() || inflight > 0) {
+			if (ready.isEmpty() && inflight == 0) {
+				// Nothing is ready and nothing is being built. Since the build graph
+				// may have changed since the counts were determined, recount them.
+				ready = recount(waiting, pending, graph);
+				if (ready.isEmpty()) {
+					// This can only arise from a cycle in the build graph, so fall
+					// back to building everything at once.
+					ready = new ArrayList<>(waiting);
+				}
+			}
+			// Schedule ready groups
+			for (List<Path.Entry<?>> group : partition(ready, graph)) {
+				waiting.removeAll(group);
+				running.addAll(group);
+				service.submit(() -> new Group(group, apply(group, graph)));
+				inflight = inflight + 1;
+			}
+			ready.clear();
+			// Wait for (at least) one group to complete
+			Group completed = take(service);
+			inflight = inflight - 1;
+			running.removeAll(completed.entries);
+			// Entries generated must be built in turn, once their parents are finished
+			ArrayList<Path.Entry<?>> generated = new ArrayList<>();
+			for (Path.Entry<?> entry : completed.generated) {
+				if (!running.contains(entry) && waiting.add(entry)) {
+					generated.add(entry);
+				}
+			}
+			add(generated, pending, graph);
+			for (Path.Entry<?> entry : generated) {
+				if (pending.get(entry) == 0) {
+					ready.add(entry);
+				}
+			}
+			for (Path.Entry<?> entry : completed.entries) {
+				finish(entry, waiting, running, pending, ready, graph);
+			}
+		}
+	}
+
+	/**
+	 * Apply every build rule to a given group of entries, returning the set of
+	 * generated entries which have changed.
+	 *
+	 * @param group
+	 * @param graph
+	 * @return
+	 * @throws Exception
+	 */
+	private Set<Path.Entry<?>> apply(List<Path.Entry<?>> group, Build.Graph graph) throws Exception {
+		HashSet<Path.Entry<?>> generated = new HashSet<>();
+		for (Build.Rule r : rules) {
+			Trace.Event event = Trace.begin("build", "apply", group.size() == 1 ? group.get(0).id() : null);
+			try {
+				generated.addAll(r.apply(group, graph));
+			} finally {
+				event.end();
+			}
+		}
+		return cutoff.apply(generated, graph);
+	}
+
+	/**
+	 * Add a given set of entries, along with all entries derived from them, to
+	 * the pending entries. The count for each entry added is the number of its
+	 * parents which are pending. Likewise, the count for each entry already
+	 * pending is increased for each parent added.
+	 *
+	 * @param entries
+	 * @param pending
+	 * @param graph
+	 */
+	private static void add(Collection<? extends Path.Entry<?>> entries, Map<Path.Entry<?>, Integer> pending,
+			Build.Graph graph) {
+		// Determine entries being added
+		HashSet<Path.Entry<?>> added = new HashSet<>();
+		ArrayList<Path.Entry<?>> worklist = new ArrayList<>(entries);
+		while (!worklist.isEmpty()) {
+			Path.Entry<?> entry = worklist.remove(worklist.size() - 1);
+			if (!pending.containsKey(entry) && added.add(entry)) {
+				worklist.addAll(graph.getChildren(entry));
+			}
+		}
+		for (Path.Entry<?> entry : added) {
+			pending.put(entry, 0);
+		}
+		for (Path.Entry<?> entry : added) {
+			pending.put(entry, countPendingParents(entry, pending, graph));
+			// Count edges into entries already pending
+			for (Path.Entry<?> child : graph.getChildren(entry)) {
+				Integer count = pending.get(child);
+				if (count != null && child != entry && !added.contains(child)) {
+					pending.put(child, count + 1);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Mark a given entry as finished, thereby decreasing the count of each
+	 * child. A waiting child whose count reaches zero is then ready. Otherwise,
+	 * the child was not regenerated and, hence, is itself finished.
+	 *
+	 * @param entry
+	 * @param waiting
+	 * @param running
+	 * @param pending
+	 * @param ready
+	 * @param graph
+	 */
+	private static void finish(Path.Entry<?> entry, Set<Path.Entry<?>> waiting, Set<Path.Entry<?>> running,
+			Map<Path.Entry<?>, Integer> pending, List<Path.Entry<?>> ready, Build.Graph graph) {
+		ArrayList<Path.Entry<?>> worklist = new ArrayList<>();
+		worklist.add(entry);
+		while (!worklist.isEmpty()) {
+			Path.Entry<?> next = worklist.remove(worklist.size() - 1);
+			if (pending.remove(next) == null) {
+				continue;
+			}
+			for (Path.Entry<?> child : graph.getChildren(next)) {
+				Integer count = pending.get(child);
+				if (count == null || count == 0 || child == next) {
+					continue;
+				}
+				pending.put(child, count - 1);
+				if (count > 1 || running.contains(child)) {
+					continue;
+				} else if (hasPendingParent(child, pending, graph)) {
+					// Edges were added since counting, so count again
+					pending.put(child, countPendingParents(child, pending, graph));
+				} else if (waiting.contains(child)) {
+					ready.add(child);
+				} else {
+					worklist.add(child);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Recount the number of pending parents for every pending entry, returning
+	 * those waiting entries which have none.
+	 *
+	 * @param waiting
+	 * @param pending
+	 * @param graph
+	 * @return
+	 */
+	private static ArrayList<Path.Entry<?>> recount(Set<Path.Entry<?>> waiting, Map<Path.Entry<?>, Integer> pending,
+			Build.Graph graph) {
+		ArrayList<Path.Entry<?>> ready = new ArrayList<>();
+		for (Map.Entry<Path.Entry<?>, Integer> e : pending.entrySet()) {
+			e.setValue(countPendingParents(e.getKey(), pending, graph));
+		}
+		for (Path.Entry<?> entry : waiting) {
+			Integer count = pending.get(entry);
+			if (count == null || count == 0) {
+				ready.add(entry);
+			}
+		}
+		return ready;
+	}
+
+	private static boolean hasPendingParent(Path.Entry<?> entry, Map<Path.Entry<?>, Integer> pending,
+			Build.Graph graph) {
+		for (Path.Entry<?> parent : graph.getParents(entry)) {
+			if (parent != entry && pending.containsKey(parent)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static int countPendingParents(Path.Entry<?> entry, Map<Path.Entry<?>, Integer> pending,
+			Build.Graph graph) {
+		int count = 0;
+		for (Path.Entry<?> parent : graph.getParents(entry)) {
+			if (parent != entry && pending.containsKey(parent)) {
+				count = count + 1;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Split a list of ready entries into at most <code>jobs</code> groups of
+	 * roughly equal size. Entries which share a child in the build graph are
+	 * always placed in the same group, since a task may expect to see them
+	 * together when generating that child. Otherwise, entries are built
+	 * independently of each other.
+	 *
+	 * @param ready
+	 * @param graph
+	 * @return
+	 */
+	private List<List<Path.Entry<?>>> partition(List<Path.Entry<?>> ready, Build.Graph graph) {
+		int[] components = new int[ready.size()];
+		for (int i = 0; i != components.length; ++i) {
+			components[i] = i;
+		}
+		// Union entries which share a child
+		HashMap<Path.Entry<?>, Integer> children = new HashMap<>();
+		for (int i = 0; i != ready.size(); ++i) {
+			for (Path.Entry<?> child : graph.getChildren(ready.get(i))) {
+				Integer j = children.putIfAbsent(child, i);
+				if (j != null) {
+					union(components, i, j);
+				}
+			}
+		}
+		// Collect components, then assign each to the smallest group
+		LinkedHashMap<Integer, List<Path.Entry<?>>> members = new LinkedHashMap<>();
+		for (int i = 0; i != ready.size(); ++i) {
+			members.computeIfAbsent(find(components, i), k -> new ArrayList<>()).add(ready.get(i));
+		}
+		ArrayList<List<Path.Entry<?>>> sorted = new ArrayList<>(members.values());
+		sorted.sort((a, b) -> Integer.compare(b.size(), a.size()));
+		ArrayList<List<Path.Entry<?>>> groups = new ArrayList<>();
+		for (List<Path.Entry<?>> component : sorted) {
+			if (groups.size() < jobs) {
+				groups.add(new ArrayList<>(component));
+			} else {
+				List<Path.Entry<?>> smallest = groups.get(0);
+				for (List<Path.Entry<?>> group : groups) {
+					if (group.size() < smallest.size()) {
+						smallest = group;
+					}
+				}
+				smallest.addAll(component);
+			}
+		}
+		return groups;
+	}
+
+	private static int find(int[] components, int i) {
+		while (components[i] != i) {
+			components[i] = components[components[i]];
+			i = components[i];
+		}
+		return i;
+	}
+
+	private static void union(int[] components, int i, int j) {
+		components[find(components, i)] = find(components, j);
+	}
+
+	/**
+	 * Wait for the next group to complete, unwrapping any exception it raised.
+	 *
+	 * @param service
+	 * @return
+	 * @throws Exception
+	 */
+	private static Group take(CompletionService<Group> service) throws Exception {
+		try {
+			return service.take().get();
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof Exception) {
+				throw (Exception) cause;
+			} else if (cause instanceof Error) {
+				throw (Error) cause;
+			} else {
+				throw e;
+			}
+		}
+	}
+
+	/**
+	 * Records a group of entries which have been built, along with the entries
+	 * generated from them.
+	 *
+	 * @author David J. Pearce
+	 *
+	 */
+	private static class Group {
+		private final List<Path.Entry<?>> entries;
+		private final Set<Path.Entry<?>> generated;
+
+		public Group(List<Path.Entry<?>> entries, Set<Path.Entry<?>> generated) {
+			this.entries = entries;
+			this.generated = generated;
+		}
+	}
+}
@@ -14,8 +14,10 @@
 package wybs.util;
 
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Set;
 
@@ -24,65 +26,159 @@ import wyfs.lang.Path;
 import wyfs.lang.Path.Entry;
 
 /**
- * Provides a straightforward implementation of the Build.Graph interface.
+ * Provides a straightforward implementation of the Build.Graph interface. This
+ * maintains both forward (parent to children) and reverse (child to parents)
+ * adjacency maps, so that neighbouring entries can be found without scanning
+ * every edge. Duplicate edges are ignored. This is synchronised so that it can
+ * be safely shared between concurrent build tasks.
  *
  * @author David J. Pearce
  *
  */
 public class StdBuildGraph implements Build.Graph {
+	/**
+	 * The derives relation maps parent entries to the children derived from
+	 * them.
+	 */
+	private final HashMap<Path.Entry<?>, LinkedHashSet<Path.Entry<?>>> children = new HashMap<>();
+
 	/**
 	 * The derived from relation maps child entries to the parents they are
 	 * derived from.
 	 */
-	private ArrayList<Edge> edges = new ArrayList<>();
+	private final HashMap<Path.Entry<?>, LinkedHashSet<Path.Entry<?>>> parents = new HashMap<>();
+
+	/**
+	 * The set of entries which are involved in at least one edge.
+	 */
+	private final LinkedHashSet<Path.Entry<?>> entries = new LinkedHashSet<>();
 
 	@Override
-	public List<Entry<?>> getParents(Entry<?> child) {
-		ArrayList<Entry<?>> parents = new ArrayList<>();
-		for (int i = 0; i != edges.size(); ++i) {
-			Edge e = edges.get(i);
-			if (e.child == child) {
-				parents.add(e.parent);
-			}
-		}
-		return parents;
+	public synchronized List<Entry<?>> getParents(Entry<?> child) {
+		return toList(parents.get(child));
 	}
 
 	@Override
-	public List<Entry<?>> getChildren(Entry<?> parent) {
-		ArrayList<Entry<?>> children = new ArrayList<>();
-		for (int i = 0; i != edges.size(); ++i) {
-			Edge e = edges.get(i);
-			if (e.parent == parent) {
-				children.add(e.child);
-			}
-		}
-		return children;
+	public synchronized List<Entry<?>> getChildren(Entry<?> parent) {
+		return toList(children.get(parent));
 	}
 
 	@Override
-	public Set<Entry<?>> getEntries() {
-		HashSet<Entry<?>> entries = new HashSet<>();
-		for (int i = 0; i != edges.size(); ++i) {
-			Edge e = edges.get(i);
-			entries.add(e.parent);
-			entries.add(e.child);
+	public synchronized Set<Entry<?>> getEntries() {
+		return Collections.unmodifiableSet(new LinkedHashSet<>(entries));
+	}
+
+	/**
+	 * Get the number of edges in this graph.
+	 *
+	 * @return
+	 */
+	public synchronized int size() {
+		int count = 0;
+		for (LinkedHashSet<Path.Entry<?>> cs : children.values()) {
+			count += cs.size();
 		}
-		return entries;
+		return count;
 	}
 
 	@Override
-	public void connect(Path.Entry<?> parent, Path.Entry<?> child) {
-		edges.add(new Edge(parent,child));
+	public synchronized void connect(Path.Entry<?> parent, Path.Entry<?> child) {
+		insert(parent, child);
+	}
+
+	/**
+	 * Register a derivation from one file (the parent) to each of a number of
+	 * others (the children). This is equivalent to calling
+	 * <code>connect(parent,child)</code> for each child, but is performed
+	 * atomically.
+	 *
+	 * @param parent
+	 * @param children
+	 */
+	public synchronized void connectAll(Path.Entry<?> parent, Collection<? extends Path.Entry<?>> children) {
+		for (Path.Entry<?> child : children) {
+			insert(parent, child);
+		}
+	}
+
+	/**
+	 * Remove the derivation from one file (the parent) to another (the child), if
+	 * it exists. Entries which no longer participate in any edge are removed from
+	 * the graph.
+	 *
+	 * @param parent
+	 * @param child
+	 * @return True if the edge existed, false otherwise.
+	 */
+	public synchronized boolean disconnect(Path.Entry<?> parent, Path.Entry<?> child) {
+		LinkedHashSet<Path.Entry<?>> cs = children.get(parent);
+		if (cs == null || !cs.remove(child)) {
+			return false;
+		}
+		parents.get(child).remove(parent);
+		prune(parent);
+		prune(child);
+		return true;
+	}
+
+	/**
+	 * Remove all derivations to or from a given entry, thereby removing that entry
+	 * from the graph. Entries which no longer participate in any edge are also
+	 * removed.
+	 *
+	 * @param entry
+	 * @return The number of edges removed.
+	 */
+	public synchronized int disconnect(Path.Entry<?> entry) {
+		int count = 0;
+		for (Path.Entry<?> child : toList(children.get(entry))) {
+			count += disconnect(entry, child) ? 1 : 0;
+		}
+		for (Path.Entry<?> parent : toList(parents.get(entry))) {
+			count += disconnect(parent, entry) ? 1 : 0;
+		}
+		return count;
 	}
 
-	private static class Edge {
-		private final Path.Entry<?> parent;
-		private final Path.Entry<?> child;
+	// ======================================================================
+	// Helpers
+	// ======================================================================
+
+	private void insert(Path.Entry<?> parent, Path.Entry<?> child) {
+		if (children.computeIfAbsent(parent, e -> new LinkedHashSet<>()).add(child)) {
+			parents.computeIfAbsent(child, e -> new LinkedHashSet<>()).add(parent);
+			entries.add(parent);
+			entries.add(child);
+		}
+	}
+
+	/**
+	 * Remove a given entry from the graph if it no longer participates in any
+	 * edges.
+	 *
+	 * @param entry
+	 */
+	private void prune(Path.Entry<?> entry) {
+		LinkedHashSet<Path.Entry<?>> cs = children.get(entry);
+		LinkedHashSet<Path.Entry<?>> ps = parents.get(entry);
+		if (cs != null && cs.isEmpty()) {
+			children.remove(entry);
+			cs = null;
+		}
+		if (ps != null && ps.isEmpty()) {
+			parents.remove(entry);
+			ps = null;
+		}
+		if (cs == null && ps == null) {
+			entries.remove(entry);
+		}
+	}
 
-		public Edge(Path.Entry<?> parent, Path.Entry<?> child) {
-			this.parent = parent;
-			this.child = child;
+	private static List<Path.Entry<?>> toList(Set<Path.Entry<?>> entries) {
+		if (entries == null) {
+			return new ArrayList<>();
+		} else {
+			return new ArrayList<>(entries);
 		}
 	}
 }
@@ -13,14 +13,27 @@
 // limitations under the License.
 package wybs.util;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.net.URISyntaxException;
+import java.security.CodeSource;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import wybs.lang.Build;
+import wycc.util.Digest;
 import wycc.util.Pair;
+import wycc.util.Trace;
 import wyfs.lang.Content;
 import wyfs.lang.Path;
 
@@ -32,6 +45,15 @@ import wyfs.lang.Path;
  * encountered.
  * </p>
  * <p>
+ * A build rule may optionally be given an action cache. In this case, the
+ * outputs for a given group of files are looked up in the cache before the
+ * builder is invoked and, if found, are restored into the target root instead.
+ * The key for a group is determined from the builder (including its
+ * implementation, so that outputs cached by another version of it are never
+ * restored), the configuration digest given for this rule, the files in the group and the contents of every file in
+ * the source root matched by this rule (since a file may depend on any other).
+ * </p>
+ * <p>
  * <b>NOTE</b>: instances of this class are immutable, although objects they
  * reference may not be (e.g. builders).
  * </p>
@@ -70,6 +92,38 @@ public class StdBuildRule implements Build.Rule {
 	 */
 	final Content.Filter<?> excludes;
 
+	/**
+	 * The cache of previously built outputs. Maybe null.
+	 */
+	final ActionCache cache;
+
+	/**
+	 * A digest of the configuration which affects the builder. This is included
+	 * in every key used for the action cache.
+	 */
+	final long configuration;
+
+	/**
+	 * Records the last known (SHA-256) digest for each source file. Each is
+	 * associated with the modification time at which it was computed, so that
+	 * files are only read again when they change.
+	 */
+	private final Map<Path.Entry<?>, Pair<Long, byte[]>> digests = new ConcurrentHashMap<>();
+
+	/**
+	 * A digest identifying the implementation of the builder, which is
+	 * determined lazily.
+	 */
+	private volatile byte[] implementation;
+
+	/**
+	 * Records the last known (SHA-256) digest for each archive from which a
+	 * builder was loaded, along with the modification time at which it was
+	 * computed. This is shared between rules, since many builders are loaded
+	 * from the same archive.
+	 */
+	private static final Map<File, Pair<Long, byte[]>> archives = new ConcurrentHashMap<>();
+
 	/**
 	 * Construct a standard build rule.
 	 *
@@ -92,34 +146,301 @@ public class StdBuildRule implements Build.Rule {
 	 */
 	public StdBuildRule(Build.Task builder, Path.Root srcRoot, Content.Filter<?> includes, Content.Filter<?> excludes,
 			Path.Root targetRoot) {
+		this(builder, srcRoot, includes, excludes, targetRoot, null, Digest.UNKNOWN);
+	}
+
+	/**
+	 * Construct a standard build rule which uses a given action cache.
+	 *
+	 * @param builder
+	 *            The build task used to build files using this rule.
+	 * @param srcRoot
+	 *            The source root containing all files which might be built
+	 *            using this rule.
+	 * @param includes
+	 *            A content filter used to determine which files contained in
+	 *            the source root should be built by this rule. Maybe null.
+	 * @param excludes
+	 *            A content filter used to determine which files contained in
+	 *            the source root should be not built by this rule. Maybe null.
+	 * @param targetRoot
+	 *            The destination root into which all files built using this
+	 *            rule are placed.
+	 * @param cache
+	 *            The cache of previously built outputs. Maybe null.
+	 * @param configuration
+	 *            A digest of the configuration affecting the builder.
+	 */
+	public StdBuildRule(Build.Task builder, Path.Root srcRoot, Content.Filter<?> includes, Content.Filter<?> excludes,
+			Path.Root targetRoot, ActionCache cache, long configuration) {
 		this.builder = builder;
 		this.source = srcRoot;
 		this.target = targetRoot;
 		this.includes = includes;
 		this.excludes = excludes;
+		this.cache = cache;
+		this.configuration = configuration;
 	}
 
 	@Override
-	@SuppressWarnings({ "rawtypes", "unchecked" })
 	public Set<Path.Entry<?>> apply(Collection<? extends Path.Entry<?>> group, Build.Graph graph) throws IOException {
 		ArrayList<Pair<Path.Entry<?>, Path.Root>> matches = new ArrayList<>();
 
 		// First, determine the set of matching files
-		for (Path.Entry e : group) {
-			if (includes == null || !includes.matches(e.id(), e.contentType())) {
+		for (Path.Entry<?> e : group) {
+			if (includes == null || !matches(includes, e)) {
 				continue;
 			}
-			if (excludes != null && excludes.matches(e.id(), e.contentType())) {
+			if (excludes != null && matches(excludes, e)) {
 				continue;
 			}
-			matches.add(new Pair<Path.Entry<?>, Path.Root>(e, target));
+			matches.add(new Pair<>(e, target));
 		}
 
 		// Second, build all matching files
-		if (matches.size() > 0) {
+		if (matches.isEmpty()) {
+			return Collections.emptySet();
+		} else if (cache == null) {
+			return build(matches, graph);
+		}
+		// Third, check whether outputs are already cached
+		ActionCache.Key key = getKey(matches);
+		if (key != null) {
+			List<ActionCache.Output> outputs = cache.get(key);
+			if (outputs != null) {
+				return restore(outputs, matches, graph);
+			}
+		}
+		Set<Path.Entry<?>> generated = build(matches, graph);
+		if (key != null) {
+			store(key, generated, graph);
+		}
+		return generated;
+	}
+
+	/**
+	 * Check whether a given filter matches a given entry. The filter only
+	 * examines the content type of the entry, hence this can be retyped.
+	 *
+	 * @param filter
+	 * @param e
+	 * @return
+	 */
+	@SuppressWarnings("unchecked")
+	private static <T> boolean matches(Content.Filter<T> filter, Path.Entry<?> e) {
+		return filter.matches(e.id(), (Content.Type<T>) e.contentType());
+	}
+
+	/**
+	 * Invoke the builder on a given group of matching files.
+	 *
+	 * @param matches
+	 * @param graph
+	 * @return
+	 * @throws IOException
+	 */
+	private Set<Path.Entry<?>> build(List<Pair<Path.Entry<?>, Path.Root>> matches, Build.Graph graph)
+			throws IOException {
+		Trace.Event event = Trace.begin("build", "task", matches.size() == 1 ? matches.get(0).first().id() : null);
+		try {
 			return builder.build(matches, graph);
+		} finally {
+			event.end();
+		}
+	}
+
+	/**
+	 * Determine the action cache key for a given group of matching files. If
+	 * the contents of any file cannot be determined, then <code>null</code> is
+	 * returned and the group is not cached.
+	 *
+	 * @param matches
+	 * @return
+	 * @throws IOException
+	 */
+	private ActionCache.Key getKey(List<Pair<Path.Entry<?>, Path.Root>> matches) throws IOException {
+		if (implementation == null) {
+			implementation = getImplementation(builder.getClass());
+		}
+		ActionCache.Key digest = new ActionCache.Key();
+		digest.update(builder.getClass().getName());
+		digest.update(implementation);
+		digest.update(configuration);
+		for (Pair<Path.Entry<?>, Path.Root> p : matches) {
+			Path.Entry<?> e = p.first();
+			digest.update(e.id().toString());
+			digest.update(e.contentType().getSuffix());
+		}
+		// Include every file which might be used in building the group.
+		List<? extends Path.Entry<?>> inputs = includes == null ? Collections.emptyList() : source.get(includes);
+		digest.update(inputs.size());
+		for (Path.Entry<?> e : inputs) {
+			byte[] d = getDigest(e);
+			if (d == null) {
+				return null;
+			}
+			digest.update(e.id().toString());
+			digest.update(d);
+		}
+		return digest;
+	}
+
+	/**
+	 * Determine a digest identifying the implementation of a given class. This
+	 * consists of the implementation version of its package (if any) and the
+	 * contents of the archive from which it was loaded. If the class was not
+	 * loaded from an archive (e.g. during development), then the contents of
+	 * its class file are used instead.
+	 *
+	 * @param c
+	 * @return
+	 * @throws IOException
+	 */
+	private static byte[] getImplementation(Class<?> c) throws IOException {
+		ActionCache.Key digest = new ActionCache.Key();
+		Package p = c.getPackage();
+		String version = p == null ? null : p.getImplementationVersion();
+		digest.update(version == null ? "" : version);
+		File archive = getCodeSource(c);
+		if (archive != null && archive.isFile()) {
+			long timestamp = archive.lastModified();
+			Pair<Long, byte[]> cached = archives.get(archive);
+			if (cached == null || cached.first() != timestamp) {
+				try (InputStream input = new FileInputStream(archive)) {
+					cached = new Pair<>(timestamp, new ActionCache.Key().update(input).get());
+				}
+				archives.put(archive, cached);
+			}
+			digest.update(cached.second());
 		} else {
-			return Collections.EMPTY_SET;
+			try (InputStream input = c.getResourceAsStream("/" + c.getName().replace('.', '/') + ".class")) {
+				digest.update(input == null ? new byte[0] : new ActionCache.Key().update(input).get());
+			}
+		}
+		return digest.get();
+	}
+
+	/**
+	 * Determine the file or directory from which a given class was loaded.
+	 *
+	 * @param c
+	 * @return The location, or <code>null</code> if this cannot be determined.
+	 */
+	private static File getCodeSource(Class<?> c) {
+		CodeSource source = c.getProtectionDomain().getCodeSource();
+		if (source == null || source.getLocation() == null) {
+			return null;
+		}
+		try {
+			return new File(source.getLocation().toURI());
+		} catch (URISyntaxException | IllegalArgumentException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Determine the digest of a given source file, reusing that computed
+	 * previously if the file has not since been modified. Files which have been
+	 * modified in memory are digested in their serialised form.
+	 *
+	 * @param e
+	 * @return The digest, or <code>null</code> if the file does not exist.
+	 * @throws IOException
+	 */
+	private <T> byte[] getDigest(Path.Entry<T> e) throws IOException {
+		if (e.isModified()) {
+			return new ActionCache.Key().update(getBytes(e)).get();
+		}
+		long timestamp = e.lastModified();
+		if (timestamp == 0) {
+			return null;
 		}
+		Pair<Long, byte[]> cached = digests.get(e);
+		if (cached == null || cached.first() != timestamp) {
+			try (InputStream input = e.inputStream()) {
+				cached = new Pair<>(timestamp, new ActionCache.Key().update(input).get());
+			}
+			digests.put(e, cached);
+		}
+		return cached.second();
+	}
+
+	/**
+	 * Restore the outputs of a cached action into the target root, and
+	 * reconnect them in the build graph to the matching files from which they
+	 * were derived.
+	 *
+	 * @param outputs
+	 * @param matches
+	 * @param graph
+	 * @return
+	 * @throws IOException
+	 */
+	private Set<Path.Entry<?>> restore(List<ActionCache.Output> outputs, List<Pair<Path.Entry<?>, Path.Root>> matches,
+			Build.Graph graph) throws IOException {
+		HashSet<Path.Entry<?>> generated = new HashSet<>();
+		for (ActionCache.Output o : outputs) {
+			Path.Entry<?> entry = restore(o, o.getContentType());
+			for (Pair<Path.Entry<?>, Path.Root> p : matches) {
+				if (o.getParents().contains(p.first().id())) {
+					graph.connect(p.first(), entry);
+				}
+			}
+			generated.add(entry);
+		}
+		return generated;
+	}
+
+	/**
+	 * Restore a single cached output into the target root.
+	 *
+	 * @param output
+	 * @param type
+	 *            The content type of the output.
+	 * @return
+	 * @throws IOException
+	 */
+	private <T> Path.Entry<T> restore(ActionCache.Output output, Content.Type<T> type) throws IOException {
+		Path.Entry<T> entry = target.create(output.getId(), type);
+		entry.write(type.read(entry, new ByteArrayInputStream(output.getBytes())));
+		return entry;
+	}
+
+	/**
+	 * Store the outputs generated for a given key in the action cache. Outputs
+	 * are only stored when they are all located in the target root, since
+	 * otherwise they could not be restored.
+	 *
+	 * @param key
+	 * @param generated
+	 * @param graph
+	 * @throws IOException
+	 */
+	private void store(ActionCache.Key key, Set<Path.Entry<?>> generated, Build.Graph graph) throws IOException {
+		ArrayList<ActionCache.Output> outputs = new ArrayList<>();
+		for (Path.Entry<?> e : generated) {
+			if (!target.contains(e)) {
+				return;
+			}
+			ArrayList<Path.ID> parents = new ArrayList<>();
+			for (Path.Entry<?> p : graph.getParents(e)) {
+				parents.add(p.id());
+			}
+			outputs.add(new ActionCache.Output(e.id(), e.contentType(), parents, getBytes(e)));
+		}
+		cache.put(key, outputs);
+	}
+
+	/**
+	 * Serialise the contents of a given entry.
+	 *
+	 * @param e
+	 * @return
+	 * @throws IOException
+	 */
+	static <T> byte[] getBytes(Path.Entry<T> e) throws IOException {
+		ByteArrayOutputStream bout = new ByteArrayOutputStream();
+		e.contentType().write(bout, e.read());
+		return bout.toByteArray();
 	}
 }
@@ -17,6 +17,7 @@ import java.io.IOException;
 import java.util.*;
 
 import wybs.lang.*;
+import wycc.util.Trace;
 import wyfs.lang.Content;
 import wyfs.lang.Path;
 
@@ -30,11 +31,17 @@ import wyfs.lang.Path;
  * locations.
  * </p>
  * <p>
- * The core strategy for building files is fairly simplistic, and assumes a
- * "breadth-first" compilation tree. That is, where files at one level are all
- * compiled producing a new set of files for the next level. In most cases, this
- * is fine. However, in more complex compilation pipelines this can lead to
- * compilation failures.
+ * The core strategy for building files uses the build graph to determine
+ * which entries are invalidated by those which have changed (see
+ * <code>InvalidationEngine</code>). These are then built one layer at a time,
+ * such that every entry is built after those it depends upon. Entries which
+ * are unknown to the build graph are built "breadth-first", where files at one
+ * level are all compiled producing a new set of files for the next level.
+ * </p>
+ * <p>
+ * Builds may also be performed in parallel, in which case the build graph is
+ * used to determine which entries can be built independently (see
+ * <code>ParallelBuildScheduler</code>).
  * </p>
  *
  * @author David J. Pearce
@@ -57,6 +64,12 @@ public class StdProject implements Build.Project {
 	 */
 	protected final ArrayList<Build.Rule> rules;
 
+	/**
+	 * The number of rebuilds avoided by early cutoff during the most recent
+	 * build.
+	 */
+	private int avoided;
+
 	public StdProject(Path.Root root) {
 		this.root = root;
 		this.rules = new ArrayList<>();
@@ -109,6 +122,17 @@ public class StdProject implements Build.Project {
 	// Accessors
 	// ======================================================================
 
+	/**
+	 * Get the number of derived entries which were not rebuilt during the most
+	 * recent build, because the entries they derive from were regenerated
+	 * unchanged (see <code>EarlyCutoff</code>).
+	 *
+	 * @return
+	 */
+	public int getAvoidedRebuilds() {
+		return avoided;
+	}
+
 	// ======================================================================
 	// Mutators
 	// ======================================================================
@@ -137,7 +161,10 @@ public class StdProject implements Build.Project {
 
 	/**
 	 * Build a given set of source entries, including all files which depend upon
-	 * them.
+	 * them. The build graph is used to determine the entries which are
+	 * (transitively) invalidated by the given sources, and these are then built
+	 * in dependency order. Generated files whose contents are unchanged are not
+	 * rebuilt further.
 	 *
 	 * @param sources
 	 *            --- a collection of source file entries. This will not be modified
@@ -145,17 +172,82 @@ public class StdProject implements Build.Project {
 	 * @throws Exception
 	 */
 	public void build(Collection<? extends Path.Entry<?>> sources, Build.Graph graph) throws Exception {
-		// Continue building all source files until there are none left. This is
-		// actually quite a naive implementation, as it ignores the potential
-		// need for staging dependencies.
-		do {
-			HashSet<Path.Entry<?>> generated = new HashSet<>();
-			for (Build.Rule r : rules) {
-				generated.addAll(r.apply(sources, graph));
+		EarlyCutoff cutoff = new EarlyCutoff();
+		// Entries which have changed and, hence, must be built
+		HashSet<Path.Entry<?>> pending = new HashSet<>(sources);
+		// Build each layer of the dirty set in turn. Entries in a layer are only
+		// built when they have changed, which may be because an entry they derive
+		// from was rebuilt in an earlier layer.
+		for (List<Path.Entry<?>> layer : new InvalidationEngine(graph).invalidate(sources)) {
+			ArrayList<Path.Entry<?>> group = new ArrayList<>();
+			for (Path.Entry<?> entry : layer) {
+				if (pending.remove(entry)) {
+					group.add(entry);
+				}
 			}
-			sources = generated;
-		} while (sources.size() > 0);
-
+			if (group.size() > 0) {
+				pending.addAll(apply(group, graph, cutoff));
+			}
+		}
+		// Any entries remaining were generated without being known to the build
+		// graph beforehand. Therefore, continue building these until there are
+		// none left.
+		while (pending.size() > 0) {
+			ArrayList<Path.Entry<?>> group = new ArrayList<>(pending);
+			pending.clear();
+			pending.addAll(apply(group, graph, cutoff));
+		}
+		avoided = cutoff.getAvoided();
 		// Done!
 	}
+
+	/**
+	 * Build a given set of source entries, including all files which depend upon
+	 * them, using a given number of worker threads. Independent groups of entries
+	 * are built concurrently, as determined by the build graph. When only one job
+	 * is requested, this is equivalent to <code>build(sources,graph)</code>.
+	 *
+	 * @param sources
+	 *            --- a collection of source file entries. This will not be modified
+	 *            by this method.
+	 * @param graph
+	 *            --- the build graph, which must be thread-safe when
+	 *            <code>jobs &gt; 1</code>.
+	 * @param jobs
+	 *            --- the number of worker threads to use (must be positive).
+	 * @throws Exception
+	 */
+	public void build(Collection<? extends Path.Entry<?>> sources, Build.Graph graph, int jobs) throws Exception {
+		if (jobs == 1) {
+			build(sources, graph);
+		} else {
+			EarlyCutoff cutoff = new EarlyCutoff();
+			new ParallelBuildScheduler(rules, jobs, cutoff).build(sources, graph);
+			avoided = cutoff.getAvoided();
+		}
+	}
+
+	/**
+	 * Apply every build rule to a given group of entries, returning the set of
+	 * generated entries which have changed.
+	 *
+	 * @param group
+	 * @param graph
+	 * @param cutoff
+	 * @return
+	 * @throws Exception
+	 */
+	private Set<Path.Entry<?>> apply(List<Path.Entry<?>> group, Build.Graph graph, EarlyCutoff cutoff)
+			throws Exception {
+		HashSet<Path.Entry<?>> generated = new HashSet<>();
+		for (Build.Rule r : rules) {
+			Trace.Event event = Trace.begin("build", "apply");
+			try {
+				generated.addAll(r.apply(group, graph));
+			} finally {
+				event.end();
+			}
+		}
+		return cutoff.apply(generated, graph);
+	}
 }
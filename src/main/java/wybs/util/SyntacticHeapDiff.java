@@ -0,0 +1,518 @@
+// Copyright 2011 The Whiley Project Developers
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package wybs.util;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+
+import wybs.lang.CompilationUnit;
+import wybs.lang.SyntacticHeap;
+import wybs.lang.SyntacticItem;
+import wycc.util.Digest;
+import wycc.util.Pair;
+
+/**
+ * <p>
+ * Determines the differences between two versions of a syntactic heap (e.g.
+ * one read from a binary file, and one freshly parsed). Only items reachable
+ * from the root of each heap are considered. Items are compared using their
+ * structural digests, such that an item is unchanged if a structurally equal
+ * item exists in the other heap. Since distinct items may have the same
+ * digest, items with equal digests are then compared directly. The remaining items are then classified as
+ * follows:
+ * </p>
+ * <ul>
+ * <li><b>Changed.</b> Items are aligned top-down starting from the roots of
+ * the two heaps. An item in one heap which is aligned with an item of the same
+ * opcode, but with a different structure, in the other is considered changed.
+ * The operands of two changed items are aligned by first matching those which
+ * are structurally equal, then those with the same opcode and first operand
+ * (e.g. declarations with the same name) and, finally, any remaining operands
+ * which are not declarations in order of their opcodes.</li>
+ * <li><b>Added.</b> Items in the second heap which have no structurally equal
+ * item in the first heap, and which are not aligned with any item.</li>
+ * <li><b>Removed.</b> Items in the first heap which have no structurally equal
+ * item in the second heap, and which are not aligned with any item.</li>
+ * </ul>
+ * <p>
+ * The differences are also summarised in terms of <i>top-level
+ * declarations</i>. These are the declarations reachable from the root of a
+ * heap which are not contained within another declaration. This allows e.g. a
+ * build task to process only those declarations which actually changed.
+ * </p>
+ *
+ * @author David J. Pearce
+ *
+ */
+public class SyntacticHeapDiff {
+	private final Version before;
+	private final Version after;
+
+	/**
+	 * Maps each item in the first heap to the item in the second heap it is
+	 * aligned with, or <code>-1</code> if it is not aligned.
+	 */
+	private final int[] alignment;
+
+	/**
+	 * Identifies items in the second heap which are aligned with some item in
+	 * the first heap.
+	 */
+	private final BitSet aligned = new BitSet();
+
+	/**
+	 * The pairs of aligned items which have changed, in the order they were
+	 * aligned.
+	 */
+	private final ArrayList<int[]> changed = new ArrayList<>();
+
+	/**
+	 * Pairs of items (in the first and second heap respectively) which are
+	 * known to be structurally equal, as determined by
+	 * <code>isEqual()</code>.
+	 */
+	private final HashSet<Long> equivalent = new HashSet<>();
+
+	public SyntacticHeapDiff(SyntacticHeap before, SyntacticHeap after) {
+		this(before, after, CompilationUnit.Declaration.class);
+	}
+
+	/**
+	 * Construct the differences between two heaps.
+	 *
+	 * @param before
+	 *            The original version of the heap.
+	 * @param after
+	 *            The updated version of the heap.
+	 * @param declaration
+	 *            The kind of items which are considered to be declarations.
+	 */
+	public SyntacticHeapDiff(SyntacticHeap before, SyntacticHeap after, Class<?> declaration) {
+		this.before = new Version(before, declaration);
+		this.after = new Version(after, declaration);
+		this.alignment = new int[before.size()];
+		Arrays.fill(alignment, -1);
+		align();
+	}
+
+	/**
+	 * Check whether the two heaps are structurally identical.
+	 *
+	 * @return
+	 */
+	public boolean isEmpty() {
+		return changed.isEmpty() && getAdded().isEmpty() && getRemoved().isEmpty();
+	}
+
+	/**
+	 * Get the items of the second heap which were added.
+	 *
+	 * @return
+	 */
+	public List<SyntacticItem> getAdded() {
+		return select(after, after.reachable, aligned);
+	}
+
+	/**
+	 * Get the items of the first heap which were removed.
+	 *
+	 * @return
+	 */
+	public List<SyntacticItem> getRemoved() {
+		return select(before, before.reachable, getAligned());
+	}
+
+	/**
+	 * Get the pairs of items which were changed, where the first item of each
+	 * pair is from the first heap and the second from the second heap.
+	 *
+	 * @return
+	 */
+	public List<Pair<SyntacticItem, SyntacticItem>> getChanged() {
+		return getChanged(false);
+	}
+
+	/**
+	 * Get the top-level declarations of the second heap which were added.
+	 *
+	 * @return
+	 */
+	public List<SyntacticItem> getAddedDeclarations() {
+		return select(after, after.declarations, aligned);
+	}
+
+	/**
+	 * Get the top-level declarations of the first heap which were removed.
+	 *
+	 * @return
+	 */
+	public List<SyntacticItem> getRemovedDeclarations() {
+		return select(before, before.declarations, getAligned());
+	}
+
+	/**
+	 * Get the pairs of top-level declarations which were changed, where the
+	 * first item of each pair is from the first heap and the second from the
+	 * second heap.
+	 *
+	 * @return
+	 */
+	public List<Pair<SyntacticItem, SyntacticItem>> getChangedDeclarations() {
+		return getChanged(true);
+	}
+
+	private List<Pair<SyntacticItem, SyntacticItem>> getChanged(boolean declarations) {
+		ArrayList<Pair<SyntacticItem, SyntacticItem>> pairs = new ArrayList<>();
+		for (int[] p : changed) {
+			if (!declarations || (before.declarations.get(p[0]) && after.declarations.get(p[1]))) {
+				pairs.add(new Pair<>(before.heap.getSyntacticItem(p[0]), after.heap.getSyntacticItem(p[1])));
+			}
+		}
+		return pairs;
+	}
+
+	private BitSet getAligned() {
+		BitSet result = new BitSet(alignment.length);
+		for (int i = 0; i != alignment.length; ++i) {
+			if (alignment[i] >= 0) {
+				result.set(i);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Align the items of the two heaps, starting from their roots. An explicit
+	 * worklist is used so that heaps of any depth can be aligned.
+	 */
+	private void align() {
+		if (before.root < 0 || after.root < 0) {
+			return;
+		}
+		ArrayList<int[]> worklist = new ArrayList<>();
+		worklist.add(new int[] { before.root, after.root });
+		while (!worklist.isEmpty()) {
+			int[] p = worklist.remove(worklist.size() - 1);
+			int o = p[0];
+			int n = p[1];
+			if (alignment[o] >= 0 || aligned.get(n)) {
+				// Already aligned along another path
+				continue;
+			}
+			SyntacticItem oItem = before.heap.getSyntacticItem(o);
+			SyntacticItem nItem = after.heap.getSyntacticItem(n);
+			if (isEqual(o, n)) {
+				alignment[o] = n;
+				aligned.set(n);
+			} else if (oItem.getOpcode() == nItem.getOpcode()) {
+				alignment[o] = n;
+				aligned.set(n);
+				changed.add(p);
+				alignOperands(oItem, nItem, worklist);
+			}
+		}
+	}
+
+	private void alignOperands(SyntacticItem o, SyntacticItem n, List<int[]> worklist) {
+		int[] os = getOperands(o);
+		int[] ns = getOperands(n);
+		boolean[] nDone = new boolean[ns.length];
+		ArrayList<Integer> remaining = new ArrayList<>();
+		// Match structurally equal operands
+		HashMap<Long, ArrayDeque<Integer>> digests = new HashMap<>();
+		for (int j = 0; j != ns.length; ++j) {
+			if (ns[j] >= 0) {
+				digests.computeIfAbsent(after.digests[ns[j]], k -> new ArrayDeque<>()).add(j);
+			}
+		}
+		for (int i = 0; i != os.length; ++i) {
+			int j = os[i] < 0 ? -1 : pollEqual(os[i], digests.get(before.digests[os[i]]), ns);
+			if (j >= 0) {
+				nDone[j] = true;
+				worklist.add(new int[] { os[i], ns[j] });
+			} else if (os[i] >= 0) {
+				remaining.add(i);
+			}
+		}
+		// Match operands with the same opcode and first operand
+		HashMap<Long, ArrayDeque<Integer>> keys = new HashMap<>();
+		for (int j = 0; j != ns.length; ++j) {
+			long key = ns[j] < 0 || nDone[j] ? Digest.UNKNOWN : after.getKey(ns[j]);
+			if (key != Digest.UNKNOWN) {
+				keys.computeIfAbsent(key, k -> new ArrayDeque<>()).add(j);
+			}
+		}
+		for (int k = 0; k < remaining.size(); ++k) {
+			int i = remaining.get(k);
+			ArrayDeque<Integer> js = keys.get(before.getKey(os[i]));
+			if (js != null && !js.isEmpty()) {
+				int j = js.poll();
+				nDone[j] = true;
+				worklist.add(new int[] { os[i], ns[j] });
+				remaining.remove(k--);
+			}
+		}
+		// Match the remainder in order of opcode
+		int from = 0;
+		for (int i : remaining) {
+			if (before.kinds.get(os[i])) {
+				// Declarations with different names are never aligned
+				continue;
+			}
+			int opcode = before.heap.getSyntacticItem(os[i]).getOpcode();
+			for (int j = from; j < ns.length; ++j) {
+				if (!nDone[j] && ns[j] >= 0 && after.heap.getSyntacticItem(ns[j]).getOpcode() == opcode) {
+					nDone[j] = true;
+					worklist.add(new int[] { os[i], ns[j] });
+					from = j + 1;
+					break;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Remove and return the first of a given set of candidate operands which
+	 * is structurally equal to a given item in the first heap.
+	 *
+	 * @param o
+	 *            The index of the item in the first heap.
+	 * @param js
+	 *            The candidate operands, which may be <code>null</code>.
+	 * @param ns
+	 *            The indices of the operands in the second heap.
+	 * @return The candidate removed, or <code>-1</code> if none was equal.
+	 */
+	private int pollEqual(int o, ArrayDeque<Integer> js, int[] ns) {
+		if (js != null) {
+			Iterator<Integer> iterator = js.iterator();
+			while (iterator.hasNext()) {
+				int j = iterator.next();
+				if (isEqual(o, ns[j])) {
+					iterator.remove();
+					return j;
+				}
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Select those items from a given set which are neither aligned, nor have
+	 * a structurally equal item in the other heap.
+	 *
+	 * @param version
+	 *            The version of the heap the items belong to.
+	 * @param items
+	 * @param aligned
+	 * @return
+	 */
+	private List<SyntacticItem> select(Version version, BitSet items, BitSet aligned) {
+		Version other = version == before ? after : before;
+		HashMap<Long, List<Integer>> others = other.digests();
+		ArrayList<SyntacticItem> result = new ArrayList<>();
+		for (int i = items.nextSetBit(0); i >= 0; i = items.nextSetBit(i + 1)) {
+			if (!aligned.get(i) && !hasEqual(version, i, others.get(version.digests[i]))) {
+				result.add(version.heap.getSyntacticItem(i));
+			}
+		}
+		return result;
+	}
+
+	private boolean hasEqual(Version version, int i, List<Integer> candidates) {
+		if (candidates != null) {
+			for (int j : candidates) {
+				if (version == before ? isEqual(i, j) : isEqual(j, i)) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Check whether an item in the first heap is structurally equal to an item
+	 * in the second heap. Items with different digests are never equal, but
+	 * equal digests are not taken as proof of equality. Instead, the items are
+	 * compared directly using an explicit worklist, so that items of any depth
+	 * can be compared. All pairs of items compared when the outcome is equal
+	 * are themselves equal, and these are remembered to avoid comparing them
+	 * again.
+	 *
+	 * @param o
+	 *            The index of the item in the first heap.
+	 * @param n
+	 *            The index of the item in the second heap.
+	 * @return
+	 */
+	private boolean isEqual(int o, int n) {
+		if (before.digests[o] != after.digests[n]) {
+			return false;
+		} else if (equivalent.contains(pair(o, n))) {
+			return true;
+		}
+		HashSet<Long> visited = new HashSet<>();
+		ArrayList<int[]> worklist = new ArrayList<>();
+		visited.add(pair(o, n));
+		worklist.add(new int[] { o, n });
+		while (!worklist.isEmpty()) {
+			int[] p = worklist.remove(worklist.size() - 1);
+			SyntacticItem oItem = before.heap.getSyntacticItem(p[0]);
+			SyntacticItem nItem = after.heap.getSyntacticItem(p[1]);
+			if (before.digests[p[0]] != after.digests[p[1]] || oItem.getOpcode() != nItem.getOpcode()
+					|| oItem.size() != nItem.size() || !Arrays.equals(oItem.getData(), nItem.getData())) {
+				return false;
+			}
+			for (int i = 0; i != oItem.size(); ++i) {
+				SyntacticItem oOperand = oItem.get(i);
+				SyntacticItem nOperand = nItem.get(i);
+				if (oOperand == null || nOperand == null) {
+					if (oOperand != nOperand) {
+						return false;
+					}
+				} else {
+					long key = pair(oOperand.getIndex(), nOperand.getIndex());
+					if (!equivalent.contains(key) && visited.add(key)) {
+						worklist.add(new int[] { oOperand.getIndex(), nOperand.getIndex() });
+					}
+				}
+			}
+		}
+		equivalent.addAll(visited);
+		return true;
+	}
+
+	private static long pair(int o, int n) {
+		return ((long) o << 32) | (n & 0xFFFFFFFFL);
+	}
+
+	private static int[] getOperands(SyntacticItem item) {
+		int[] operands = new int[item.size()];
+		for (int i = 0; i != operands.length; ++i) {
+			SyntacticItem operand = item.get(i);
+			operands[i] = operand == null ? -1 : operand.getIndex();
+		}
+		return operands;
+	}
+
+	/**
+	 * Records the information about one version of a heap needed to compare
+	 * it.
+	 *
+	 * @author David J. Pearce
+	 *
+	 */
+	private static final class Version {
+		private final SyntacticHeap heap;
+		/**
+		 * The index of the root item, or <code>-1</code> if the heap is empty.
+		 */
+		private final int root;
+		/**
+		 * The structural digest of each item in the heap.
+		 */
+		private final long[] digests;
+		/**
+		 * Identifies items reachable from the root.
+		 */
+		private final BitSet reachable = new BitSet();
+		/**
+		 * Identifies the top-level declarations reachable from the root.
+		 */
+		private final BitSet declarations = new BitSet();
+		/**
+		 * Identifies all items which are declarations.
+		 */
+		private final BitSet kinds = new BitSet();
+		/**
+		 * Maps the digest of each reachable item to the indices of the
+		 * reachable items with that digest, which is determined lazily.
+		 */
+		private HashMap<Long, List<Integer>> reachableDigests;
+
+		public Version(SyntacticHeap heap, Class<?> declaration) {
+			this.heap = heap;
+			this.root = heap.size() == 0 ? -1 : heap.getRootItem().getIndex();
+			// Columnar heaps are materialised to obtain typed items
+			SyntacticItem[] items;
+			if (heap instanceof AbstractColumnarSyntacticHeap) {
+				items = ((AbstractColumnarSyntacticHeap) heap).materialize();
+			} else {
+				items = new SyntacticItem[heap.size()];
+				for (int i = 0; i != items.length; ++i) {
+					items[i] = heap.getSyntacticItem(i);
+				}
+			}
+			this.digests = new long[items.length];
+			for (int i = 0; i != items.length; ++i) {
+				if (declaration.isInstance(items[i])) {
+					kinds.set(i);
+				}
+				if (items[i] instanceof AbstractSyntacticItem) {
+					digests[i] = ((AbstractSyntacticItem) items[i]).getDigest();
+				} else if (items[i] != null) {
+					throw new IllegalArgumentException("unsupported syntactic item (" + items[i].getClass().getName() + ")");
+				}
+			}
+			if (root >= 0) {
+				new SyntacticItemVisitor().setDefault(item -> {
+					reachable.set(item.getIndex());
+					return true;
+				}).visit(heap);
+				// Stop at the first declaration along each path from the root
+				new SyntacticItemVisitor().setDefault(item -> {
+					int index = item.getIndex();
+					if (index != root && kinds.get(index)) {
+						declarations.set(index);
+						return false;
+					}
+					return true;
+				}).visit(heap);
+			}
+		}
+
+		/**
+		 * Determine a key for the item at a given index, consisting of its
+		 * opcode and the digest of its first operand.
+		 *
+		 * @param index
+		 * @return The key, or <code>Digest.UNKNOWN</code> if the item has no
+		 *         first operand.
+		 */
+		private long getKey(int index) {
+			SyntacticItem item = heap.getSyntacticItem(index);
+			if (item.size() == 0 || item.get(0) == null) {
+				return Digest.UNKNOWN;
+			} else {
+				return new Digest().update(item.getOpcode()).update(digests[item.get(0).getIndex()]).get();
+			}
+		}
+
+		private HashMap<Long, List<Integer>> digests() {
+			if (reachableDigests == null) {
+				reachableDigests = new HashMap<>();
+				for (int i = reachable.nextSetBit(0); i >= 0; i = reachable.nextSetBit(i + 1)) {
+					reachableDigests.computeIfAbsent(digests[i], k -> new ArrayList<>()).add(i);
+				}
+			}
+			return reachableDigests;
+		}
+	}
+}
@@ -0,0 +1,251 @@
+// Copyright 2011 The Whiley Project Developers
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package wybs.util;
+
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.BitSet;
+
+import wybs.lang.SyntacticHeap;
+import wybs.lang.SyntacticItem;
+
+/**
+ * <p>
+ * Accumulates statistics about the items in one or more syntactic heaps,
+ * broken down by opcode. For each opcode this records the number of items, the
+ * number of operands and data bytes they hold, an estimate of the memory they
+ * occupy, how many are reachable from the root (the remainder being garbage)
+ * and how often reachable items are referred to. The latter gives a
+ * <i>sharing factor</i>, where a value above one indicates that items are
+ * shared rather than duplicated.
+ * </p>
+ * <p>
+ * Memory is estimated for the object-per-item representation used by
+ * <code>AbstractSyntacticHeap</code>, assuming a 64bit JVM with compressed
+ * references. That is, the item itself, its (empty) attribute list and its
+ * operand and data arrays. Data arrays shared between items (e.g. interned
+ * identifiers) are counted once per item.
+ * </p>
+ *
+ * @author David J. Pearce
+ *
+ */
+public class SyntacticHeapStatistics {
+	/**
+	 * Estimated size of an item object, including its fields and an empty
+	 * attribute list.
+	 */
+	private static final int ITEM_BYTES = 120;
+
+	/**
+	 * Estimated size of an array header.
+	 */
+	private static final int ARRAY_BYTES = 16;
+
+	/**
+	 * The number of opcodes, matching the size of a schema.
+	 */
+	private static final int OPCODES = 256;
+
+	private final String[] mnemonics = new String[OPCODES];
+	private final long[] counts = new long[OPCODES];
+	private final long[] operands = new long[OPCODES];
+	private final long[] data = new long[OPCODES];
+	private final long[] bytes = new long[OPCODES];
+	private final long[] reachable = new long[OPCODES];
+	private final long[] references = new long[OPCODES];
+	private int heaps;
+
+	public SyntacticHeapStatistics() {
+	}
+
+	public SyntacticHeapStatistics(SyntacticHeap heap, SyntacticItem.Schema[] schema) {
+		add(heap, schema);
+	}
+
+	/**
+	 * Include the items of a given heap in these statistics.
+	 *
+	 * @param heap
+	 * @param schema
+	 *            The schema used to determine the mnemonic of each opcode
+	 *            (which may be <code>null</code>).
+	 */
+	public void add(SyntacticHeap heap, SyntacticItem.Schema[] schema) {
+		BitSet live = new BitSet(heap.size());
+		if (heap.size() > 0 && heap.getRootItem() != null) {
+			new SyntacticItemVisitor().setDefault(item -> {
+				live.set(item.getIndex());
+				return true;
+			}).visit(heap);
+		}
+		for (int i = 0; i != heap.size(); ++i) {
+			SyntacticItem item = heap.getSyntacticItem(i);
+			if (item == null) {
+				continue;
+			}
+			int opcode = check(item.getOpcode());
+			if (mnemonics[opcode] == null) {
+				mnemonics[opcode] = getMnemonic(item, schema);
+			}
+			byte[] bs = item.getData();
+			counts[opcode]++;
+			operands[opcode] += item.size();
+			data[opcode] += bs == null ? 0 : bs.length;
+			bytes[opcode] += ITEM_BYTES + align(ARRAY_BYTES + 4L * item.size())
+					+ (bs == null ? 0 : align(ARRAY_BYTES + bs.length));
+			if (live.get(i)) {
+				reachable[opcode]++;
+				for (int j = 0; j != item.size(); ++j) {
+					SyntacticItem operand = item.get(j);
+					if (operand != null) {
+						references[check(operand.getOpcode())]++;
+					}
+				}
+			}
+		}
+		heaps = heaps + 1;
+	}
+
+	/**
+	 * Include another set of statistics in these statistics.
+	 *
+	 * @param other
+	 */
+	public void add(SyntacticHeapStatistics other) {
+		for (int i = 0; i != OPCODES; ++i) {
+			if (mnemonics[i] == null) {
+				mnemonics[i] = other.mnemonics[i];
+			}
+			counts[i] += other.counts[i];
+			operands[i] += other.operands[i];
+			data[i] += other.data[i];
+			bytes[i] += other.bytes[i];
+			reachable[i] += other.reachable[i];
+			references[i] += other.references[i];
+		}
+		heaps = heaps + other.heaps;
+	}
+
+	/**
+	 * Get the number of heaps included in these statistics.
+	 *
+	 * @return
+	 */
+	public int getHeapCount() {
+		return heaps;
+	}
+
+	public String getMnemonic(int opcode) {
+		return mnemonics[check(opcode)];
+	}
+
+	public long getItemCount(int opcode) {
+		return counts[check(opcode)];
+	}
+
+	public long getOperandCount(int opcode) {
+		return operands[check(opcode)];
+	}
+
+	public long getDataBytes(int opcode) {
+		return data[check(opcode)];
+	}
+
+	/**
+	 * Get the estimated number of bytes of memory occupied by items with a
+	 * given opcode.
+	 *
+	 * @param opcode
+	 * @return
+	 */
+	public long getEstimatedBytes(int opcode) {
+		return bytes[check(opcode)];
+	}
+
+	public long getReachableCount(int opcode) {
+		return reachable[check(opcode)];
+	}
+
+	public long getGarbageCount(int opcode) {
+		return counts[check(opcode)] - reachable[check(opcode)];
+	}
+
+	/**
+	 * Get the average number of references from reachable items to each
+	 * reachable item with a given opcode.
+	 *
+	 * @param opcode
+	 * @return
+	 */
+	public double getSharingFactor(int opcode) {
+		long n = reachable[check(opcode)];
+		return n == 0 ? 0 : (double) references[opcode] / n;
+	}
+
+	/**
+	 * Print these statistics as a table with one row per opcode (ordered by
+	 * decreasing estimated size), followed by the totals.
+	 *
+	 * @param out
+	 */
+	public void print(PrintStream out) {
+		String format = "%-6s %-16s %10s %10s %10s %10s %10s %12s %8s%n";
+		out.printf(format, "OPCODE", "MNEMONIC", "ITEMS", "REACHABLE", "GARBAGE", "OPERANDS", "DATA", "BYTES",
+				"SHARING");
+		Integer[] opcodes = new Integer[OPCODES];
+		for (int i = 0; i != OPCODES; ++i) {
+			opcodes[i] = i;
+		}
+		Arrays.sort(opcodes, (a, b) -> Long.compare(bytes[b], bytes[a]));
+		long[] totals = new long[6];
+		long refs = 0;
+		for (int i : opcodes) {
+			if (counts[i] > 0) {
+				out.printf(format, i, mnemonics[i], counts[i], reachable[i], counts[i] - reachable[i], operands[i],
+						data[i], bytes[i], String.format("%.2f", getSharingFactor(i)));
+				totals[0] += counts[i];
+				totals[1] += reachable[i];
+				totals[2] += counts[i] - reachable[i];
+				totals[3] += operands[i];
+				totals[4] += data[i];
+				totals[5] += bytes[i];
+				refs += references[i];
+			}
+		}
+		double sharing = totals[1] == 0 ? 0 : (double) refs / totals[1];
+		out.printf(format, "", "TOTAL", totals[0], totals[1], totals[2], totals[3], totals[4], totals[5],
+				String.format("%.2f", sharing));
+	}
+
+	private static String getMnemonic(SyntacticItem item, SyntacticItem.Schema[] schema) {
+		int opcode = item.getOpcode();
+		if (schema != null && opcode < schema.length && schema[opcode] != null) {
+			return schema[opcode].getMnemonic();
+		} else {
+			return item.getClass().getSimpleName();
+		}
+	}
+
+	private static long align(long n) {
+		return (n + 7) & ~7L;
+	}
+
+	private static int check(int opcode) {
+		if (opcode < 0 || opcode >= OPCODES) {
+			throw new IllegalArgumentException("invalid opcode (" + opcode + ")");
+		}
+		return opcode;
+	}
+}
@@ -0,0 +1,250 @@
+// Copyright 2011 The Whiley Project Developers
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package wybs.util;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import wybs.lang.SyntacticItem;
+
+/**
+ * <p>
+ * Rewrites the items reachable from a given syntactic item, dispatching each
+ * on its opcode. A rule can be registered for each opcode, which is applied to
+ * an item once its operands have been rewritten (i.e. bottom-up). Items whose
+ * opcode has no registered rule are rebuilt only if one or more of their
+ * operands changed. Rewriting is non-destructive, in that items which are
+ * changed are cloned rather than being updated in place.
+ * </p>
+ * <p>
+ * An explicit stack is used, rather than recursion, such that items of any
+ * depth can be rewritten. Every item is rewritten at most once, thereby
+ * preserving the aliasing structure of the original. Opcodes may also be
+ * pruned, in which case items with that opcode are neither rewritten nor
+ * descended into. Finally, a mapping can be given from items to their
+ * replacements, which are used instead of rewriting those items. This allows
+ * the aliasing structure to be preserved across several rewrites, and items
+ * to be substituted.
+ * </p>
+ *
+ * @author David J. Pearce
+ *
+ */
+public class SyntacticItemRewriter {
+	/**
+	 * A rule applied to an item whose operands have been rewritten.
+	 *
+	 * @author David J. Pearce
+	 *
+	 */
+	public interface Rule {
+		/**
+		 * Rewrite a given item.
+		 *
+		 * @param item
+		 *            The original item.
+		 * @param operands
+		 *            The rewritten operands of the item, which must not be
+		 *            modified.
+		 * @return The rewritten item, which may be the original item.
+		 */
+		public SyntacticItem rewrite(SyntacticItem item, SyntacticItem[] operands);
+	}
+
+	/**
+	 * The default rule, which rebuilds an item only when its operands changed.
+	 */
+	public static final Rule REBUILD = (item, operands) -> {
+		for (int i = 0; i != operands.length; ++i) {
+			if (operands[i] != item.get(i)) {
+				return item.clone(operands);
+			}
+		}
+		return item;
+	};
+
+	/**
+	 * The dispatch table, indexed by opcode.
+	 */
+	private final Rule[] rules = new Rule[256];
+
+	/**
+	 * Identifies opcodes which are pruned.
+	 */
+	private final boolean[] pruned = new boolean[256];
+
+	/**
+	 * The rule applied to items whose opcode has no registered rule.
+	 */
+	private Rule fallback = REBUILD;
+
+	/**
+	 * Register a rule to be applied to all items with a given opcode, replacing
+	 * any rule previously registered for it.
+	 *
+	 * @param opcode
+	 * @param rule
+	 * @return
+	 */
+	public SyntacticItemRewriter register(int opcode, Rule rule) {
+		check(opcode);
+		rules[opcode] = rule;
+		return this;
+	}
+
+	/**
+	 * Set the rule applied to all items whose opcode has no registered rule.
+	 * By default, this is <code>REBUILD</code>.
+	 *
+	 * @param rule
+	 * @return
+	 */
+	public SyntacticItemRewriter setDefault(Rule rule) {
+		fallback = rule;
+		return this;
+	}
+
+	/**
+	 * Prevent items with a given opcode (and their operands) from being
+	 * rewritten.
+	 *
+	 * @param opcode
+	 * @return
+	 */
+	public SyntacticItemRewriter prune(int opcode) {
+		check(opcode);
+		pruned[opcode] = true;
+		return this;
+	}
+
+	/**
+	 * Rewrite a given item and everything reachable from it.
+	 *
+	 * @param item
+	 * @return The rewritten item, which may be the original item if nothing
+	 *         changed.
+	 */
+	public <T extends SyntacticItem> T apply(T item) {
+		return apply(item, new IdentityHashMap<>());
+	}
+
+	/**
+	 * Rewrite a given item and everything reachable from it, using a given
+	 * mapping. Items which are keys of the mapping are neither rewritten nor
+	 * descended into and, instead, are replaced by the corresponding value.
+	 * Every item which is rewritten into a different item is added to the
+	 * mapping.
+	 *
+	 * @param item
+	 * @param mapping
+	 *            Maps items to their replacements.
+	 * @return The rewritten item, which may be the original item if nothing
+	 *         changed.
+	 */
+	public <T extends SyntacticItem> T apply(T item, Map<SyntacticItem, SyntacticItem> mapping) {
+		IdentityHashMap<SyntacticItem, SyntacticItem> unchanged = new IdentityHashMap<>();
+		IdentityHashMap<SyntacticItem, SyntacticItem> active = new IdentityHashMap<>();
+		ArrayDeque<Frame> stack = new ArrayDeque<>();
+		SyntacticItem result = isPruned(item) ? item : mapping.get(item);
+		if (result == null) {
+			stack.push(new Frame(item));
+			active.put(item, item);
+		}
+		while (!stack.isEmpty()) {
+			Frame frame = stack.peek();
+			if (frame.next < frame.operands.length) {
+				SyntacticItem child = frame.operands[frame.next];
+				SyntacticItem nChild = child == null || isPruned(child) ? child : lookup(child, mapping, unchanged);
+				if (nChild != null || child == null) {
+					frame.set(nChild);
+				} else if (active.containsKey(child)) {
+					throw new IllegalArgumentException("cyclic syntactic item encountered");
+				} else {
+					stack.push(new Frame(child));
+					active.put(child, child);
+				}
+			} else {
+				stack.pop();
+				active.remove(frame.item);
+				result = getRule(frame.item).rewrite(frame.item, frame.nOperands);
+				if (result == frame.item) {
+					unchanged.put(result, result);
+				} else {
+					mapping.put(frame.item, result);
+				}
+				if (!stack.isEmpty()) {
+					stack.peek().set(result);
+				}
+			}
+		}
+		// Every rule must return an item of the same kind as the original
+		@SuppressWarnings("unchecked")
+		T r = (T) result;
+		return r;
+	}
+
+	private static SyntacticItem lookup(SyntacticItem item, Map<SyntacticItem, SyntacticItem> mapping,
+			Map<SyntacticItem, SyntacticItem> unchanged) {
+		SyntacticItem result = mapping.get(item);
+		return result == null ? unchanged.get(item) : result;
+	}
+
+	private Rule getRule(SyntacticItem item) {
+		int opcode = item.getOpcode();
+		Rule rule = opcode >= 0 && opcode < rules.length ? rules[opcode] : null;
+		return rule == null ? fallback : rule;
+	}
+
+	private boolean isPruned(SyntacticItem item) {
+		int opcode = item.getOpcode();
+		return opcode >= 0 && opcode < pruned.length && pruned[opcode];
+	}
+
+	private static void check(int opcode) {
+		if (opcode < 0 || opcode >= 256) {
+			throw new IllegalArgumentException("invalid opcode (" + opcode + ")");
+		}
+	}
+
+	/**
+	 * Records the progress made rewriting a given item.
+	 */
+	private static final class Frame {
+		private final SyntacticItem item;
+		private final SyntacticItem[] operands;
+		/**
+		 * The rewritten operands, which alias the originals until one changes.
+		 */
+		private SyntacticItem[] nOperands;
+		private int next;
+
+		public Frame(SyntacticItem item) {
+			this.item = item;
+			this.operands = item.getAll();
+			this.nOperands = operands;
+		}
+
+		public void set(SyntacticItem nOperand) {
+			if (nOperand != operands[next] && nOperands == operands) {
+				nOperands = Arrays.copyOf(operands, operands.length);
+			}
+			if (nOperands != operands) {
+				nOperands[next] = nOperand;
+			}
+			next = next + 1;
+		}
+	}
+}
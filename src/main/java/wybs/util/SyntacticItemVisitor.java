@@ -0,0 +1,330 @@
+// Copyright 2011 The Whiley Project Developers
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package wybs.util;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import wybs.lang.SyntacticHeap;
+import wybs.lang.SyntacticItem;
+
+/**
+ * <p>
+ * Traverses the items reachable from a given syntactic item, dispatching each
+ * on its opcode. An action can be registered for each opcode, with a default
+ * action being applied to any opcode without one. This avoids the need for
+ * chains of <code>instanceof</code> tests, and for each analysis to implement
+ * its own walk over the operands of an item.
+ * </p>
+ * <p>
+ * Items are visited in depth-first pre-order using an explicit stack, such that
+ * items of any depth can be traversed. Since a syntactic heap forms a directed
+ * acyclic graph, an item may be reachable along more than one path. However,
+ * every item is visited at most once. An action may also prune the traversal,
+ * in which case the operands of the item are not visited (unless they are
+ * reachable along some other path). For example:
+ * </p>
+ *
+ * <pre>
+ * SyntacticItemVisitor visitor = new SyntacticItemVisitor();
+ * visitor.register(ConfigFile.DECL_section, item -> false);
+ * visitor.setDefault(item -> { count++; return true; });
+ * visitor.visit(heap.getRootItem());
+ * </pre>
+ *
+ * <p>
+ * <b>NOTE:</b> when traversing in parallel, actions may be applied
+ * concurrently to distinct items and must be thread-safe.
+ * </p>
+ *
+ * @author David J. Pearce
+ *
+ */
+public class SyntacticItemVisitor {
+	/**
+	 * An action applied to a visited item.
+	 *
+	 * @author David J. Pearce
+	 *
+	 */
+	public interface Action {
+		/**
+		 * Apply this action to a given item.
+		 *
+		 * @param item
+		 * @return <code>true</code> if the operands of this item should be
+		 *         visited, or <code>false</code> if they should be pruned.
+		 */
+		public boolean visit(SyntacticItem item);
+	}
+
+	/**
+	 * An action which does nothing, and which continues into every operand.
+	 */
+	public static final Action CONTINUE = item -> true;
+
+	/**
+	 * An action which does nothing, and which prunes every operand.
+	 */
+	public static final Action PRUNE = item -> false;
+
+	/**
+	 * The dispatch table, indexed by opcode.
+	 */
+	private final Action[] actions = new Action[256];
+
+	/**
+	 * The action applied to any opcode which has none registered.
+	 */
+	private Action fallback = CONTINUE;
+
+	/**
+	 * Register an action to be applied to all items with a given opcode,
+	 * replacing any action previously registered for it.
+	 *
+	 * @param opcode
+	 * @param action
+	 * @return
+	 */
+	public SyntacticItemVisitor register(int opcode, Action action) {
+		if (opcode < 0 || opcode >= actions.length) {
+			throw new IllegalArgumentException("invalid opcode (" + opcode + ")");
+		}
+		actions[opcode] = action;
+		return this;
+	}
+
+	/**
+	 * Set the action to apply to any opcode which has no registered action.
+	 *
+	 * @param action
+	 * @return
+	 */
+	public SyntacticItemVisitor setDefault(Action action) {
+		this.fallback = action;
+		return this;
+	}
+
+	/**
+	 * Get the action which will be applied to a given item.
+	 *
+	 * @param item
+	 * @return
+	 */
+	public Action getAction(SyntacticItem item) {
+		int opcode = item.getOpcode();
+		Action action = opcode >= 0 && opcode < actions.length ? actions[opcode] : null;
+		return action == null ? fallback : action;
+	}
+
+	/**
+	 * Apply the appropriate action to every item in a given heap, in order of
+	 * their index. This is a single linear pass over the heap which does not
+	 * follow operands and, hence, actions cannot prune anything. Furthermore, it
+	 * includes items which are not reachable from the root.
+	 *
+	 * @param heap
+	 */
+	public void visitAll(SyntacticHeap heap) {
+		for (int i = 0; i != heap.size(); ++i) {
+			SyntacticItem item = heap.getSyntacticItem(i);
+			if (item != null) {
+				getAction(item).visit(item);
+			}
+		}
+	}
+
+	/**
+	 * Visit every item reachable from the root of a given heap.
+	 *
+	 * @param heap
+	 */
+	public void visit(SyntacticHeap heap) {
+		SyntacticItem root = heap.getRootItem();
+		if (root != null) {
+			visit(root);
+		}
+	}
+
+	/**
+	 * Visit every item reachable from a given item, visiting each at most once.
+	 *
+	 * @param item
+	 */
+	public void visit(SyntacticItem item) {
+		traverse(item, new Marks(item.getHeap()));
+	}
+
+	/**
+	 * Visit every item reachable from a given item, where the subtrees rooted at
+	 * its operands are traversed in parallel using a given executor. Every item
+	 * is still visited at most once, even when it is shared between subtrees.
+	 *
+	 * @param item
+	 * @param executor
+	 * @throws InterruptedException
+	 */
+	public void visit(SyntacticItem item, ExecutorService executor) throws InterruptedException {
+		Marks marks = new ConcurrentMarks(item.getHeap());
+		if (!marks.mark(item) || !getAction(item).visit(item)) {
+			return;
+		}
+		ArrayList<Future<?>> tasks = new ArrayList<>();
+		for (int i = 0; i != item.size(); ++i) {
+			SyntacticItem operand = item.get(i);
+			if (operand != null) {
+				tasks.add(executor.submit(() -> traverse(operand, marks)));
+			}
+		}
+		for (Future<?> task : tasks) {
+			try {
+				task.get();
+			} catch (ExecutionException e) {
+				Throwable cause = e.getCause();
+				if (cause instanceof RuntimeException) {
+					throw (RuntimeException) cause;
+				} else if (cause instanceof Error) {
+					throw (Error) cause;
+				} else {
+					throw new RuntimeException(cause);
+				}
+			}
+		}
+	}
+
+	private void traverse(SyntacticItem item, Marks marks) {
+		ArrayDeque<SyntacticItem> stack = new ArrayDeque<>();
+		stack.push(item);
+		while (!stack.isEmpty()) {
+			SyntacticItem next = stack.pop();
+			if (marks.mark(next) && getAction(next).visit(next)) {
+				// Push in reverse so operands are visited from left to right
+				for (int i = next.size() - 1; i >= 0; --i) {
+					SyntacticItem operand = next.get(i);
+					if (operand != null && !marks.isMarked(operand)) {
+						stack.push(operand);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Records which items have been visited. Items allocated to the heap being
+	 * traversed are recorded by index, whilst any others are recorded by
+	 * identity.
+	 *
+	 * @author David J. Pearce
+	 *
+	 */
+	private static class Marks {
+		protected final SyntacticHeap heap;
+		private final BitSet indices;
+		protected final Set<SyntacticItem> others;
+
+		public Marks(SyntacticHeap heap) {
+			this(heap, Collections.newSetFromMap(new IdentityHashMap<>()));
+		}
+
+		protected Marks(SyntacticHeap heap, Set<SyntacticItem> others) {
+			this.heap = heap;
+			this.indices = heap == null ? null : new BitSet(heap.size());
+			this.others = others;
+		}
+
+		/**
+		 * Check whether a given item has already been marked.
+		 *
+		 * @param item
+		 * @return
+		 */
+		public boolean isMarked(SyntacticItem item) {
+			if (heap != null && item.getHeap() == heap) {
+				return indices.get(item.getIndex());
+			} else {
+				return others.contains(item);
+			}
+		}
+
+		/**
+		 * Mark a given item.
+		 *
+		 * @param item
+		 * @return <code>true</code> if the item was not already marked.
+		 */
+		public boolean mark(SyntacticItem item) {
+			if (heap != null && item.getHeap() == heap) {
+				int index = item.getIndex();
+				if (indices.get(index)) {
+					return false;
+				}
+				indices.set(index);
+				return true;
+			} else {
+				return others.add(item);
+			}
+		}
+	}
+
+	/**
+	 * A thread-safe variant of marks, as needed for parallel traversal.
+	 *
+	 * @author David J. Pearce
+	 *
+	 */
+	private static final class ConcurrentMarks extends Marks {
+		private final AtomicLongArray words;
+
+		public ConcurrentMarks(SyntacticHeap heap) {
+			super(heap, Collections.synchronizedSet(Collections.newSetFromMap(new IdentityHashMap<>())));
+			this.words = new AtomicLongArray(heap == null ? 0 : (heap.size() + 63) >>> 6);
+		}
+
+		@Override
+		public boolean isMarked(SyntacticItem item) {
+			if (heap != null && item.getHeap() == heap && item.getIndex() < words.length() << 6) {
+				int index = item.getIndex();
+				return (words.get(index >>> 6) & (1L << index)) != 0;
+			} else {
+				return others.contains(item);
+			}
+		}
+
+		@Override
+		public boolean mark(SyntacticItem item) {
+			if (heap != null && item.getHeap() == heap && item.getIndex() < words.length() << 6) {
+				int index = item.getIndex();
+				long bit = 1L << index;
+				while (true) {
+					long word = words.get(index >>> 6);
+					if ((word & bit) != 0) {
+						return false;
+					} else if (words.compareAndSet(index >>> 6, word, word | bit)) {
+						return true;
+					}
+				}
+			} else {
+				return others.add(item);
+			}
+		}
+	}
+}
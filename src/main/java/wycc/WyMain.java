@@ -24,6 +24,7 @@ import java.util.Map;
 import java.util.regex.Pattern;
 
 import wybs.lang.SyntaxError;
+import wybs.util.BuildGraphFile;
 import wybs.util.AbstractCompilationUnit.Value;
 import wybs.util.AbstractCompilationUnit.Value.UTF8;
 import wycc.cfg.ConfigFile;
@@ -32,6 +33,7 @@ import wycc.cfg.Configuration.KeyValueDescriptor;
 import wycc.cfg.ConfigurationCombinator;
 import wycc.cfg.HashMapConfiguration;
 import wycc.commands.Build;
+import wycc.commands.Cache;
 import wycc.commands.Clean;
 import wycc.commands.Config;
 import wycc.commands.Help;
@@ -97,7 +99,8 @@ public class WyMain implements Command {
 	 */
 	public static Configuration.Schema GLOBAL_CONFIG_SCHEMA = Configuration.fromArray(
 			Configuration.UNBOUND_STRING(Trie.fromString("user/name"), "username", false),
-			Configuration.UNBOUND_STRING(Trie.fromString("user/email"), "email", false));
+			Configuration.UNBOUND_STRING(Trie.fromString("user/email"), "email", false),
+			Configuration.BOUND_INTEGER(WyProject.CACHE_LIMIT, "maximum size of action cache (in megabytes)", false, 0));
 
 	/**
 	 * Schema for local configuration (i.e. which applies to a single project for a given user).
@@ -194,8 +197,10 @@ public class WyMain implements Command {
 		// Add default content types
 		this.contentTypes.add(ConfigFile.ContentType);
 		this.contentTypes.add(ZipFile.ContentType);
+		this.contentTypes.add(BuildGraphFile.ContentType);
 		// Add default commands
 		this.commandDescriptors.add(Build.DESCRIPTOR);
+		this.commandDescriptors.add(Cache.DESCRIPTOR);
 		this.commandDescriptors.add(Clean.DESCRIPTOR);
 		this.commandDescriptors.add(Config.DESCRIPTOR);
 		this.commandDescriptors.add(Help.DESCRIPTOR);
@@ -13,6 +13,7 @@
 // limitations under the License.
 package wycc;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -24,6 +25,7 @@ import wybs.lang.SyntacticItem;
 import wybs.lang.SyntaxError;
 import wybs.util.AbstractCompilationUnit.Value;
 import wybs.util.AbstractCompilationUnit.Value.UTF8;
+import wybs.util.ActionCache;
 import wybs.util.StdBuildRule;
 import wybs.util.StdProject;
 import wycc.cfg.ConfigFile;
@@ -33,10 +35,12 @@ import wycc.commands.Help;
 import wycc.lang.Command;
 import wycc.util.ArrayUtils;
 import wycc.util.CommandParser;
+import wycc.util.Digest;
 import wyfs.lang.Content;
 import wyfs.lang.Path;
 import wyfs.lang.Path.Entry;
 import wyfs.lang.Path.Root;
+import wyfs.util.DirectoryRoot;
 import wyfs.util.ZipFileRoot;
 import wyfs.util.Trie;
 import wyfs.util.ZipFile;
@@ -98,6 +102,22 @@ public class WyProject implements Command {
 	 */
 	private static Path.ID REPOSITORY_PATH = Trie.fromString("repository");
 
+	/**
+	 * Path to the action cache within the global root.
+	 */
+	private static Path.ID CACHE_PATH = Trie.fromString("cache");
+
+	/**
+	 * Identifies the maximum size of the action cache (in megabytes). A limit of
+	 * zero disables the cache.
+	 */
+	public static final Trie CACHE_LIMIT = Trie.fromString("cache/limit");
+
+	/**
+	 * The default maximum size of the action cache (in megabytes).
+	 */
+	public static final int DEFAULT_CACHE_LIMIT = 256;
+
 	// ==================================================================
 	// Instance Fields
 	// ==================================================================
@@ -117,6 +137,11 @@ public class WyProject implements Command {
 	 */
 	protected final StdProject project;
 
+	/**
+	 * The source and binary roots configured for each target platform.
+	 */
+	protected final ArrayList<Path.Root> platformRoots = new ArrayList<>();
+
 	/**
 	 * Provides a generic place to which normal output should be directed. This
 	 * should eventually be replaced.
@@ -200,6 +225,51 @@ public class WyProject implements Command {
 		return root;
 	}
 
+	/**
+	 * Get the action cache used for storing the outputs of build tasks. This is
+	 * located in the global root, so that it is shared across all projects for a
+	 * given user. If the cache has been disabled, or the global root is not a
+	 * directory, then <code>null</code> is returned.
+	 *
+	 * @return
+	 */
+	public ActionCache getActionCache() {
+		Path.Root global = environment.getGlobalRoot();
+		long limit = DEFAULT_CACHE_LIMIT;
+		if (configuration.hasKey(CACHE_LIMIT)) {
+			limit = configuration.get(Value.Int.class, CACHE_LIMIT).get().longValue();
+		}
+		if (limit <= 0 || !(global instanceof DirectoryRoot)) {
+			return null;
+		}
+		File dir = new File(((DirectoryRoot) global).location(), CACHE_PATH.toString());
+		return new ActionCache(dir, limit * 1024 * 1024, environment.getContentTypes());
+	}
+
+	/**
+	 * Determine a digest of the configuration relevant to a given platform. This
+	 * covers every key matched by the platform's configuration schema, along
+	 * with the declared package dependencies. Thus, changing any of them means
+	 * the platform's source files must be rebuilt.
+	 *
+	 * @param platform
+	 * @return
+	 */
+	public long getConfigurationDigest(Build.Platform platform) {
+		Digest digest = new Digest();
+		digest.update(platform.getName());
+		ArrayList<Path.ID> keys = new ArrayList<>();
+		for (Configuration.KeyValueDescriptor<?> d : platform.getConfigurationSchema().getDescriptors()) {
+			keys.addAll(configuration.matchAll(d.getFilter()));
+		}
+		keys.addAll(configuration.matchAll(Trie.fromString("dependencies/**")));
+		for (Path.ID key : keys) {
+			digest.update(key.toString());
+			digest.update(String.valueOf(configuration.get(Object.class, key)));
+		}
+		return digest.get();
+	}
+
 	@Override
 	public void initialise() {
 		try {
@@ -278,6 +348,44 @@ public class WyProject implements Command {
 		project.build(delta,graph);
 	}
 
+	public void build(Collection<Path.Entry<?>> delta, Build.Graph graph, int jobs) throws Exception {
+		project.build(delta,graph,jobs);
+	}
+
+	/**
+	 * Get the source and binary roots of every target platform. The source root
+	 * for the ith platform is at index <code>2*i</code>, whilst the binary root
+	 * is at <code>2*i+1</code>.
+	 *
+	 * @return
+	 */
+	public List<Path.Root> getPlatformRoots() {
+		return Collections.unmodifiableList(platformRoots);
+	}
+
+	/**
+	 * Refresh the source and binary roots of every target platform from
+	 * permanent storage. Entries which still exist retain their identity, whilst
+	 * those which have been modified in memory retain their contents.
+	 *
+	 * @throws IOException
+	 */
+	public void refresh() throws IOException {
+		for (Path.Root root : platformRoots) {
+			root.refresh();
+		}
+	}
+
+	/**
+	 * Get the number of rebuilds avoided by early cutoff during the most recent
+	 * build.
+	 *
+	 * @return
+	 */
+	public int getAvoidedRebuilds() {
+		return project.getAvoidedRebuilds();
+	}
+
 	// ==================================================================
 	// Helpers
 	// ==================================================================
@@ -339,6 +447,7 @@ public class WyProject implements Command {
 	private void configurePlatforms() throws IOException {
 		Path.Root root = environment.getLocalRoot();
 		List<Build.Platform> platforms = getTargetPlatforms();
+		ActionCache cache = getActionCache();
 		//
 		for (int i = 0; i != platforms.size(); ++i) {
 			Build.Platform platform = platforms.get(i);
@@ -348,11 +457,13 @@ public class WyProject implements Command {
 			Path.Root srcRoot = platform.getSourceRoot(root);
 			// Configure Binary root
 			Path.Root binRoot = platform.getTargetRoot(root);
+			platformRoots.add(srcRoot);
+			platformRoots.add(binRoot);
 			// Initialise build task
 			Build.Task task = platform.initialise(project);
 			// Add the appropriate build rule(s)
-			project.add(
-					new StdBuildRule(task, srcRoot, platform.getSourceFilter(), platform.getTargetFilter(), binRoot));
+			project.add(new StdBuildRule(task, srcRoot, platform.getSourceFilter(), platform.getTargetFilter(), binRoot,
+					cache, getConfigurationDigest(platform)));
 		}
 	}
 
@@ -13,18 +13,36 @@
 // limitations under the License.
 package wycc.commands;
 
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.PrintStream;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
 import wybs.lang.Build.Graph;
 import wybs.lang.SyntacticItem;
 import wybs.lang.SyntaxError;
+import wybs.util.BuildGraphFile;
 import wybs.util.StdBuildGraph;
 import wybs.util.AbstractCompilationUnit.Value;
 import wycc.WyProject;
@@ -32,13 +50,22 @@ import wycc.cfg.Configuration;
 import wycc.cfg.Configuration.Schema;
 import wycc.lang.Command;
 import wycc.util.ArrayUtils;
+import wycc.util.Digest;
 import wycc.util.Pair;
+import wycc.util.Trace;
 import wyfs.lang.Content;
 import wyfs.lang.Path;
+import wyfs.util.DirectoryRoot;
 import wyfs.util.Trie;
 import wyfs.lang.Content.Type;
 
 public class Build implements Command {
+	/**
+	 * Identifies the file (relative to the project root) in which the build
+	 * graph is recorded between builds.
+	 */
+	public static final Trie BUILD_GRAPH = Trie.fromString("wy");
+
 	/**
 	 * The descriptor for this command.
 	 */
@@ -57,7 +84,10 @@ public class Build implements Command {
 		public List<Option.Descriptor> getOptionDescriptors() {
 			return Arrays.asList(
 					Command.OPTION_FLAG("verbose","generate verbose information about the build",false),
-					Command.OPTION_FLAG("brief","generate brief output for syntax errors",false)
+					Command.OPTION_FLAG("brief","generate brief output for syntax errors",false),
+					Command.OPTION_POSITIVE_INTEGER("jobs","number of worker threads to use for building",1),
+					Command.OPTION_FLAG("watch","continue rebuilding whenever source files change",false),
+					Command.OPTION_STRING("trace","write trace of build events to a given file (Chrome trace format)",null)
 					);
 		}
 
@@ -97,14 +127,26 @@ public class Build implements Command {
 	 */
 	protected boolean brief = false;
 
+	/**
+	 * The file to which build trace events are written (or null if tracing is
+	 * not enabled).
+	 */
+	private String trace;
+
 	/**
 	 * The enclosing project for this build
 	 */
 	private final WyProject project;
 
+	/**
+	 * The configuration for the enclosing project.
+	 */
+	private final Configuration configuration;
+
 	public Build(WyProject project, Configuration configuration, OutputStream sysout,
 			OutputStream syserr) {
 		this.project = project;
+		this.configuration = configuration;
 		this.sysout = new PrintStream(sysout);
 		this.syserr = new PrintStream(syserr);
 	}
@@ -126,19 +168,85 @@ public class Build implements Command {
 	public boolean execute(Template template) throws Exception {
 		// Extract options
 		boolean verbose = template.getOptions().get("verbose", Boolean.class);
+		int jobs = template.getOptions().get("jobs", Integer.class);
+		boolean watch = template.getOptions().get("watch", Boolean.class);
+		this.brief = template.getOptions().get("brief", Boolean.class);
+		this.trace = template.getOptions().get("trace", String.class);
+		if (trace != null) {
+			Trace.start();
+		}
 		// Identify the project root
 		Path.Root root = project.getParent().getLocalRoot();
-		// Create our build graph
-		Graph graph = new StdBuildGraph();
 		// Extract all registered platforms
 		List<wybs.lang.Build.Platform> platforms = project.getTargetPlatforms();
+		// Determine the (labelled) source and binary roots of each platform
+		List<Pair<String, Path.Root>> roots = getPlatformRoots(platforms);
+		// Load the build graph from the previous build (if any)
+		BuildGraphFile previous = readBuildGraph(root);
+		StdBuildGraph graph;
+		if (previous != null) {
+			graph = previous.toGraph(roots, project.getParent().getContentTypes());
+		} else {
+			graph = new StdBuildGraph();
+		}
+		previous = build(root, platforms, roots, previous, graph, jobs, verbose);
+		writeTrace();
+		if (watch) {
+			watch(root, platforms, roots, previous, graph, jobs, verbose);
+		}
+		Trace.stop();
+		return true;
+	}
+
+	/**
+	 * Perform a single (incremental) build of the project, returning the
+	 * resulting build graph as it should be recorded for the next build.
+	 *
+	 * @param root
+	 *            The project root.
+	 * @param platforms
+	 *            The target platforms.
+	 * @param roots
+	 *            The (labelled) source and binary roots of each platform.
+	 * @param previous
+	 *            The build graph recorded by the previous build (or null).
+	 * @param graph
+	 *            The build graph to be updated.
+	 * @param jobs
+	 *            The number of worker threads to use.
+	 * @param verbose
+	 * @return
+	 * @throws Exception
+	 */
+	private BuildGraphFile build(Path.Root root, List<wybs.lang.Build.Platform> platforms,
+			List<Pair<String, Path.Root>> roots, BuildGraphFile previous, StdBuildGraph graph, int jobs,
+			boolean verbose) throws Exception {
 		// Refresh the build graph
+		ArrayList<Path.Entry<?>> allSources = new ArrayList<>();
+		IdentityHashMap<Path.Entry<?>, String> labels = new IdentityHashMap<>();
+		HashMap<String, Long> configs = new HashMap<>();
 		for (int i = 0; i != platforms.size(); ++i) {
 			wybs.lang.Build.Platform platform = platforms.get(i);
-			Path.Root srcRoot = platform.getSourceRoot(root);
-			Path.Root binRoot = platform.getTargetRoot(root);
-			// Determine the list of modified source files.
-			platform.refresh(graph, srcRoot, binRoot);
+			Pair<String, Path.Root> src = roots.get(2 * i);
+			Path.Root srcRoot = src.second();
+			Pair<String, Path.Root> bin = roots.get(2 * i + 1);
+			Path.Root binRoot = bin.second();
+			List<? extends Path.Entry<?>> platformSources = srcRoot.get(platform.getSourceFilter());
+			allSources.addAll(platformSources);
+			for (Path.Entry<?> e : platformSources) {
+				labels.put(e, src.first());
+			}
+			configs.put(src.first(), project.getConfigurationDigest(platform));
+			// Only refresh platforms whose source files have changed
+			if (previous == null || isModified(previous, src.first(), platform, platformSources, bin.first(), binRoot)) {
+				disconnectSources(graph, srcRoot, platform);
+				Trace.Event event = Trace.begin("build", "refresh", platform.getName());
+				try {
+					platform.refresh(graph, srcRoot, binRoot);
+				} finally {
+					event.end();
+				}
+			}
 		}
 		// Determine modified files
 		ArrayList<Path.Entry<?>> sources = new ArrayList<>();
@@ -146,16 +254,386 @@ public class Build implements Command {
 		for(Path.Entry<?> source : graph.getEntries()) {
 			// Get all children derived from this entry
 			List<Path.Entry<?>> children = graph.getChildren(source);
-			// Check for any which are out-of-date
-			for(Path.Entry<?> binary : children) {
+			// Check whether this entry is out-of-date
+			if (children.size() > 0 && isStale(source, children, labels.get(source), previous, configs)) {
+				sources.add(source);
+			}
+		}
+		// Finally, rebuild everything which depends (transitively) on them!
+		project.build(sources, graph, jobs);
+		if (verbose && project.getAvoidedRebuilds() > 0) {
+			sysout.println("Avoided " + project.getAvoidedRebuilds() + " rebuild(s) of unchanged files");
+		}
+		// Ensure generated files are written before their digests are recorded
+		for (Pair<String, Path.Root> r : roots) {
+			r.second().flush();
+		}
+		// Record the build graph for the next build
+		BuildGraphFile bgf = BuildGraphFile.fromGraph(graph, allSources, roots, previous);
+		for (Map.Entry<String, Long> e : configs.entrySet()) {
+			bgf.setConfiguration(e.getKey(), e.getValue());
+		}
+		Path.Entry<BuildGraphFile> entry = root.create(BUILD_GRAPH, BuildGraphFile.ContentType);
+		entry.write(bgf);
+		entry.flush();
+		return bgf;
+	}
+
+	/**
+	 * Write all trace events recorded so far to the trace file (if tracing is
+	 * enabled). In watch mode, this is rewritten after every rebuild with the
+	 * events of that rebuild only.
+	 *
+	 * @throws IOException
+	 */
+	private void writeTrace() throws IOException {
+		Trace t = Trace.current();
+		if (trace != null && t != null) {
+			try (FileOutputStream fout = new FileOutputStream(trace)) {
+				t.write(fout);
+			}
+		}
+	}
+
+	// ==================================================================
+	// Watch Mode
+	// ==================================================================
+
+	/**
+	 * The period (in milliseconds) for which no further changes must be seen
+	 * before a rebuild is started. This ensures that bursts of changes (e.g.
+	 * from saving many files at once) are coalesced into a single rebuild.
+	 */
+	private static final long DEBOUNCE_PERIOD = 200;
+
+	/**
+	 * <p>
+	 * Repeatedly rebuild the project whenever a source file changes. The source
+	 * root of each platform is registered with a <code>WatchService</code>, whilst
+	 * the project, the build graph and the contents of all entries are retained in
+	 * memory between rebuilds. Roots are refreshed in place, such that unchanged
+	 * entries retain their identity (and hence their position in the build
+	 * graph) and their cached contents. This method does not return unless an error arises.
+	 * </p>
+	 * <p>
+	 * Syntax errors arising during a rebuild are reported, after which the
+	 * project continues to be watched.
+	 * </p>
+	 *
+	 * @throws Exception
+	 */
+	private void watch(Path.Root root, List<wybs.lang.Build.Platform> platforms,
+			List<Pair<String, Path.Root>> roots, BuildGraphFile previous, StdBuildGraph graph, int jobs,
+			boolean verbose) throws Exception {
+		// Determine suffixes of interest
+		HashSet<String> suffixes = new HashSet<>();
+		for (wybs.lang.Build.Platform platform : platforms) {
+			suffixes.add("." + platform.getSourceType().getSuffix());
+		}
+		try (WatchService watcher = FileSystems.getDefault().newWatchService()) {
+			for (int i = 0; i < roots.size(); i += 2) {
+				Path.Root srcRoot = roots.get(i).second();
+				if (srcRoot instanceof DirectoryRoot) {
+					register(watcher, ((DirectoryRoot) srcRoot).location().toPath());
+				} else {
+					syserr.println("unable to watch source root " + srcRoot);
+				}
+			}
+			sysout.println("Watching for changes...");
+			while (true) {
+				// Wait for a change, and then until things settle down
+				HashSet<File> files = new HashSet<>();
+				boolean changed = process(watcher, watcher.take(), suffixes, files);
+				WatchKey key;
+				while ((key = watcher.poll(DEBOUNCE_PERIOD, TimeUnit.MILLISECONDS)) != null) {
+					changed |= process(watcher, key, suffixes, files);
+				}
+				if (changed) {
+					// Bring in-memory entries up-to-date with the file system
+					refresh(roots, files);
+					removeDeletedSources(graph);
+					if (trace != null) {
+						// Only trace the latest rebuild
+						Trace.start();
+					}
+					try {
+						previous = build(root, platforms, roots, previous, graph, jobs, verbose);
+						writeTrace();
+						sysout.println("Build complete.");
+					} catch (SyntaxError e) {
+						e.outputSourceError(syserr, brief);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Process the events for a given watch key, registering any newly created
+	 * directories. This determines whether any relevant change occurred, which
+	 * is any change to a file with a given suffix or to a directory. The
+	 * (absolute) files and directories which changed are recorded, where the
+	 * watched directory itself is recorded if events were lost.
+	 *
+	 * @param watcher
+	 * @param key
+	 * @param suffixes
+	 * @param files
+	 * @return
+	 * @throws IOException
+	 */
+	private static boolean process(WatchService watcher, WatchKey key, Set<String> suffixes, Set<File> files)
+			throws IOException {
+		java.nio.file.Path dir = ((java.nio.file.Path) key.watchable()).toAbsolutePath();
+		boolean changed = false;
+		for (WatchEvent<?> event : key.pollEvents()) {
+			if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+				// Events were lost, so assume the worst
+				files.add(dir.toFile());
+				changed = true;
+				continue;
+			}
+			java.nio.file.Path file = dir.resolve((java.nio.file.Path) event.context());
+			String name = file.getFileName().toString();
+			files.add(file.toFile());
+			if (Files.isDirectory(file)) {
+				if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE) {
+					register(watcher, file);
+				}
+				changed = true;
+			} else if (name.indexOf('.') < 0 && event.kind() == StandardWatchEventKinds.ENTRY_DELETE) {
+				// Possibly a deleted directory
+				changed = true;
+			} else {
+				for (String suffix : suffixes) {
+					changed |= name.endsWith(suffix);
+				}
+			}
+		}
+		key.reset();
+		return changed;
+	}
+
+	/**
+	 * Refresh the given roots from the file system. Since the files which have
+	 * changed are known, only their entries are refreshed in a directory root.
+	 * Hence, unchanged entries retain their cached contents. This includes
+	 * those in binary roots, which are not watched as they are only written by
+	 * the build itself.
+	 *
+	 * @param roots
+	 * @param files
+	 * @throws IOException
+	 */
+	private static void refresh(List<Pair<String, Path.Root>> roots, Set<File> files) throws IOException {
+		for (Pair<String, Path.Root> r : roots) {
+			Path.Root root = r.second();
+			if (root instanceof DirectoryRoot) {
+				((DirectoryRoot) root).refresh(files);
+			} else {
+				root.refresh();
+			}
+		}
+	}
+
+	/**
+	 * Register a given directory (and all directories within it) with a watch
+	 * service.
+	 *
+	 * @param watcher
+	 * @param dir
+	 * @throws IOException
+	 */
+	private static void register(WatchService watcher, java.nio.file.Path dir) throws IOException {
+		if (!Files.isDirectory(dir)) {
+			return;
+		}
+		Files.walkFileTree(dir, new SimpleFileVisitor<java.nio.file.Path>() {
+			@Override
+			public FileVisitResult preVisitDirectory(java.nio.file.Path d, BasicFileAttributes attrs)
+					throws IOException {
+				d.register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE,
+						StandardWatchEventKinds.ENTRY_MODIFY);
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+
+	/**
+	 * Remove any source files which no longer exist from the build graph.
+	 *
+	 * @param graph
+	 */
+	private static void removeDeletedSources(StdBuildGraph graph) {
+		for (Path.Entry<?> e : graph.getEntries()) {
+			if (graph.getParents(e).isEmpty() && e.lastModified() == 0 && !e.isModified()) {
+				graph.disconnect(e);
+			}
+		}
+	}
+
+	/**
+	 * <p>
+	 * Determine whether a given entry is out-of-date with respect to the entries
+	 * derived from it. When nothing is known about the entry from the previous
+	 * build, this falls back to comparing timestamps (i.e. the entry is stale if
+	 * any child was last modified before it).
+	 * </p>
+	 * <p>
+	 * Otherwise, the entry is stale if the configuration of its platform has
+	 * changed, or if the contents of it or any entry derived from it have changed
+	 * (including where a derived entry no longer exists, e.g. after cleaning).
+	 * The latter is determined by first comparing the recorded modification time
+	 * and, only if that differs, by comparing the recorded digest of its
+	 * contents. Thus, touching a file or checking it out again does not cause it
+	 * to be rebuilt.
+	 * </p>
+	 *
+	 * @param source
+	 *            The entry in question.
+	 * @param children
+	 *            Those entries derived from it.
+	 * @param label
+	 *            The label of the source root containing this entry (or null if
+	 *            it does not belong to any platform).
+	 * @param previous
+	 *            The build graph recorded by the previous build (or null).
+	 * @param configs
+	 *            The configuration digest for each source root.
+	 * @return
+	 * @throws IOException
+	 */
+	private static boolean isStale(Path.Entry<?> source, List<Path.Entry<?>> children, String label,
+			BuildGraphFile previous, Map<String, Long> configs) throws IOException {
+		BuildGraphFile.Node node = null;
+		if (previous != null && label != null) {
+			node = previous.getNode(label, source.id(), source.contentType().getSuffix());
+		}
+		if (node == null || node.getDigest() == Digest.UNKNOWN) {
+			// Nothing known, so fall back on timestamps
+			for (Path.Entry<?> binary : children) {
 				if (binary.lastModified() < source.lastModified()) {
 					// Binary modified before source.
-					sources.add(source);
+					return true;
 				}
 			}
+			return false;
+		} else if (previous.getConfiguration(label) != configs.get(label)) {
+			// Configuration has changed since last build
+			return true;
+		} else {
+			// Check source and derived entries against those recorded
+			return !previous.isUnchanged(label, source, children);
 		}
-		// Finally, rebuild everything!
-		project.build(sources, graph);
-		return true;
+	}
+
+	/**
+	 * Determine the source and binary roots for each platform, labelled with the
+	 * platform name. The source root for the ith platform is at index
+	 * <code>2*i</code>, whilst the binary root is at <code>2*i+1</code>. These
+	 * are the roots used by the project's build rules, such that refreshing the
+	 * project refreshes them.
+	 *
+	 * @param platforms
+	 * @return
+	 */
+	private List<Pair<String, Path.Root>> getPlatformRoots(List<wybs.lang.Build.Platform> platforms) {
+		List<Path.Root> platformRoots = project.getPlatformRoots();
+		ArrayList<Pair<String, Path.Root>> roots = new ArrayList<>();
+		for (int i = 0; i != platforms.size(); ++i) {
+			wybs.lang.Build.Platform platform = platforms.get(i);
+			roots.add(new Pair<>(platform.getName() + "/src", platformRoots.get(2 * i)));
+			roots.add(new Pair<>(platform.getName() + "/bin", platformRoots.get(2 * i + 1)));
+		}
+		return roots;
+	}
+
+	/**
+	 * Read the build graph recorded by the previous build (if any). If the file
+	 * cannot be read (e.g. because it is corrupt or from an older version) then it
+	 * is simply ignored.
+	 *
+	 * @param root
+	 * @return
+	 */
+	private BuildGraphFile readBuildGraph(Path.Root root) {
+		try {
+			Path.Entry<BuildGraphFile> entry = root.get(BUILD_GRAPH, BuildGraphFile.ContentType);
+			return entry == null ? null : entry.read();
+		} catch (IOException e) {
+			syserr.println("ignoring build graph (" + e.getMessage() + ")");
+			return null;
+		}
+	}
+
+	/**
+	 * Determine whether the files of a given platform have changed since the build
+	 * graph was recorded. This happens when a source file is added or removed, or
+	 * when its contents differ from that recorded. Likewise, when a previously
+	 * recorded binary file has been removed (e.g. by cleaning). The recorded
+	 * modification time is used as a cheap first check before comparing digests.
+	 *
+	 * @param previous
+	 * @param label
+	 * @param platform
+	 * @param sources
+	 * @return
+	 */
+	private static boolean isModified(BuildGraphFile previous, String label, wybs.lang.Build.Platform platform,
+			List<? extends Path.Entry<?>> sources, String binLabel, Path.Root binRoot) throws IOException {
+		String suffix = platform.getSourceType().getSuffix();
+		if (previous.getNodes(label, suffix).size() != sources.size()) {
+			return true;
+		}
+		for (Path.Entry<?> source : sources) {
+			BuildGraphFile.Node node = previous.getNode(label, source.id(), suffix);
+			if (node == null) {
+				return true;
+			} else if (node.getTimestamp() != source.lastModified()
+					&& (node.getDigest() == Digest.UNKNOWN || node.getDigest() != Digest.of(source))) {
+				return true;
+			}
+		}
+		Content.Type<?> binType = platform.getTargetType();
+		for (BuildGraphFile.Node node : previous.getNodes(binLabel, binType.getSuffix())) {
+			if (!binRoot.exists(node.getId(), binType)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Remove all derivations from the source files of a given platform, prior to
+	 * that platform refreshing them.
+	 *
+	 * @param graph
+	 * @param srcRoot
+	 * @param platform
+	 * @throws IOException
+	 */
+	private static void disconnectSources(StdBuildGraph graph, Path.Root srcRoot, wybs.lang.Build.Platform platform)
+			throws IOException {
+		Content.Filter<?> filter = platform.getSourceFilter();
+		for (Path.Entry<?> e : graph.getEntries()) {
+			if (matches(filter, e) && srcRoot.contains(e)) {
+				for (Path.Entry<?> child : graph.getChildren(e)) {
+					graph.disconnect(e, child);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Check whether a given filter matches a given entry. The filter only
+	 * examines the content type of the entry, hence this can be retyped.
+	 *
+	 * @param filter
+	 * @param e
+	 * @return
+	 */
+	@SuppressWarnings("unchecked")
+	private static <T> boolean matches(Content.Filter<T> filter, Path.Entry<?> e) {
+		return filter.matches(e.id(), (Content.Type<T>) e.contentType());
 	}
 }
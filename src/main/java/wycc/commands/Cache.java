@@ -0,0 +1,137 @@
+// Copyright 2011 The Whiley Project Developers
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package wycc.commands;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import wybs.util.ActionCache;
+import wycc.WyProject;
+import wycc.cfg.Configuration;
+import wycc.cfg.Configuration.Schema;
+import wycc.lang.Command;
+
+/**
+ * Reports statistics about the action cache, and allows it to be pruned or
+ * cleared.
+ *
+ * @author David J. Pearce
+ *
+ */
+public class Cache implements Command {
+	/**
+	 * The descriptor for this command.
+	 */
+	public static final Command.Descriptor DESCRIPTOR = new Command.Descriptor() {
+		@Override
+		public String getName() {
+			return "cache";
+		}
+
+		@Override
+		public String getDescription() {
+			return "Report statistics about (or prune) the action cache";
+		}
+
+		@Override
+		public List<Option.Descriptor> getOptionDescriptors() {
+			return Arrays.asList(
+					Command.OPTION_FLAG("clear", "remove all entries from the action cache", false),
+					Command.OPTION_NONNEGATIVE_INTEGER("prune",
+							"remove least recently used entries until the cache is within a given size (in megabytes)"));
+		}
+
+		@Override
+		public Schema getConfigurationSchema() {
+			return Configuration.EMPTY_SCHEMA;
+		}
+
+		@Override
+		public List<Descriptor> getCommands() {
+			return Collections.emptyList();
+		}
+
+		@Override
+		public Command initialise(Command environment, Configuration configuration) {
+			return new Cache((WyProject) environment, System.out, System.err);
+		}
+
+	};
+
+	/**
+	 * Provides a generic place to which normal output should be directed. This
+	 * should eventually be replaced.
+	 */
+	private final PrintStream sysout;
+
+	/**
+	 * Provides a generic place to which error output should be directed. This
+	 * should eventually be replaced.
+	 */
+	private final PrintStream syserr;
+
+	/**
+	 * The enclosing project for this command
+	 */
+	private final WyProject project;
+
+	public Cache(WyProject project, OutputStream sysout, OutputStream syserr) {
+		this.project = project;
+		this.sysout = new PrintStream(sysout);
+		this.syserr = new PrintStream(syserr);
+	}
+
+	@Override
+	public Descriptor getDescriptor() {
+		return DESCRIPTOR;
+	}
+
+	@Override
+	public void initialise() {
+		// Nothing to do here
+	}
+
+	@Override
+	public void finalise() {
+		// Nothing to do here either
+	}
+
+	@Override
+	public boolean execute(Template template) {
+		boolean clear = template.getOptions().get("clear", Boolean.class);
+		Integer prune = template.getOptions().get("prune", Integer.class);
+		ActionCache cache = project.getActionCache();
+		if (cache == null) {
+			syserr.println("action cache is disabled");
+			return false;
+		} else if (clear) {
+			int count = cache.prune(0);
+			sysout.println("REMOVED " + count + " entries");
+		} else if (prune != null) {
+			int count = cache.prune(prune * 1024L * 1024L);
+			sysout.println("REMOVED " + count + " entries");
+		}
+		sysout.println("Location: " + cache.location());
+		sysout.println("Entries: " + cache.size());
+		sysout.println("Size: " + toMegabytes(cache.bytes()) + "MB (limit " + toMegabytes(cache.getLimit()) + "MB)");
+		return true;
+	}
+
+	private static String toMegabytes(long bytes) {
+		return String.format("%.1f", bytes / (1024.0 * 1024.0));
+	}
+}
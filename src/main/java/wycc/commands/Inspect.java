@@ -18,6 +18,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.PrintStream;
 import java.io.PrintWriter;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
@@ -25,6 +26,8 @@ import java.util.List;
 import wybs.io.SyntacticHeapPrinter;
 import wybs.lang.SyntacticHeap;
 import wybs.util.AbstractCompilationUnit.Value;
+import wybs.util.AbstractSyntacticHeap;
+import wybs.util.SyntacticHeapStatistics;
 import wycc.WyProject;
 import wycc.cfg.Configuration;
 import wycc.lang.Command;
@@ -44,8 +47,10 @@ public class Inspect implements Command {
 					Configuration.BOUND_INTEGER(INSPECT_INDENT, "indentation width (for structured view)",
 							new Value.Int(3), 0));
 
-	public static final List<Option.Descriptor> OPTIONS = Arrays
-			.asList(Command.OPTION_FLAG("full", "display full output (i.e. including unreachable garbage)", false));
+	public static final List<Option.Descriptor> OPTIONS = Arrays.asList(
+			Command.OPTION_FLAG("full", "display full output (i.e. including unreachable garbage)", false),
+			Command.OPTION_FLAG("stats",
+					"display statistics about the items in each file (or in all files, if none given)", false));
 
 	/**
 	 * The descriptor for this command.
@@ -114,8 +119,12 @@ public class Inspect implements Command {
 	@Override
 	public boolean execute(Template template) throws Exception {
 		boolean garbage = template.getOptions().get("full", Boolean.class);
+		boolean stats = template.getOptions().get("stats", Boolean.class);
 
 		List<String> files = template.getArguments();
+		if (stats) {
+			return inspectStatistics(files);
+		}
 		for (String file : files) {
 			Content.Type<?> ct = getContentType(file);
 			Path.Entry<?> entry = getEntry(file, ct);
@@ -183,6 +192,62 @@ public class Inspect implements Command {
 		}
 	}
 
+	/**
+	 * Report statistics about the syntactic heaps stored in the given files.
+	 * When more than one file is given, the aggregate statistics are also
+	 * reported. When no files are given, all syntactic heaps in the root are
+	 * included.
+	 *
+	 * @param files
+	 * @return
+	 * @throws IOException
+	 */
+	private boolean inspectStatistics(List<String> files) throws IOException {
+		List<Path.Entry<?>> entries = new ArrayList<>();
+		if (files.isEmpty()) {
+			for (Content.Type<?> ct : project.getParent().getContentTypes()) {
+				entries.addAll(project.getParent().getLocalRoot().get(Content.filter("**", ct)));
+			}
+		} else {
+			for (String file : files) {
+				Path.Entry<?> entry = getEntry(file, getContentType(file));
+				if (entry == null) {
+					out.println("unknown file: " + file);
+				} else {
+					entries.add(entry);
+				}
+			}
+		}
+		SyntacticHeapStatistics total = new SyntacticHeapStatistics();
+		for (Path.Entry<?> entry : entries) {
+			Object o = entry.read();
+			if (o instanceof SyntacticHeap) {
+				SyntacticHeapStatistics stats = getStatistics((SyntacticHeap) o);
+				if (!files.isEmpty()) {
+					out.println(entry.location() + ":");
+					stats.print(out);
+					out.println();
+				}
+				total.add(stats);
+			} else if (!files.isEmpty()) {
+				out.println("not a syntactic heap: " + entry.location());
+			}
+		}
+		if (files.size() != 1) {
+			out.println("TOTAL (" + total.getHeapCount() + " files):");
+			total.print(out);
+		}
+		return true;
+	}
+
+	private static SyntacticHeapStatistics getStatistics(SyntacticHeap heap) {
+		if (heap instanceof AbstractSyntacticHeap) {
+			return ((AbstractSyntacticHeap) heap).getStatistics();
+		} else {
+			return new SyntacticHeapStatistics(heap, null);
+		}
+	}
+
 	/**
 	 * Inspect a given binary file. That is a file for which we don't have a better
 	 * inspector.
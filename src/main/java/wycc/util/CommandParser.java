@@ -233,9 +233,8 @@ public class CommandParser {
 			// Check for default values
 			for (int i = 0; i != descriptors.length; ++i) {
 				Option.Descriptor d = descriptors[i];
-				Object val = d.getDefaultValue();
-				if (kind.isInstance(val)) {
-					return (T) val;
+				if (d.getName().equals(name)) {
+					return kind.cast(d.getDefaultValue());
 				}
 			}
 			throw new IllegalArgumentException("invalid option " + name);
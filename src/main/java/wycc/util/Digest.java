@@ -0,0 +1,151 @@
+// Copyright 2011 The Whiley Project Developers
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package wycc.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+import wyfs.lang.Path;
+
+/**
+ * <p>
+ * Computes a fast, non-cryptographic 64bit digest of a sequence of bytes. This
+ * is based on the FNV-1a hash, with a final mixing step to improve the
+ * distribution of the result. Digests are intended for detecting changes in
+ * content (e.g. of files between builds), rather than for security.
+ * </p>
+ * <p>
+ * A digest of zero is reserved to mean "unknown" and is never produced.
+ * </p>
+ *
+ * @author David J. Pearce
+ *
+ */
+public final class Digest {
+	private static final long OFFSET_BASIS = 0xcbf29ce484222325L;
+	private static final long PRIME = 0x100000001b3L;
+
+	/**
+	 * Indicates a digest which is not known.
+	 */
+	public static final long UNKNOWN = 0;
+
+	private long state = OFFSET_BASIS;
+
+	public Digest update(byte b) {
+		state = (state ^ (b & 0xFF)) * PRIME;
+		return this;
+	}
+
+	public Digest update(byte[] bytes) {
+		return update(bytes, 0, bytes.length);
+	}
+
+	public Digest update(byte[] bytes, int offset, int length) {
+		long h = state;
+		for (int i = offset; i < offset + length; ++i) {
+			h = (h ^ (bytes[i] & 0xFF)) * PRIME;
+		}
+		state = h;
+		return this;
+	}
+
+	public Digest update(long value) {
+		for (int i = 56; i >= 0; i -= 8) {
+			update((byte) (value >> i));
+		}
+		return this;
+	}
+
+	public Digest update(String str) {
+		byte[] bytes = str.getBytes(StandardCharsets.UTF_8);
+		update(bytes.length);
+		return update(bytes);
+	}
+
+	/**
+	 * Get the digest of all bytes given so far.
+	 *
+	 * @return
+	 */
+	public long get() {
+		long h = state;
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h == UNKNOWN ? 1 : h;
+	}
+
+	/**
+	 * Compute the digest of a given array of bytes.
+	 *
+	 * @param bytes
+	 * @return
+	 */
+	public static long of(byte[] bytes) {
+		return new Digest().update(bytes).get();
+	}
+
+	/**
+	 * Compute the digest of all remaining bytes in a given input stream. The
+	 * stream is not closed.
+	 *
+	 * @param input
+	 * @return
+	 * @throws IOException
+	 */
+	public static long of(InputStream input) throws IOException {
+		Digest digest = new Digest();
+		byte[] buffer = new byte[8192];
+		int n;
+		while ((n = input.read(buffer, 0, buffer.length)) != -1) {
+			digest.update(buffer, 0, n);
+		}
+		return digest.get();
+	}
+
+	/**
+	 * Compute the digest of the contents of a given entry, as currently stored
+	 * on disk. If the entry does not yet exist on disk (i.e. it has never been
+	 * flushed), then <code>UNKNOWN</code> is returned.
+	 *
+	 * @param entry
+	 * @return
+	 * @throws IOException
+	 */
+	public static long of(Path.Entry<?> entry) throws IOException {
+		if (entry.lastModified() == 0) {
+			return UNKNOWN;
+		}
+		InputStream input = entry.inputStream();
+		try {
+			return of(input);
+		} finally {
+			input.close();
+		}
+	}
+
+	/**
+	 * Convert a digest into a (fixed width) hexadecimal string.
+	 *
+	 * @param digest
+	 * @return
+	 */
+	public static String toString(long digest) {
+		return String.format("%016x", digest);
+	}
+}
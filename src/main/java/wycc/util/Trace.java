@@ -0,0 +1,380 @@
+// Copyright 2011 The Whiley Project Developers
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package wycc.util;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>
+ * Records structured trace events, such as the time taken to build a given
+ * entry. Events are collected from all threads and can then be written in the
+ * Chrome trace-event format, such that they can be viewed using e.g.
+ * <code>chrome://tracing</code> or Perfetto.
+ * </p>
+ * <p>
+ * Tracing is disabled by default, in which case <code>begin()</code> returns
+ * an event which does nothing. The intention is that instrumentation can remain
+ * in place without any significant overhead. A typical use is:
+ * </p>
+ *
+ * <pre>
+ * Trace.Event event = Trace.begin("build", "apply");
+ * try {
+ * 	...
+ * } finally {
+ * 	event.end();
+ * }
+ * </pre>
+ *
+ * @author David J. Pearce
+ *
+ */
+public final class Trace {
+	/**
+	 * The trace currently being recorded, or <code>null</code> if tracing is
+	 * disabled.
+	 */
+	private static volatile Trace active;
+
+	/**
+	 * The time at which this trace started (in nanoseconds).
+	 */
+	private final long start = System.nanoTime();
+
+	/**
+	 * The events completed so far.
+	 */
+	private final ConcurrentLinkedQueue<Event> events = new ConcurrentLinkedQueue<>();
+
+	/**
+	 * Start recording a new trace, replacing any trace currently being recorded.
+	 *
+	 * @return
+	 */
+	public static Trace start() {
+		Trace trace = new Trace();
+		active = trace;
+		return trace;
+	}
+
+	/**
+	 * Stop recording the current trace (if any), returning it.
+	 *
+	 * @return The trace which was being recorded, or <code>null</code>.
+	 */
+	public static Trace stop() {
+		Trace trace = active;
+		active = null;
+		return trace;
+	}
+
+	/**
+	 * Get the trace currently being recorded.
+	 *
+	 * @return The trace being recorded, or <code>null</code> if tracing is
+	 *         disabled.
+	 */
+	public static Trace current() {
+		return active;
+	}
+
+	/**
+	 * Check whether a trace is currently being recorded.
+	 *
+	 * @return
+	 */
+	public static boolean isEnabled() {
+		return active != null;
+	}
+
+	/**
+	 * Begin a new event on the current thread. The event is not recorded until
+	 * it is ended.
+	 *
+	 * @param category
+	 *            The category of the event (e.g. "build" or "io").
+	 * @param name
+	 *            The name of the event.
+	 * @return
+	 */
+	public static Event begin(String category, String name) {
+		Trace trace = active;
+		if (trace == null) {
+			return Event.NULL;
+		} else {
+			return new Event(trace, category, name);
+		}
+	}
+
+	/**
+	 * Begin a new event on the current thread concerning a given entry.
+	 *
+	 * @param category
+	 *            The category of the event (e.g. "build" or "io").
+	 * @param name
+	 *            The name of the event.
+	 * @param entry
+	 *            Identifies the entry being processed (e.g. a
+	 *            <code>Path.ID</code>).
+	 * @return
+	 */
+	public static Event begin(String category, String name, Object entry) {
+		return begin(category, name).setEntry(entry);
+	}
+
+	/**
+	 * Get the events recorded in this trace.
+	 *
+	 * @return
+	 */
+	public List<Event> getEvents() {
+		return new ArrayList<>(events);
+	}
+
+	/**
+	 * Write this trace in the Chrome trace-event (JSON) format. Each event is
+	 * written as a "complete" event, whilst the name of each thread is given as
+	 * metadata. The given stream is not closed.
+	 *
+	 * @param output
+	 * @throws IOException
+	 */
+	public void write(OutputStream output) throws IOException {
+		PrintWriter out = new PrintWriter(new OutputStreamWriter(output, StandardCharsets.UTF_8));
+		HashMap<Long, String> threads = new HashMap<>();
+		out.println("{\"displayTimeUnit\":\"ms\",\"traceEvents\":[");
+		boolean first = true;
+		for (Event e : events) {
+			threads.put(e.tid, e.thread);
+			if (!first) {
+				out.println(",");
+			}
+			first = false;
+			out.print("{\"ph\":\"X\",\"pid\":1,\"tid\":" + e.tid);
+			out.print(",\"cat\":" + quote(e.category) + ",\"name\":" + quote(e.name));
+			out.print(",\"ts\":" + toMicros(e.start - start) + ",\"dur\":" + toMicros(e.end - e.start));
+			out.print(",\"args\":{");
+			if (e.entry != null) {
+				out.print("\"entry\":" + quote(e.entry) + ",");
+			}
+			out.print("\"bytes\":" + e.bytes.get() + "}}");
+		}
+		for (Map.Entry<Long, String> t : threads.entrySet()) {
+			if (!first) {
+				out.println(",");
+			}
+			first = false;
+			out.print("{\"ph\":\"M\",\"pid\":1,\"tid\":" + t.getKey() + ",\"name\":\"thread_name\",\"args\":{\"name\":"
+					+ quote(t.getValue()) + "}}");
+		}
+		out.println();
+		out.println("]}");
+		out.flush();
+	}
+
+	/**
+	 * Convert a time (in nanoseconds) into microseconds, as expected by the trace
+	 * format.
+	 *
+	 * @param time
+	 * @return
+	 */
+	private static String toMicros(long time) {
+		return String.format(Locale.ROOT, "%.3f", time / 1000.0);
+	}
+
+	private static String quote(String str) {
+		StringBuilder sb = new StringBuilder("\"");
+		for (int i = 0; i != str.length(); ++i) {
+			char c = str.charAt(i);
+			if (c == '"' || c == '\\') {
+				sb.append('\\').append(c);
+			} else if (c < 0x20) {
+				sb.append(String.format("\\u%04x", (int) c));
+			} else {
+				sb.append(c);
+			}
+		}
+		return sb.append('"').toString();
+	}
+
+	/**
+	 * Represents a single event within a trace, such as the building of a given
+	 * entry. This records the thread on which it occurred, the entry being
+	 * processed (if any) and the number of bytes processed.
+	 *
+	 * @author David J. Pearce
+	 *
+	 */
+	public static class Event {
+		/**
+		 * An event which records nothing, used when tracing is disabled.
+		 */
+		private static final Event NULL = new Event(null, null, null) {
+			@Override
+			public Event setEntry(Object entry) {
+				return this;
+			}
+
+			@Override
+			public void addBytes(long n) {
+			}
+
+			@Override
+			public InputStream wrap(InputStream input) {
+				return input;
+			}
+
+			@Override
+			public OutputStream wrap(OutputStream output) {
+				return output;
+			}
+
+			@Override
+			public void end() {
+			}
+		};
+
+		private final Trace trace;
+		private final String category;
+		private final String name;
+		private final long tid;
+		private final String thread;
+		private final long start;
+		private final AtomicLong bytes = new AtomicLong();
+		private String entry;
+		private long end;
+
+		private Event(Trace trace, String category, String name) {
+			Thread current = Thread.currentThread();
+			this.trace = trace;
+			this.category = category;
+			this.name = name;
+			this.tid = current.getId();
+			this.thread = current.getName();
+			this.start = System.nanoTime();
+		}
+
+		public String getCategory() {
+			return category;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public String getEntry() {
+			return entry;
+		}
+
+		public long getBytes() {
+			return bytes.get();
+		}
+
+		/**
+		 * Identify the entry being processed by this event.
+		 *
+		 * @param entry
+		 * @return
+		 */
+		public Event setEntry(Object entry) {
+			this.entry = entry == null ? null : entry.toString();
+			return this;
+		}
+
+		/**
+		 * Record that a given number of bytes were processed by this event.
+		 *
+		 * @param n
+		 */
+		public void addBytes(long n) {
+			bytes.addAndGet(n);
+		}
+
+		/**
+		 * Wrap a given input stream such that all bytes read are recorded against
+		 * this event.
+		 *
+		 * @param input
+		 * @return
+		 */
+		public InputStream wrap(InputStream input) {
+			return new FilterInputStream(input) {
+				@Override
+				public int read() throws IOException {
+					int b = super.read();
+					if (b >= 0) {
+						addBytes(1);
+					}
+					return b;
+				}
+
+				@Override
+				public int read(byte[] b, int off, int len) throws IOException {
+					int n = super.read(b, off, len);
+					if (n > 0) {
+						addBytes(n);
+					}
+					return n;
+				}
+			};
+		}
+
+		/**
+		 * Wrap a given output stream such that all bytes written are recorded
+		 * against this event.
+		 *
+		 * @param output
+		 * @return
+		 */
+		public OutputStream wrap(OutputStream output) {
+			return new FilterOutputStream(output) {
+				@Override
+				public void write(int b) throws IOException {
+					out.write(b);
+					addBytes(1);
+				}
+
+				@Override
+				public void write(byte[] b, int off, int len) throws IOException {
+					out.write(b, off, len);
+					addBytes(len);
+				}
+			};
+		}
+
+		/**
+		 * Mark this event as completed, at which point it is recorded in the
+		 * trace.
+		 */
+		public void end() {
+			this.end = System.nanoTime();
+			trace.events.add(this);
+		}
+	}
+}
@@ -67,6 +67,14 @@ public class BinaryInputStream extends InputStream {
 				| read_u8();
 	}
 
+	public long read_u64() throws IOException {
+		long value = 0;
+		for (int i = 0; i != 8; ++i) {
+			value = (value << 8) | read_u8();
+		}
+		return value;
+	}
+
 	public int read_un(int n) throws IOException {
 		int value = 0;
 		int mask = 1;
@@ -95,6 +95,17 @@ public class BinaryOutputStream extends OutputStream {
 		write_u8(w & 0xFF);
 	}
 
+	/**
+	 * Write a 64bit integer value using a big-endian encoding.
+	 *
+	 * @param w
+	 * @throws IOException
+	 */
+	public void write_u64(long w) throws IOException {
+		write_u32((int) (w >> 32));
+		write_u32((int) w);
+	}
+
 	/**
 	 * Write an unsigned integer value using a variable amount of space. The
 	 * value is split into 4 bit (big-endian) chunks, where the msb of each
@@ -16,6 +16,7 @@ package wyfs.util;
 import java.io.IOException;
 import java.util.*;
 
+import wycc.util.Trace;
 import wyfs.lang.Content;
 import wyfs.lang.Path;
 
@@ -68,7 +69,12 @@ public abstract class AbstractEntry<T> implements Path.Entry<T> {
 	@Override
 	public void flush() throws IOException {
 		if(modified && contents != null) {
-			contentType.write(outputStream(), contents);
+			Trace.Event event = Trace.begin("io", "flush", id);
+			try {
+				contentType.write(event.wrap(outputStream()), contents);
+			} finally {
+				event.end();
+			}
 			this.modified = false;
 		}
 	}
@@ -76,7 +82,12 @@ public abstract class AbstractEntry<T> implements Path.Entry<T> {
 	@Override
 	public T read() throws IOException {
 		if (contents == null) {
-			contents = contentType.read(this,inputStream());
+			Trace.Event event = Trace.begin("io", "read", id);
+			try {
+				contents = contentType.read(this, event.wrap(inputStream()));
+			} finally {
+				event.end();
+			}
 		}
 		return contents;
 	}
@@ -17,8 +17,10 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Comparator;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.function.Predicate;
 
 import wyfs.lang.Content;
 import wyfs.lang.Path;
@@ -28,10 +30,17 @@ import wyfs.lang.Path.Entry;
 import wyfs.lang.Path.ID;
 
 /**
+ * <p>
  * An abstract folder contains other folders, and path entries. As such, it
  * cannot be considered a concrete entry which can be read and written in the
  * normal manner. Rather, it provides access to entries. In a physical file
  * system, a folder would correspond to a directory.
+ * </p>
+ * <p>
+ * Access to the contents of a folder is synchronised, such that entries can be
+ * created and looked up concurrently (e.g. by build tasks running in parallel).
+ * Subclasses which create entries must likewise synchronise on the folder.
+ * </p>
  *
  * @author David J. Pearce
  *
@@ -57,7 +66,7 @@ public abstract class AbstractFolder implements Path.Folder {
 	}
 
 	@Override
-	public boolean contains(Path.Entry<?> e) throws IOException {
+	public synchronized boolean contains(Path.Entry<?> e) throws IOException {
 		updateContents();
 		Path.ID eid = e.id();
 		boolean contained;
@@ -103,7 +112,7 @@ public abstract class AbstractFolder implements Path.Folder {
 	}
 
 	@Override
-	public <T> Path.Entry<T> get(ID eid, Content.Type<T> ct) throws IOException {
+	public synchronized <T> Path.Entry<T> get(ID eid, Content.Type<T> ct) throws IOException {
 		updateContents();
 		ID tid = id.append(eid.get(0));
 
@@ -136,7 +145,7 @@ public abstract class AbstractFolder implements Path.Folder {
 	}
 
 	@Override
-	public List<Entry<?>> getAll() throws IOException {
+	public synchronized List<Entry<?>> getAll() throws IOException {
 		ArrayList entries = new ArrayList();
 		updateContents();
 
@@ -159,7 +168,7 @@ public abstract class AbstractFolder implements Path.Folder {
 	}
 
 	@Override
-	public <T> void getAll(Content.Filter<T> filter, List<Entry<T>> entries) throws IOException {
+	public synchronized <T> void getAll(Content.Filter<T> filter, List<Entry<T>> entries) throws IOException {
 		updateContents();
 
 		// It would be nice to further optimise this loop. The key issue is that,
@@ -182,7 +191,7 @@ public abstract class AbstractFolder implements Path.Folder {
 	}
 
 	@Override
-	public <T> void getAll(Content.Filter<T> filter, Set<Path.ID> entries) throws IOException {
+	public synchronized <T> void getAll(Content.Filter<T> filter, Set<Path.ID> entries) throws IOException {
 		updateContents();
 
 		// It would be nice to further optimise this loop. The key issue is that,
@@ -204,13 +213,87 @@ public abstract class AbstractFolder implements Path.Folder {
 		}
 	}
 
+	/**
+	 * Refresh the contents of this folder from permanent storage. Items which
+	 * still exist are retained (and refreshed in turn), such that their identity
+	 * is preserved. Entries which have been modified in memory are always
+	 * retained, even if they no longer exist in permanent storage.
+	 */
 	@Override
-	public void refresh() {
-		contents = null;
+	public synchronized void refresh() throws IOException {
+		refresh(item -> true);
+	}
+
+	/**
+	 * Refresh the contents of this folder from permanent storage, as for
+	 * <code>refresh()</code>, except that only those retained entries matching
+	 * a given predicate are refreshed in turn. All other retained entries keep
+	 * their cached contents. This is useful when the entries which have changed
+	 * are already known (e.g. from file system notifications).
+	 *
+	 * @param stale
+	 *            Determines which retained entries should be refreshed.
+	 * @throws IOException
+	 */
+	public synchronized void refresh(Predicate<? super Entry<?>> stale) throws IOException {
+		if (contents == null) {
+			// Nothing has been loaded yet
+			return;
+		}
+		Path.Item[] fresh = contents();
+		ArrayList<Path.Item> items = new ArrayList<>();
+		HashSet<Path.Item> retained = new HashSet<>();
+		for (int i = 0; i != fresh.length; ++i) {
+			Path.Item item = find(fresh[i]);
+			if (item == null) {
+				items.add(fresh[i]);
+			} else {
+				if (item instanceof AbstractFolder) {
+					((AbstractFolder) item).refresh(stale);
+				} else if (!(item instanceof Entry) || stale.test((Entry<?>) item)) {
+					item.refresh();
+				}
+				items.add(item);
+				retained.add(item);
+			}
+		}
+		for (int i = 0; i != nentries; ++i) {
+			Path.Item item = contents[i];
+			if (item instanceof Entry && ((Entry<?>) item).isModified() && !retained.contains(item)) {
+				items.add(item);
+			}
+		}
+		contents = items.toArray(new Path.Item[items.size()]);
+		nentries = contents.length;
+		Arrays.sort(contents, entryComparator);
+	}
+
+	/**
+	 * Find an existing item in this folder which corresponds to a given item.
+	 * That is, which has the same identifier and is either a folder or an entry
+	 * of the same content type.
+	 *
+	 * @param item
+	 * @return
+	 */
+	private Path.Item find(Path.Item item) {
+		int idx = binarySearch(contents, nentries, item.id());
+		if (idx >= 0) {
+			for (; idx < nentries && contents[idx].id().equals(item.id()); ++idx) {
+				Path.Item existing = contents[idx];
+				if (existing instanceof Path.Folder && item instanceof Path.Folder) {
+					return existing;
+				} else if (existing instanceof Entry && item instanceof Entry
+						&& ((Entry) existing).contentType() == ((Entry) item).contentType()) {
+					return existing;
+				}
+			}
+		}
+		return null;
 	}
 
 	@Override
-	public void flush() throws IOException {
+	public synchronized void flush() throws IOException {
 		if (contents != null) {
 			for (int i = 0; i != nentries; ++i) {
 				contents[i].flush();
@@ -219,7 +302,7 @@ public abstract class AbstractFolder implements Path.Folder {
 	}
 
 	@Override
-	public boolean remove(ID id, Type<?> ct) throws IOException {
+	public synchronized boolean remove(ID id, Type<?> ct) throws IOException {
 		updateContents();
 		// Find start of matches
 		int index = binarySearch(contents, nentries, id);
@@ -240,7 +323,7 @@ public abstract class AbstractFolder implements Path.Folder {
 	}
 
 	@Override
-	public int remove(Filter<?> filter) throws IOException {
+	public synchronized int remove(Filter<?> filter) throws IOException {
 		updateContents();
 		int count = 0;
 		//
@@ -262,7 +345,7 @@ public abstract class AbstractFolder implements Path.Folder {
 		return count;
 	}
 
-	protected Path.Folder getFolder(String name) throws IOException {
+	protected synchronized Path.Folder getFolder(String name) throws IOException {
 		updateContents();
 
 		ID tid = id.append(name);
@@ -293,7 +376,7 @@ public abstract class AbstractFolder implements Path.Folder {
 	 *
 	 * @param item
 	 */
-	protected void insert(Path.Item item) throws IOException {
+	protected synchronized void insert(Path.Item item) throws IOException {
 		if (item.id().parent() != id) {
 			throw new IllegalArgumentException(
 					"Cannot insert with incorrect Path.Item (" + item.id() + ") into AbstractFolder (" + id + ")");
@@ -178,6 +178,31 @@ public class DirectoryRoot extends AbstractRoot<DirectoryRoot.Folder> {
 		return sources;
 	}
 
+	/**
+	 * Refresh this root from the file system, given those physical files which
+	 * are known to have changed (e.g. from file system notifications). Unlike
+	 * <code>refresh()</code>, only entries whose file (or some directory
+	 * containing it) has changed are refreshed. All other entries retain their
+	 * cached contents.
+	 *
+	 * @param changed
+	 *            --- set of absolute files and directories which have changed.
+	 * @throws IOException
+	 */
+	public void refresh(Set<File> changed) throws IOException {
+		root.refresh(e -> {
+			if (e instanceof Entry) {
+				for (File f = ((Entry<?>) e).file().getAbsoluteFile(); f != null; f = f.getParentFile()) {
+					if (changed.contains(f)) {
+						return true;
+					}
+				}
+				return false;
+			}
+			return true;
+		});
+	}
+
 	public final class Relative extends DirectoryRoot implements Path.RelativeRoot {
 
 		public Relative(File dir, FileFilter filter, Registry contentTypes) throws IOException {
@@ -297,7 +322,7 @@ public class DirectoryRoot extends AbstractRoot<DirectoryRoot.Folder> {
 		}
 
 		@Override
-		public <T> Path.Entry<T> create(ID nid, Content.Type<T> ct)
+		public synchronized <T> Path.Entry<T> create(ID nid, Content.Type<T> ct)
 				throws IOException {
 			if (nid.size() == 1) {
 				// attempting to create an entry in this folder
@@ -328,7 +353,7 @@ public class DirectoryRoot extends AbstractRoot<DirectoryRoot.Folder> {
 		}
 
 		@Override
-		public boolean remove(Path.ID id, Content.Type<?> type) throws IOException {
+		public synchronized boolean remove(Path.ID id, Content.Type<?> type) throws IOException {
 			Path.Entry<?> entry = get(id, type);
 			//
 			if (entry != null) {
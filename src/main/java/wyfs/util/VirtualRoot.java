@@ -199,7 +199,7 @@ public class VirtualRoot extends AbstractRoot<VirtualRoot.Folder> {
 		}
 
 		@Override
-		public <T> Path.Entry<T> create(ID nid, Content.Type<T> ct) throws IOException {
+		public synchronized <T> Path.Entry<T> create(ID nid, Content.Type<T> ct) throws IOException {
 			if (nid.size() == 1) {
 				// attempting to create an entry in this folder
 				Path.Entry<T> e = super.get(nid.subpath(0, 1), ct);
@@ -0,0 +1,212 @@
+// Copyright 2011 The Whiley Project Developers
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.*;
+
+import wybs.lang.Build;
+import wybs.util.ActionCache;
+import wybs.util.StdBuildGraph;
+import wybs.util.StdBuildRule;
+import wycc.util.Pair;
+import wyfs.lang.Content;
+import wyfs.lang.Path;
+import wyfs.util.DirectoryRoot;
+import wyfs.util.Trie;
+
+public class ActionCacheTests {
+	private static final Content.Type<byte[]> SRC = new Bytes("src");
+	private static final Content.Type<byte[]> BIN = new Bytes("bin");
+	private static final Path.ID A = Trie.fromString("a");
+
+	private static final Content.Registry REGISTRY = new Content.Registry() {
+		@Override
+		public String suffix(Content.Type<?> t) {
+			return t.getSuffix();
+		}
+
+		@Override
+		public void associate(Path.Entry<?> e) {
+			if (e.suffix().equals(SRC.getSuffix())) {
+				retype(e).associate(SRC, null);
+			} else if (e.suffix().equals(BIN.getSuffix())) {
+				retype(e).associate(BIN, null);
+			}
+		}
+	};
+
+	private File dir;
+
+	@Before public void setup() throws IOException {
+		dir = Files.createTempDirectory("wy").toFile();
+	}
+
+	@After public void teardown() {
+		delete(dir);
+	}
+
+	@Test public void cache_1() throws IOException {
+		ActionCache cache = new ActionCache(new File(dir, "cache"), 1024 * 1024, Arrays.asList(SRC, BIN));
+		DirectoryRoot source = root("src");
+		Path.Entry<byte[]> a = source.create(A, SRC);
+		write(a, "hello");
+		// Nothing cached, so the task is invoked
+		Copier task = new Copier();
+		rule(task, source, root("bin1"), cache).apply(Arrays.asList(a), new StdBuildGraph());
+		assertEquals(1, task.count);
+		assertEquals(1, cache.size());
+		// Cached, so the outputs are restored without invoking the task
+		DirectoryRoot target = root("bin2");
+		StdBuildGraph graph = new StdBuildGraph();
+		rule(task, source, target, cache).apply(Arrays.asList(a), graph);
+		assertEquals(1, task.count);
+		assertArrayEquals("hello".getBytes(), target.get(A, BIN).read());
+		assertEquals(Arrays.asList(target.get(A, BIN)), graph.getChildren(a));
+		// Input changed, so the task is invoked again
+		write(a, "world");
+		rule(task, source, root("bin3"), cache).apply(Arrays.asList(a), new StdBuildGraph());
+		assertEquals(2, task.count);
+		assertEquals(2, cache.size());
+	}
+
+	@Test public void prune_1() throws IOException {
+		ActionCache cache = new ActionCache(new File(dir, "cache"), 1024 * 1024, Arrays.asList(SRC, BIN));
+		ActionCache.Key[] keys = new ActionCache.Key[3];
+		long now = System.currentTimeMillis();
+		for (int i = 0; i != keys.length; ++i) {
+			keys[i] = new ActionCache.Key().update(i);
+			cache.put(keys[i], Arrays.asList(new ActionCache.Output(A, BIN, Collections.emptyList(), new byte[100])));
+			new File(cache.location(), keys[i] + ".action").setLastModified(now - 10000 + i * 1000);
+		}
+		long size = cache.bytes() / keys.length;
+		// Using an action makes it most recently used
+		assertNotNull(cache.get(keys[0]));
+		assertEquals(2, cache.prune(size));
+		assertEquals(1, cache.size());
+		assertNull(cache.get(keys[1]));
+		assertNull(cache.get(keys[2]));
+		assertNotNull(cache.get(keys[0]));
+		// Clearing the cache removes everything
+		assertEquals(1, cache.prune(0));
+		assertEquals(0, cache.size());
+		assertEquals(0, cache.bytes());
+	}
+
+	private DirectoryRoot root(String name) throws IOException {
+		File file = new File(dir, name);
+		file.mkdirs();
+		return new DirectoryRoot(file, REGISTRY);
+	}
+
+	private static StdBuildRule rule(Build.Task task, Path.Root source, Path.Root target, ActionCache cache) {
+		return new StdBuildRule(task, source, Content.filter("**", SRC), null, target, cache, 0);
+	}
+
+	private static void write(Path.Entry<byte[]> entry, String contents) throws IOException {
+		File file = ((DirectoryRoot.Entry<?>) entry).file();
+		long before = file.exists() ? file.lastModified() : 0;
+		entry.write(contents.getBytes());
+		entry.flush();
+		// Ensure the modification time changes, even on coarse file systems
+		file.setLastModified(Math.max(before + 1000, file.lastModified()));
+	}
+
+	private static void delete(File file) {
+		File[] files = file.listFiles();
+		if (files != null) {
+			for (File f : files) {
+				delete(f);
+			}
+		}
+		file.delete();
+	}
+
+	@SuppressWarnings("unchecked")
+	private static Path.Entry<byte[]> retype(Path.Entry<?> e) {
+		return (Path.Entry<byte[]>) e;
+	}
+
+	/**
+	 * Copies each source file into the target root, counting the number of
+	 * times it is invoked.
+	 */
+	private static class Copier implements Build.Task {
+		private int count;
+
+		@Override
+		public Build.Project project() {
+			return null;
+		}
+
+		@Override
+		public Set<Path.Entry<?>> build(Collection<Pair<Path.Entry<?>, Path.Root>> delta, Build.Graph graph)
+				throws IOException {
+			count = count + 1;
+			HashSet<Path.Entry<?>> generated = new HashSet<>();
+			for (Pair<Path.Entry<?>, Path.Root> p : delta) {
+				Path.Entry<byte[]> binary = p.second().create(p.first().id(), BIN);
+				binary.write((byte[]) p.first().read());
+				binary.flush();
+				graph.connect(p.first(), binary);
+				generated.add(binary);
+			}
+			return generated;
+		}
+	}
+
+	private static class Bytes implements Content.Type<byte[]> {
+		private final String suffix;
+
+		public Bytes(String suffix) {
+			this.suffix = suffix;
+		}
+
+		@Override
+		public String getSuffix() {
+			return suffix;
+		}
+
+		@Override
+		public byte[] read(Path.Entry<byte[]> e, InputStream input) throws IOException {
+			ByteArrayOutputStream bout = new ByteArrayOutputStream();
+			byte[] buffer = new byte[1024];
+			int n;
+			while ((n = input.read(buffer)) != -1) {
+				bout.write(buffer, 0, n);
+			}
+			return bout.toByteArray();
+		}
+
+		@Override
+		public void write(OutputStream output, byte[] bytes) throws IOException {
+			output.write(bytes);
+		}
+	}
+}
@@ -0,0 +1,93 @@
+// Copyright 2011 The Whiley Project Developers
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import org.junit.*;
+
+import wybs.util.BuildGraphFile;
+import wycc.util.Digest;
+import wyfs.lang.Content;
+import wyfs.lang.Path;
+import wyfs.util.DirectoryRoot;
+import wyfs.util.Trie;
+
+public class BuildGraphFileTests {
+
+	@Test public void clean_1() throws IOException {
+		File dir = Files.createTempDirectory("wy").toFile();
+		try {
+			Path.Entry<?> source = entry(new File(dir, "a.src"), "src");
+			Path.Entry<?> binary = entry(new File(dir, "a.bin"), "bin");
+			write(source, "source");
+			write(binary, "binary");
+			// Record the build
+			BuildGraphFile bgf = new BuildGraphFile(Arrays.asList("src", "bin"));
+			int s = bgf.add(0, source.id(), "src", source.lastModified(), Digest.of(source));
+			int b = bgf.add(1, binary.id(), "bin", binary.lastModified(), Digest.of(binary));
+			bgf.connect(s, b);
+			assertTrue(bgf.isUnchanged("src", source, Arrays.asList(binary)));
+			// Clean removes the binary, so the source must be rebuilt
+			((DirectoryRoot.Entry<?>) binary).file().delete();
+			assertFalse(bgf.isUnchanged("src", source, Arrays.asList(binary)));
+			// Rebuilding regenerates identical contents
+			write(binary, "binary");
+			assertTrue(bgf.isUnchanged("src", source, Arrays.asList(binary)));
+			// Modifying the binary by hand must also be detected
+			write(binary, "other");
+			assertFalse(bgf.isUnchanged("src", source, Arrays.asList(binary)));
+		} finally {
+			for (File f : dir.listFiles()) {
+				f.delete();
+			}
+			dir.delete();
+		}
+	}
+
+	private static Path.Entry<?> entry(File file, String suffix) {
+		DirectoryRoot.Entry<Object> e = new DirectoryRoot.Entry<>(Trie.fromString("a"), file);
+		e.associate(new Content.Type<Object>() {
+			@Override
+			public String getSuffix() {
+				return suffix;
+			}
+
+			@Override
+			public Object read(Path.Entry<Object> e, InputStream input) throws IOException {
+				throw new UnsupportedOperationException();
+			}
+
+			@Override
+			public void write(OutputStream output, Object value) throws IOException {
+				throw new UnsupportedOperationException();
+			}
+		}, null);
+		return e;
+	}
+
+	private static void write(Path.Entry<?> entry, String contents) throws IOException {
+		File file = ((DirectoryRoot.Entry<?>) entry).file();
+		long before = file.lastModified();
+		Files.write(file.toPath(), contents.getBytes());
+		// Ensure the modification time changes, even on coarse file systems
+		file.setLastModified(Math.max(before + 1000, file.lastModified()));
+	}
+}
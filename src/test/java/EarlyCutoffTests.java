@@ -0,0 +1,93 @@
+// Copyright 2011 The Whiley Project Developers
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.*;
+
+import wybs.util.EarlyCutoff;
+import wybs.util.StdBuildGraph;
+import wyfs.lang.Content;
+import wyfs.lang.Path;
+import wyfs.util.DirectoryRoot;
+import wyfs.util.Trie;
+
+public class EarlyCutoffTests {
+	private static final Content.Type<String> TEXT = new Content.Type<String>() {
+		@Override
+		public String getSuffix() {
+			return "txt";
+		}
+
+		@Override
+		public String read(Path.Entry<String> e, InputStream input) throws IOException {
+			StringBuilder sb = new StringBuilder();
+			int b;
+			while ((b = input.read()) != -1) {
+				sb.append((char) b);
+			}
+			return sb.toString();
+		}
+
+		@Override
+		public void write(OutputStream output, String value) throws IOException {
+			output.write(value.getBytes());
+		}
+	};
+
+	@Test public void cutoff_1() throws IOException {
+		File dir = Files.createTempDirectory("wy").toFile();
+		try {
+			Path.Entry<String> binary = entry(new File(dir, "b.txt"), "b");
+			Path.Entry<String> dependent = entry(new File(dir, "c.txt"), "c");
+			write(binary, "binary");
+			write(dependent, "dependent");
+			StdBuildGraph graph = new StdBuildGraph();
+			graph.connect(binary, dependent);
+			EarlyCutoff cutoff = new EarlyCutoff();
+			// Regenerated with identical contents, so the dependent is not rebuilt
+			binary.write("binary");
+			assertTrue(cutoff.apply(Arrays.asList(binary), graph).isEmpty());
+			assertEquals(1, cutoff.getAvoided());
+			// Regenerated with different contents, so the dependent is rebuilt
+			binary.write("other");
+			assertEquals(Collections.singleton(binary), cutoff.apply(Arrays.asList(binary), graph));
+			assertEquals(1, cutoff.getAvoided());
+		} finally {
+			for (File f : dir.listFiles()) {
+				f.delete();
+			}
+			dir.delete();
+		}
+	}
+
+	private static Path.Entry<String> entry(File file, String name) {
+		DirectoryRoot.Entry<String> e = new DirectoryRoot.Entry<>(Trie.fromString(name), file);
+		e.associate(TEXT, null);
+		return e;
+	}
+
+	private static void write(Path.Entry<String> entry, String contents) throws IOException {
+		entry.write(contents);
+		entry.flush();
+	}
+}
@@ -0,0 +1,66 @@
+// Copyright 2011 The Whiley Project Developers
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+import org.junit.*;
+
+import wybs.util.InvalidationEngine;
+import wybs.util.StdBuildGraph;
+import wyfs.lang.Path;
+import wyfs.util.DirectoryRoot;
+import wyfs.util.Trie;
+
+public class InvalidationEngineTests {
+	private static final Path.Entry<?> A = entry("a");
+	private static final Path.Entry<?> B = entry("b");
+	private static final Path.Entry<?> C = entry("c");
+	private static final Path.Entry<?> D = entry("d");
+
+	@Test public void invalidate_1() {
+		StdBuildGraph graph = new StdBuildGraph();
+		graph.connect(A, B);
+		graph.connect(B, C);
+		graph.connect(D, C);
+		InvalidationEngine engine = new InvalidationEngine(graph);
+		assertEquals(new HashSet<>(Arrays.asList(A, B, C)), engine.getDirtySet(Arrays.asList(A)));
+		assertEquals(new HashSet<>(Arrays.asList(C)), engine.getDirtySet(Arrays.asList(C)));
+	}
+	@Test public void invalidate_2() {
+		StdBuildGraph graph = new StdBuildGraph();
+		graph.connect(A, C);
+		graph.connect(B, C);
+		graph.connect(A, B);
+		graph.connect(C, D);
+		List<List<Path.Entry<?>>> layers = new InvalidationEngine(graph).invalidate(Arrays.asList(A, B));
+		assertEquals(Arrays.asList(Arrays.asList(A), Arrays.asList(B), Arrays.asList(C), Arrays.asList(D)), layers);
+	}
+	@Test public void invalidate_3() {
+		StdBuildGraph graph = new StdBuildGraph();
+		graph.connect(A, B);
+		graph.connect(B, C);
+		graph.connect(C, B);
+		List<List<Path.Entry<?>>> layers = new InvalidationEngine(graph).invalidate(Arrays.asList(A));
+		assertEquals(Arrays.asList(Collections.singletonList(A), Arrays.asList(B, C)), layers);
+	}
+
+	private static Path.Entry<?> entry(String name) {
+		return new DirectoryRoot.Entry<>(Trie.fromString(name), new File(name));
+	}
+}
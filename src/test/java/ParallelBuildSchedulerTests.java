@@ -0,0 +1,120 @@
+// Copyright 2011 The Whiley Project Developers
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.junit.*;
+
+import wybs.lang.Build;
+import wybs.util.ParallelBuildScheduler;
+import wybs.util.StdBuildGraph;
+import wybs.util.StdBuildRule;
+import wycc.util.Pair;
+import wyfs.lang.Content;
+import wyfs.lang.Path;
+import wyfs.util.DirectoryRoot;
+import wyfs.util.Trie;
+
+public class ParallelBuildSchedulerTests {
+	private static final Path.Entry<?> A = entry("a");
+	private static final Path.Entry<?> B = entry("b");
+	private static final Path.Entry<?> C = entry("c");
+	private static final Path.Entry<?> D = entry("d");
+	private static final Path.Entry<?> E = entry("e");
+	private static final Path.Entry<?> F = entry("f");
+
+	@Test public void build_1() throws Exception {
+		StdBuildGraph graph = new StdBuildGraph();
+		graph.connect(A, B);
+		graph.connect(B, C);
+		graph.connect(D, C);
+		graph.connect(E, F);
+		// Every entry built regenerates its children
+		List<Path.Entry<?>> built = Collections.synchronizedList(new ArrayList<>());
+		Build.Rule rule = (group, g) -> {
+			HashSet<Path.Entry<?>> generated = new HashSet<>();
+			for (Path.Entry<?> entry : group) {
+				built.add(entry);
+				generated.addAll(g.getChildren(entry));
+			}
+			return generated;
+		};
+		new ParallelBuildScheduler(Arrays.asList(rule), 2).build(Arrays.asList(A, D, E), graph);
+		assertEquals(6, built.size());
+		assertEquals(new HashSet<>(Arrays.asList(A, B, C, D, E, F)), new HashSet<>(built));
+		assertTrue(built.indexOf(A) < built.indexOf(B));
+		assertTrue(built.indexOf(B) < built.indexOf(C));
+		assertTrue(built.indexOf(D) < built.indexOf(C));
+		assertTrue(built.indexOf(E) < built.indexOf(F));
+	}
+
+	@Test public void build_2() throws Exception {
+		// Unconnected sources of a single rule are built concurrently
+		StdBuildGraph graph = new StdBuildGraph();
+		CyclicBarrier barrier = new CyclicBarrier(2);
+		List<Path.Entry<?>> built = Collections.synchronizedList(new ArrayList<>());
+		Build.Task task = new Build.Task() {
+			@Override
+			public Build.Project project() {
+				return null;
+			}
+
+			@Override
+			public Set<Path.Entry<?>> build(Collection<Pair<Path.Entry<?>, Path.Root>> delta, Build.Graph graph)
+					throws IOException {
+				for (Pair<Path.Entry<?>, Path.Root> p : delta) {
+					built.add(p.first());
+				}
+				try {
+					// Both groups must be running at the same time to proceed
+					barrier.await(10, TimeUnit.SECONDS);
+				} catch (InterruptedException | BrokenBarrierException | TimeoutException e) {
+					throw new IOException("groups not built concurrently", e);
+				}
+				return Collections.emptySet();
+			}
+		};
+		Build.Rule rule = new StdBuildRule(task, null, new Content.Filter<Object>() {
+			@Override
+			public boolean matches(Path.ID id, Content.Type<Object> ct) {
+				return true;
+			}
+
+			@Override
+			public boolean matchesSubpath(Path.ID id) {
+				return true;
+			}
+		}, null, null);
+		new ParallelBuildScheduler(Arrays.asList(rule), 2).build(Arrays.asList(A, B, C, D), graph);
+		assertEquals(new HashSet<>(Arrays.asList(A, B, C, D)), new HashSet<>(built));
+	}
+
+	private static Path.Entry<?> entry(String name) {
+		return new DirectoryRoot.Entry<>(Trie.fromString(name), new File(name));
+	}
+}
@@ -0,0 +1,66 @@
+// Copyright 2011 The Whiley Project Developers
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.Arrays;
+
+import org.junit.*;
+
+import wybs.util.StdBuildGraph;
+import wyfs.lang.Path;
+import wyfs.util.DirectoryRoot;
+import wyfs.util.Trie;
+
+public class StdBuildGraphTests {
+	private static final Path.Entry<?> A = entry("a");
+	private static final Path.Entry<?> B = entry("b");
+	private static final Path.Entry<?> C = entry("c");
+
+	@Test public void connect_1() {
+		StdBuildGraph graph = new StdBuildGraph();
+		graph.connect(A, B);
+		graph.connect(A, B);
+		assertEquals(1, graph.size());
+		assertEquals(Arrays.asList(B), graph.getChildren(A));
+		assertEquals(Arrays.asList(A), graph.getParents(B));
+	}
+	@Test public void connect_2() {
+		StdBuildGraph graph = new StdBuildGraph();
+		graph.connectAll(A, Arrays.asList(B, C));
+		assertEquals(Arrays.asList(B, C), graph.getChildren(A));
+		assertEquals(3, graph.getEntries().size());
+	}
+	@Test public void disconnect_1() {
+		StdBuildGraph graph = new StdBuildGraph();
+		graph.connectAll(A, Arrays.asList(B, C));
+		assertTrue(graph.disconnect(A, B));
+		assertEquals(Arrays.asList(C), graph.getChildren(A));
+		assertTrue(graph.getParents(B).isEmpty());
+		assertEquals(2, graph.getEntries().size());
+	}
+	@Test public void disconnect_2() {
+		StdBuildGraph graph = new StdBuildGraph();
+		graph.connect(A, B);
+		graph.connect(B, C);
+		assertEquals(2, graph.disconnect(B));
+		assertEquals(0, graph.size());
+		assertTrue(graph.getEntries().isEmpty());
+	}
+
+	private static Path.Entry<?> entry(String name) {
+		return new DirectoryRoot.Entry<>(Trie.fromString(name), new File(name));
+	}
+}
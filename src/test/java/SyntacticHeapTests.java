@@ -0,0 +1,509 @@
+// Copyright 2011 The Whiley Project Developers
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+
+import org.junit.*;
+
+import wybs.lang.SyntacticItem;
+import wybs.util.AbstractCompilationUnit;
+import wybs.util.AbstractCompilationUnit.Identifier;
+import wybs.util.AbstractCompilationUnit.Pair;
+import wybs.util.AbstractCompilationUnit.Ref;
+import wybs.util.AbstractCompilationUnit.Tuple;
+import wybs.util.AbstractCompilationUnit.Value;
+import wybs.util.AbstractSyntacticHeap;
+import wybs.util.CompactSyntacticHeap;
+import wybs.util.MappedSyntacticHeap;
+import wybs.util.SyntacticHeapDiff;
+import wybs.util.SyntacticHeapStatistics;
+import wybs.util.SyntacticItemRewriter;
+import wybs.util.SyntacticItemVisitor;
+import wycc.cfg.ConfigFile;
+
+public class SyntacticHeapTests {
+
+	@Test public void getIndexOf_1() {
+		ConfigFile heap = new ConfigFile(null);
+		Tuple<Identifier> root = heap.allocate(new Tuple<>(new Identifier("a"), new Identifier("b")));
+		for (int i = 0; i != heap.size(); ++i) {
+			assertEquals(i, heap.getIndexOf(heap.getSyntacticItem(i)));
+		}
+		assertEquals(root.getIndex(), heap.getIndexOf(root));
+	}
+	@Test(expected = IllegalArgumentException.class)
+	public void getIndexOf_2() {
+		ConfigFile heap = new ConfigFile(null);
+		heap.allocate(new Identifier("a"));
+		heap.getIndexOf(new Identifier("a"));
+	}
+	@Test public void getParent_1() {
+		ConfigFile heap = new ConfigFile(null);
+		Identifier a = new Identifier("a");
+		Pair<Identifier, Value> p = new Pair<>(a, new Value.Null());
+		Tuple<SyntacticItem> root = heap.allocate(new Tuple<>(p, new Tuple<>(a)));
+		Identifier ha = (Identifier) root.get(0).get(0);
+		assertSame(root.get(0), heap.getParent(ha, Pair.class));
+		assertSame(root, heap.getAncestor(ha, Tuple.class));
+		assertNull(heap.getParent(root, Tuple.class));
+	}
+	@Test public void getParent_2() {
+		ConfigFile heap = new ConfigFile(null);
+		Identifier b = heap.allocate(new Identifier("b"));
+		Tuple<SyntacticItem> root = heap.allocate(new Tuple<>(new Identifier("a")));
+		SyntacticItem a = root.get(0);
+		assertSame(root, heap.getParent(a, Tuple.class));
+		// Parent index must follow updates to operands
+		root.setOperand(0, b);
+		assertNull(heap.getParent(a, Tuple.class));
+		assertSame(root, heap.getParent(b, Tuple.class));
+	}
+	@Test public void getParent_3() {
+		ConfigFile heap = new ConfigFile(null);
+		Identifier a = new Identifier("a");
+		Tuple<SyntacticItem> root = heap.allocate(new Tuple<>(a, a, new Identifier("b")));
+		SyntacticItem ha = root.get(0);
+		SyntacticItem hb = root.get(2);
+		// Parent remains whilst any operand still refers to the child
+		root.setOperand(0, hb);
+		assertSame(root, heap.getParent(ha, Tuple.class));
+		root.setOperand(1, hb);
+		assertNull(heap.getParent(ha, Tuple.class));
+		assertSame(root, heap.getParent(hb, Tuple.class));
+	}
+	@Test public void getAncestor_1() {
+		// Ancestors of arbitrary depth are found without overflowing the stack
+		Identifier leaf = new Identifier("a");
+		SyntacticItem item = leaf;
+		for (int i = 0; i != 100000; ++i) {
+			item = new Tuple<>(item);
+		}
+		ConfigFile heap = new ConfigFile(null);
+		Pair<Identifier, SyntacticItem> root = heap.allocate(new Pair<>(new Identifier("b"), item));
+		SyntacticItem hLeaf = heap.getSyntacticItem(heap.size() - 1);
+		assertEquals(leaf, hLeaf);
+		assertSame(root, heap.getAncestor(hLeaf, Pair.class));
+		assertNull(heap.getAncestor(hLeaf, Value.class));
+	}
+	@Test public void hashConsing_1() {
+		ConfigFile heap = new ConfigFile(null);
+		heap.setHashConsing(true);
+		Tuple<SyntacticItem> root = heap.allocate(new Tuple<>(new Pair<>(new Identifier("a"), new Value.Int(1)),
+				new Pair<>(new Identifier("a"), new Value.Int(1)), new Identifier("a")));
+		assertSame(root.get(0), root.get(1));
+		assertSame(root.get(0).get(0), root.get(2));
+		assertEquals(4, heap.size());
+		// Subsequent allocations share existing items
+		assertSame(root.get(2), heap.allocate(new Identifier("a")));
+		assertEquals(4, heap.size());
+	}
+	@Test public void hashConsing_2() {
+		ConfigFile heap = new ConfigFile(null);
+		heap.setHashConsing(true);
+		Ref<Identifier> r1 = heap.allocate(new Ref<>(new Identifier("a")));
+		Ref<Identifier> r2 = heap.allocate(new Ref<>(new Identifier("a")));
+		assertNotSame(r1, r2);
+		assertSame(r1.get(), r2.get());
+	}
+	@Test public void compact_1() {
+		ConfigFile heap = new ConfigFile(null);
+		Tuple<SyntacticItem> root = heap.allocate(new Tuple<>(new Pair<>(new Identifier("a"), new Value.Int(1)),
+				new Value.Null(), new Identifier("b")));
+		heap.setRootItem(root);
+		CompactSyntacticHeap compact = CompactSyntacticHeap.of(heap, ConfigFile.getSchema());
+		assertEquals(heap.size(), compact.size());
+		for (int i = 0; i != heap.size(); ++i) {
+			SyntacticItem item = heap.getSyntacticItem(i);
+			SyntacticItem view = compact.getSyntacticItem(i);
+			assertEquals(item.getOpcode(), view.getOpcode());
+			assertEquals(item.size(), view.size());
+			assertArrayEquals(item.getData(), view.getData());
+			assertEquals(i, compact.getIndexOf(view));
+		}
+		assertEquals(root, compact.materialize(root.getIndex()));
+		assertEquals(root.get(0), compact.getParent(compact.getSyntacticItem(root.get(0).get(0).getIndex()), Pair.class));
+	}
+	@Test public void compact_2() {
+		ConfigFile heap = new ConfigFile(null);
+		Tuple<SyntacticItem> root = heap.allocate(new Tuple<>(new Identifier("a"), new Identifier("b")));
+		heap.setRootItem(root);
+		Tuple<SyntacticItem> nRoot = heap.allocate(new Tuple<>(new Identifier("c"), root.get(1)));
+		Identifier pinned = heap.allocate(new Identifier("d"));
+		heap.pin(pinned);
+		heap.setRootItem(nRoot);
+		// Old root and "a" are now garbage
+		assertEquals(2, heap.compact());
+		assertEquals(4, heap.size());
+		assertSame(nRoot, heap.getRootItem());
+		for (int i = 0; i != heap.size(); ++i) {
+			assertEquals(i, heap.getSyntacticItem(i).getIndex());
+		}
+		assertSame(nRoot, heap.getParent(nRoot.get(1), Tuple.class));
+		assertSame(pinned, heap.getSyntacticItem(pinned.getIndex()));
+	}
+	@Test public void compact_3() {
+		CompactSyntacticHeap compact = new CompactSyntacticHeap(ConfigFile.getSchema());
+		Identifier shared = new Identifier("a");
+		Tuple<SyntacticItem> root = new Tuple<>(shared, new Pair<>(shared, new Value.Null()));
+		compact.setRootItem(compact.allocate(root));
+		// Shared items are allocated once
+		assertEquals(4, compact.size());
+		assertEquals(root, compact.materialize(compact.getRootItem().getIndex()));
+		// Items of arbitrary depth are allocated without overflowing the stack
+		SyntacticItem item = new Identifier("b");
+		for (int i = 0; i != 100000; ++i) {
+			item = new Tuple<>(item);
+		}
+		SyntacticItem view = compact.allocate(item);
+		assertEquals(100005, compact.size());
+		assertEquals(100001, depth(view));
+	}
+	@Test public void compact_4() {
+		// Parents, ancestors and items of arbitrary depth are handled without
+		// overflowing the stack
+		Identifier leaf = new Identifier("a");
+		SyntacticItem item = leaf;
+		for (int i = 0; i != 100000; ++i) {
+			item = new Tuple<>(item);
+		}
+		Pair<Identifier, SyntacticItem> root = new Pair<>(new Identifier("b"), item);
+		CompactSyntacticHeap compact = new CompactSyntacticHeap(ConfigFile.getSchema());
+		SyntacticItem top = compact.allocate(root);
+		SyntacticItem view = top.get(1);
+		while (view.size() > 0) {
+			view = view.get(0);
+		}
+		assertEquals(new Tuple<>(leaf), view.getParent(Tuple.class));
+		Pair<?, ?> ancestor = view.getAncestor(Pair.class);
+		assertEquals(new Identifier("b"), ancestor.get(0));
+		assertEquals(100001, depth(ancestor.get(1)));
+		assertEquals(100001, depth(compact.materialize(top.get(1).getIndex())));
+		// Only the reachable items are materialised
+		assertEquals(leaf, compact.materialize(view.getIndex()));
+	}
+	@Test public void compact_5() {
+		// Appending after trimming an empty heap grows it again
+		CompactSyntacticHeap compact = new CompactSyntacticHeap(ConfigFile.getSchema());
+		compact.trimToSize();
+		Tuple<SyntacticItem> root = new Tuple<>(new Identifier("a"), new Identifier("b"));
+		compact.setRootItem(compact.allocate(root));
+		assertEquals(3, compact.size());
+		assertEquals(root, compact.materialize(compact.getRootItem().getIndex()));
+		compact.trimToSize();
+		compact.allocate(new Identifier("c"));
+		assertEquals(4, compact.size());
+	}
+	@Test public void getSyntacticItems_1() {
+		ConfigFile heap = new ConfigFile(null);
+		Tuple<SyntacticItem> root = heap.allocate(new Tuple<>(new Identifier("a"), new Value.Int(1),
+				new Tuple<>(new Value.Null(), new Identifier("b"))));
+		assertEquals(Arrays.asList(root.get(0), root.get(2).get(1)), heap.getSyntacticItems(Identifier.class));
+		assertEquals(Arrays.asList(root.get(1), root.get(2).get(0)), heap.getSyntacticItems(Value.class));
+		assertEquals(2, heap.getSyntacticItems(Tuple.class).size());
+		assertEquals(heap.size(), heap.getSyntacticItems(SyntacticItem.class).size());
+		// Index must follow updates to opcodes
+		root.get(0).setOpcode(ConfigFile.ITEM_utf8);
+		assertEquals(Arrays.asList(root.get(0), root.get(2).get(1)), heap.getSyntacticItems(Identifier.class));
+	}
+	@Test public void deep_1() {
+		// Check items of arbitrary depth are handled without overflowing the stack
+		Identifier leaf = new Identifier("a");
+		SyntacticItem item = leaf;
+		for (int i = 0; i != 100000; ++i) {
+			item = new Tuple<>(item);
+		}
+		ConfigFile heap = new ConfigFile(null);
+		SyntacticItem root = heap.allocate(item);
+		assertEquals(100001, heap.size());
+		SyntacticItem copy = AbstractSyntacticHeap.clone(root);
+		assertEquals(100001, depth(copy));
+		SyntacticItem hLeaf = heap.getSyntacticItem(heap.size() - 1);
+		SyntacticItem nRoot = AbstractSyntacticHeap.substitute(root, hLeaf, new Identifier("b"));
+		assertNotSame(root, nRoot);
+		assertEquals(100001, depth(nRoot));
+	}
+	@Test public void substitute_1() {
+		ConfigFile heap = new ConfigFile(null);
+		Tuple<SyntacticItem> root = heap.allocate(new Tuple<>(new Identifier("a"), new Identifier("b"), new Value.Null()));
+		HashMap<SyntacticItem, SyntacticItem> substitutions = new HashMap<>();
+		substitutions.put(root.get(0), new Identifier("c"));
+		substitutions.put(root.get(1), new Identifier("d"));
+		SyntacticItem nRoot = AbstractSyntacticHeap.substitute(root, substitutions);
+		assertEquals(new Identifier("c"), nRoot.get(0));
+		assertEquals(new Identifier("d"), nRoot.get(1));
+		assertSame(root.get(2), nRoot.get(2));
+		// Nothing to substitute, so same item returned
+		assertSame(root, AbstractSyntacticHeap.substitute(root, new HashMap<>()));
+	}
+
+	@Test public void int_1() {
+		long[] values = { 0, 1, -1, 127, 128, -128, -129, 255, 65536, Long.MAX_VALUE, Long.MIN_VALUE };
+		for (long v : values) {
+			Value.Int i = new Value.Int(v);
+			assertArrayEquals(BigInteger.valueOf(v).toByteArray(), i.getData());
+			assertEquals(v, i.getLong());
+			assertEquals(v, new Value.Int(BigInteger.valueOf(v)).getLong());
+			assertEquals(BigInteger.valueOf(v), i.get());
+		}
+		Value.Int big = new Value.Int(BigInteger.valueOf(Long.MAX_VALUE).add(BigInteger.ONE));
+		assertFalse(big.isLong());
+		assertEquals("9223372036854775808", big.toString());
+	}
+
+	@Test public void identifier_1() {
+		ConfigFile heap = new ConfigFile(null);
+		Tuple<SyntacticItem> root = heap.allocate(new Tuple<>(new Identifier("a"), new Identifier("a"),
+				new Identifier("b"), new Value.UTF8("a"), new Value.UTF8("a")));
+		assertNotSame(root.get(0), root.get(1));
+		assertSame(root.get(0).getData(), root.get(1).getData());
+		assertSame(root.get(3).getData(), root.get(4).getData());
+		assertEquals(root.get(0), root.get(1));
+		assertEquals(root.get(0).hashCode(), root.get(1).hashCode());
+		assertEquals(root.get(0), new Identifier("a"));
+		assertEquals(new Identifier("a").hashCode(), root.get(0).hashCode());
+		assertFalse(root.get(0).equals(root.get(2)));
+		assertEquals(root.get(3), new Value.UTF8("a"));
+		assertEquals("a", root.get(4).toString());
+		// Identifiers from another heap are interned in this heap
+		ConfigFile other = new ConfigFile(null);
+		SyntacticItem a = other.allocate(new Identifier("a"));
+		assertEquals(a, root.get(0));
+		assertSame(a.getData(), other.allocate(root.get(1)).getData());
+	}
+
+	@Test public void visitor_1() {
+		ConfigFile heap = new ConfigFile(null);
+		Identifier a = new Identifier("a");
+		Tuple<SyntacticItem> root = heap.allocate(new Tuple<>(new Pair<>(a, new Value.Int(1)), a,
+				new Tuple<>(new Identifier("b"))));
+		int[] counts = new int[256];
+		SyntacticItemVisitor visitor = new SyntacticItemVisitor().setDefault(item -> {
+			counts[item.getOpcode()]++;
+			return true;
+		});
+		// Shared identifier visited only once, and inner tuple pruned
+		visitor.register(AbstractCompilationUnit.ITEM_tuple, item -> {
+			counts[item.getOpcode()]++;
+			return item == root;
+		});
+		visitor.visit(root);
+		assertEquals(2, counts[AbstractCompilationUnit.ITEM_tuple]);
+		assertEquals(1, counts[AbstractCompilationUnit.ITEM_ident]);
+		assertEquals(1, counts[AbstractCompilationUnit.ITEM_pair]);
+		assertEquals(1, counts[AbstractCompilationUnit.ITEM_int]);
+	}
+
+	@Test public void rewriter_1() {
+		ConfigFile heap = new ConfigFile(null);
+		Identifier a = new Identifier("a");
+		Tuple<SyntacticItem> root = heap.allocate(new Tuple<>(new Pair<>(a, a), new Tuple<>(a), new Value.Null()));
+		SyntacticItemRewriter rewriter = new SyntacticItemRewriter();
+		rewriter.register(AbstractCompilationUnit.ITEM_ident, (item, operands) -> new Identifier("b"));
+		Tuple<SyntacticItem> nRoot = rewriter.apply(root);
+		assertEquals(new Identifier("b"), nRoot.get(0).get(0));
+		// Aliasing is preserved and unchanged items are shared
+		assertSame(nRoot.get(0).get(0), nRoot.get(0).get(1));
+		assertSame(nRoot.get(0).get(0), nRoot.get(1).get(0));
+		assertSame(root.get(2), nRoot.get(2));
+		// Pruned items are left untouched
+		rewriter.prune(AbstractCompilationUnit.ITEM_tuple);
+		assertSame(root, rewriter.apply(root));
+	}
+	@Test public void rewriter_2() {
+		ConfigFile heap = new ConfigFile(null);
+		Identifier a = new Identifier("a");
+		Tuple<SyntacticItem> root = heap.allocate(new Tuple<>(new Pair<>(a, a), new Tuple<>(a), new Value.Null()));
+		// Mapped items are substituted, and changed items are recorded
+		IdentityHashMap<SyntacticItem, SyntacticItem> mapping = new IdentityHashMap<>();
+		Identifier b = new Identifier("b");
+		mapping.put(root.get(0).get(0), b);
+		Tuple<SyntacticItem> nRoot = new SyntacticItemRewriter().apply(root, mapping);
+		assertSame(b, nRoot.get(0).get(1));
+		assertSame(b, nRoot.get(1).get(0));
+		assertSame(root.get(2), nRoot.get(2));
+		assertSame(nRoot, mapping.get(root));
+		assertEquals(4, mapping.size());
+		// Only items of the given kind are cloned, along with their ancestors
+		mapping = new IdentityHashMap<>();
+		Tuple<SyntacticItem> copy = AbstractSyntacticHeap.cloneOnly(root, mapping, Pair.class);
+		assertNotSame(root, copy);
+		assertNotSame(root.get(0), copy.get(0));
+		assertSame(root.get(1), copy.get(1));
+		assertEquals(2, mapping.size());
+	}
+
+	@Test public void digest_1() {
+		ConfigFile heap = new ConfigFile(null);
+		Tuple<SyntacticItem> root = heap.allocate(new Tuple<>(new Pair<>(new Identifier("a"), new Value.Int(1)),
+				new Identifier("b")));
+		Tuple<SyntacticItem> copy = new Tuple<>(new Pair<>(new Identifier("a"), new Value.Int(1)),
+				new Identifier("b"));
+		assertEquals(copy.getDigest(), root.getDigest());
+		assertEquals(copy, root);
+		// Updating an operand invalidates the digests of all items referring to it
+		long before = root.getDigest();
+		((Pair<?, ?>) root.get(0)).setOperand(1, heap.allocate(new Value.Int(2)));
+		assertFalse(before == root.getDigest());
+		assertFalse(copy.equals(root));
+		assertEquals(new Tuple<>(new Pair<>(new Identifier("a"), new Value.Int(2)), new Identifier("b")).getDigest(),
+				root.getDigest());
+	}
+
+	@Test public void digest_2() {
+		// Items outside a heap must not retain stale digests
+		Tuple<Identifier> inner = new Tuple<>(new Identifier("x"));
+		Tuple<SyntacticItem> t1 = new Tuple<>(inner);
+		Tuple<SyntacticItem> t2 = new Tuple<>(new Tuple<>(new Identifier("y")));
+		assertFalse(t1.equals(t2));
+		int before = t1.hashCode();
+		inner.setOperand(0, new Identifier("y"));
+		assertEquals(t2, t1);
+		assertEquals(t2.hashCode(), t1.hashCode());
+		assertFalse(before == t1.hashCode());
+	}
+
+	@Test public void diff_1() {
+		ConfigFile before = new ConfigFile(null);
+		before.setRootItem(before.allocate(new Tuple<>(new ConfigFile.KeyValuePair(new Identifier("a"), new Value.Int(1)),
+				new ConfigFile.KeyValuePair(new Identifier("b"), new Value.Int(2)),
+				new ConfigFile.KeyValuePair(new Identifier("c"), new Value.Int(3)))));
+		ConfigFile after = new ConfigFile(null);
+		after.setRootItem(after.allocate(new Tuple<>(new ConfigFile.KeyValuePair(new Identifier("a"), new Value.Int(1)),
+				new ConfigFile.KeyValuePair(new Identifier("b"), new Value.Int(5)),
+				new ConfigFile.KeyValuePair(new Identifier("d"), new Value.Int(4)))));
+		SyntacticHeapDiff diff = new SyntacticHeapDiff(before, after, ConfigFile.Declaration.class);
+		assertFalse(diff.isEmpty());
+		assertEquals(1, diff.getChangedDeclarations().size());
+		assertEquals(new Identifier("b"), diff.getChangedDeclarations().get(0).second().get(0));
+		assertEquals(Arrays.asList(before.getRootItem().get(2)), diff.getRemovedDeclarations());
+		assertEquals(Arrays.asList(after.getRootItem().get(2)), diff.getAddedDeclarations());
+		// A heap is identical to itself
+		assertTrue(new SyntacticHeapDiff(before, before, ConfigFile.Declaration.class).isEmpty());
+	}
+	@Test public void diff_2() {
+		// Items whose digests collide are not considered identical
+		ConfigFile before = new ConfigFile(null);
+		before.setRootItem(before.allocate(new Tuple<>(colliding("a"), colliding("b"))));
+		ConfigFile after = new ConfigFile(null);
+		after.setRootItem(after.allocate(new Tuple<>(colliding("a"), colliding("c"))));
+		SyntacticHeapDiff diff = new SyntacticHeapDiff(before, after);
+		assertEquals(2, diff.getChanged().size());
+		assertEquals(new Identifier("b"), diff.getChanged().get(1).first());
+		assertEquals(new Identifier("c"), diff.getChanged().get(1).second());
+		ConfigFile other = new ConfigFile(null);
+		other.setRootItem(other.allocate(colliding("d")));
+		assertFalse(new SyntacticHeapDiff(other, after).getRemoved().isEmpty());
+	}
+
+	@Test public void statistics_1() {
+		ConfigFile heap = new ConfigFile(null);
+		Identifier a = new Identifier("a");
+		heap.setRootItem(heap.allocate(new Tuple<>(a, a, new Value.Int(1))));
+		heap.allocate(new Identifier("garbage"));
+		SyntacticHeapStatistics stats = heap.getStatistics();
+		int ident = AbstractCompilationUnit.ITEM_ident;
+		assertEquals(2, stats.getItemCount(ident));
+		assertEquals(1, stats.getReachableCount(ident));
+		assertEquals(1, stats.getGarbageCount(ident));
+		assertEquals(8, stats.getDataBytes(ident));
+		assertEquals(2.0, stats.getSharingFactor(ident), 0.0);
+		// Aggregation across heaps
+		SyntacticHeapStatistics total = new SyntacticHeapStatistics();
+		total.add(stats);
+		total.add(stats);
+		assertEquals(2, total.getHeapCount());
+		assertEquals(4, total.getItemCount(ident));
+	}
+
+	@Test public void mapped_1() throws IOException {
+		ConfigFile heap = new ConfigFile(null);
+		Tuple<SyntacticItem> root = heap.allocate(new Tuple<>(new Pair<>(new Identifier("a"), new Value.Int(1)),
+				new Value.Null(), new Identifier("b")));
+		heap.setRootItem(root);
+		File file = File.createTempFile("heap", ".bin");
+		try {
+			MappedSyntacticHeap.write(heap, file);
+			MappedSyntacticHeap mapped = MappedSyntacticHeap.open(file, ConfigFile.getSchema());
+			assertEquals(heap.size(), mapped.size());
+			assertEquals(root.getIndex(), mapped.getRootItem().getIndex());
+			for (int i = 0; i != heap.size(); ++i) {
+				SyntacticItem item = heap.getSyntacticItem(i);
+				assertEquals(item.getOpcode(), mapped.getOpcode(i));
+				assertEquals(item.size(), mapped.getOperandCount(i));
+				assertArrayEquals(item.getData(), mapped.getData(i));
+			}
+			assertEquals(root, mapped.materialize(root.getIndex()));
+		} finally {
+			file.delete();
+		}
+	}
+
+	@Test public void session_1() {
+		ConfigFile heap = new ConfigFile(null);
+		Identifier shared = new Identifier("x");
+		Pair<Identifier, Identifier> first = new Pair<>(shared, new Identifier("y"));
+		Pair<Identifier, Identifier> second = new Pair<>(shared, new Identifier("z"));
+		// Shared substructure is allocated once across a session
+		try (AbstractSyntacticHeap.Session session = heap.openSession(8)) {
+			SyntacticItem a = session.allocate(first);
+			SyntacticItem b = session.allocate(second);
+			assertSame(a.get(0), b.get(0));
+			assertEquals(5, session.size());
+			session.commit();
+		}
+		assertEquals(5, heap.size());
+		// Closing without committing discards everything allocated
+		try (AbstractSyntacticHeap.Session session = heap.openSession(8)) {
+			session.allocate(new Tuple<>(new Identifier("w")));
+			assertEquals(7, heap.size());
+		}
+		assertEquals(5, heap.size());
+		assertEquals(5, heap.allocate(new Identifier("w")).getIndex());
+	}
+
+	private static Identifier colliding(String name) {
+		return new Identifier(name) {
+			@Override
+			public long getDigest() {
+				return 1;
+			}
+
+			@Override
+			public Identifier clone(SyntacticItem[] operands) {
+				return colliding(name);
+			}
+		};
+	}
+
+	private static int depth(SyntacticItem item) {
+		int depth = 1;
+		while (item.size() > 0) {
+			item = item.get(0);
+			depth = depth + 1;
+		}
+		return depth;
+	}
+}